@@ -30,6 +30,7 @@ import org.my.pipeline.core.SourceProcessor;
 import org.my.pipeline.impl.FileSource;
 import org.my.pipeline.impl.FileSink;
 import org.my.pipeline.impl.TraceProcessor;
+import org.my.pipeline.util.Checkpoint;
 
 import java.io.IOException;
 
@@ -64,6 +65,10 @@ import java.io.IOException;
  * the original line unmodified. However, as a side effect it also prints
  * the line to System.out, enabling you to see what data is passing through
  * the pipeline.
+ *
+ * If a third argument is supplied it names a checkpoint file. The source
+ * and sink record their progress in this file so that a copy which is
+ * interrupted can be restarted from the last checkpoint.
  */
 public class PipelineAppMain
 {
@@ -77,16 +82,20 @@ public class PipelineAppMain
             }
             if (args.length > 1) {
                 outfile = args[1];
+            }
+            Checkpoint checkpoint = null;
+            if (args.length > 2) {
+                checkpoint = new Checkpoint(args[2], 1000, null);
             }
         	// create all the elements of the pipeline in order
         	// from start to finish
             // a file source streams file foo.txt into the pipeline
-            SourceProcessor fileSource = new FileSource(infile);
+            SourceProcessor fileSource = new FileSource(infile, checkpoint);
             // a trace processor traces the data streamed through
             // the pipeline by the file source.
             PipelineProcessor tracer = new TraceProcessor("*** ", fileSource);
             //  a file sink streams the output to file bar.txt
-            SinkProcessor fileSink = new FileSink(outfile, tracer);
+            SinkProcessor fileSink = new FileSink(outfile, checkpoint, tracer);
             // start all the processors
             fileSource.start();
             tracer.start();
@@ -32,10 +32,8 @@ import org.my.pipeline.impl.CharSequenceSink;
 import org.my.pipeline.util.BindingMap;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 
 /**
  * This application employs BindingInserter, another subclass of
@@ -139,18 +137,12 @@ public class PipelineAppMain2
             System.out.println("output:");
             System.out.println(writer3.toString());
 
-            Iterator<String> iterator = bindings.iterator();
-            List<String> list = new ArrayList<String>();
-            while (iterator.hasNext()) {
-                String id = iterator.next();
-                list.add(id);
-            }
-            Collections.sort(list);
-            iterator = list.iterator();
+            // entries are returned sorted by prefix and then by index
+            Iterator<Map.Entry<String, String>> iterator = bindings.entries();
             System.out.println("bindings[");
             while (iterator.hasNext()) {
-                String id = iterator.next();
-                System.out.println(id + " -> " + bindings.get(id));
+                Map.Entry<String, String> entry = iterator.next();
+                System.out.println(entry.getKey() + " -> " + entry.getValue());
             }
             System.out.println("]");
         } catch (InterruptedException ie) {
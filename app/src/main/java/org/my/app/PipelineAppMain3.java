@@ -33,10 +33,8 @@ import org.my.pipeline.impl.CharSequenceSink;
 import org.my.pipeline.util.BindingMap;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 
 /**
  * Another example using the bind/replace capability. This one
@@ -102,18 +100,12 @@ public class PipelineAppMain3
             System.out.println("output:");
             System.out.println(writer2.toString());
 
-            Iterator<String> iterator = bindings.iterator();
-            List<String> list = new ArrayList<String>();
-            while (iterator.hasNext()) {
-                String id = iterator.next();
-                list.add(id);
-            }
-            Collections.sort(list);
-            iterator = list.iterator();
+            // entries are returned sorted by prefix and then by index
+            Iterator<Map.Entry<String, String>> iterator = bindings.entries();
             System.out.println("bindings[");
             while (iterator.hasNext()) {
-                String id = iterator.next();
-                System.out.println(id + " -> " + bindings.get(id));
+                Map.Entry<String, String> entry = iterator.next();
+                System.out.println(entry.getKey() + " -> " + entry.getValue());
             }
             System.out.println("]");
         } catch (InterruptedException ie) {
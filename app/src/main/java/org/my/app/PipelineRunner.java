@@ -0,0 +1,670 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.app;
+
+import org.my.pipeline.core.AffinityScheduler;
+import org.my.pipeline.core.CooperativeScheduler;
+import org.my.pipeline.core.CooperativeStage;
+import org.my.pipeline.core.Link;
+import org.my.pipeline.core.PipelineProcessor;
+import org.my.pipeline.core.Placement;
+import org.my.pipeline.core.SinkProcessor;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.core.SourceProcessor;
+import org.my.pipeline.core.TeeProcessor;
+import org.my.pipeline.core.WaitStrategy;
+import org.my.pipeline.impl.Binder;
+import org.my.pipeline.impl.BindingInserter;
+import org.my.pipeline.impl.BindingReplacer;
+import org.my.pipeline.impl.CharSequenceSink;
+import org.my.pipeline.impl.CharSequenceSource;
+import org.my.pipeline.impl.DirectorySource;
+import org.my.pipeline.impl.FileSink;
+import org.my.pipeline.impl.FileSource;
+import org.my.pipeline.impl.PatternReplacer;
+import org.my.pipeline.impl.PipelineTemplate;
+import org.my.pipeline.impl.SocketSelector;
+import org.my.pipeline.impl.SocketSink;
+import org.my.pipeline.impl.SocketSource;
+import org.my.pipeline.impl.SocketStage;
+import org.my.pipeline.impl.SplitFileSource;
+import org.my.pipeline.impl.StdinSource;
+import org.my.pipeline.impl.StdoutSink;
+import org.my.pipeline.impl.TraceProcessor;
+import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.Compression;
+import org.my.pipeline.util.LruEvictionPolicy;
+import org.my.pipeline.util.Startup;
+import org.my.pipeline.util.TinyLfuEvictionPolicy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * PipelineRunner builds and runs a pipeline described by a properties file so that jobs can be
+ * set up and tuned without writing a driver class like {@link PipelineAppMain1}. It is run as
+ * <pre>
+ *   java org.my.app.PipelineRunner pipeline.properties [key=value ...]
+ * </pre>
+ * where each key=value argument overrides a setting in the file.<p/>
+ *
+ * Each stage is described by a group of properties named stage.&lt;name&gt;.&lt;option&gt;.
+ * Every stage has a type and every stage apart from a source names the stage which feeds it as
+ * its input. A tee may be named as the input of two stages. The stage types and their options are
+ * <ul>
+ * <li>file: a FileSource reading option file, with optional compression (none, gzip, deflate
+ * or auto) and tail (true or false)</li>
+ * <li>split: a SplitFileSource reading option file using option segments reader threads</li>
+ * <li>text: a CharSequenceSource producing option text</li>
+ * <li>directory: a DirectorySource processing the files in option dir, with optional glob,
+ * recursive, concurrency, compression and progress (a report interval in milliseconds). each
+ * file is processed by the chain of stages listed in option pipeline, whose descriptions must
+ * not name an input and which may only be replacer, binder, inserter, bindingreplacer or tracer
+ * stages. if option output names a directory each file's output is written to a file there,
+ * otherwise the outputs are merged and the stage may be the input of another stage</li>
+ * <li>stdin: a StdinSource reading standard input with options charset and bufferSize</li>
+ * <li>socket: a SocketSource listening on option port, with optional host, connections (the
+ * number of connections to accept before stopping), charset and bufferSize</li>
+ * <li>replacer: a PatternReplacer with options pattern and replacement</li>
+ * <li>binder, inserter: a Binder or BindingInserter with options pattern and prefix</li>
+ * <li>bindingreplacer: a BindingReplacer</li>
+ * <li>tracer: a TraceProcessor with option prefix</li>
+ * <li>tee: a TeeProcessor</li>
+ * <li>filesink: a FileSink writing option file, with optional compression</li>
+ * <li>textsink: a CharSequenceSink whose text is printed to System.out once the pipeline ends</li>
+ * <li>stdout: a StdoutSink writing standard output with options charset and bufferSize</li>
+ * <li>socketsink: a SocketSink connecting to options host and port, with optional charset and
+ * bufferSize. a socketsink implies link transport</li>
+ * </ul>
+ * Any stage may also specify a placement (none, follow or spread) used when affinity is enabled.<p/>
+ *
+ * The remaining properties configure the engine
+ * <ul>
+ * <li>transport: piped (the default) or link, with link.minCapacity, link.maxCapacity and
+ * link.waitStrategy configuring links</li>
+ * <li>engine: threads (the default), giving each stage its own thread, or cooperative, running
+ * every stage which supports it on a {@link CooperativeScheduler} with engine.parallelism threads
+ * and a quantum of engine.quantumLines lines or engine.quantumChars chars. cooperative implies
+ * link transport</li>
+ * <li>affinity: true to pin stage threads using the {@link AffinityScheduler}</li>
+ * <li>startup.lazy and startup.report: see {@link Startup}</li>
+ * <li>bindings.capacity, bindings.eviction (lru or tinylfu), bindings.ordered and bindings.print
+ * configuring the BindingMap shared by the binding stages</li>
+ * </ul>
+ * When the pipeline has finished a summary of the time taken and the data throughput is printed
+ * to System.err, leaving System.out free for pipeline output.
+ */
+public class PipelineRunner
+{
+    private Properties config;
+    private Map<String, Object> stages;
+    private Set<String> building;
+    private BindingMap bindings;
+    private List<String> inputFiles;
+    private List<String> outputFiles;
+    private List<CharSequence> inputTexts;
+    private List<CharSequenceSink> textSinks;
+    private List<StdinSource> stdinSources;
+    private List<StdoutSink> stdoutSinks;
+    private List<SocketSource> socketSources;
+    private List<SocketSink> socketSinks;
+    private List<DirectorySource> directories;
+    private boolean cooperative;
+
+    /**
+     * create a runner for a pipeline description
+     * @param config the pipeline description
+     */
+    public PipelineRunner(Properties config)
+    {
+        this.config = config;
+        this.stages = new LinkedHashMap<String, Object>();
+        this.building = new TreeSet<String>();
+        this.bindings = null;
+        this.inputFiles = new ArrayList<String>();
+        this.outputFiles = new ArrayList<String>();
+        this.inputTexts = new ArrayList<CharSequence>();
+        this.textSinks = new ArrayList<CharSequenceSink>();
+        this.stdinSources = new ArrayList<StdinSource>();
+        this.stdoutSinks = new ArrayList<StdoutSink>();
+        this.socketSources = new ArrayList<SocketSource>();
+        this.socketSinks = new ArrayList<SocketSink>();
+        this.directories = new ArrayList<DirectorySource>();
+        this.cooperative = false;
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length == 0) {
+            System.err.println("usage: java org.my.app.PipelineRunner <pipeline.properties> [key=value ...]");
+            System.exit(1);
+        }
+        Properties config = new Properties();
+        try {
+            InputStream in = new FileInputStream(args[0]);
+            try {
+                config.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println("cannot read pipeline description " + args[0] + " : " + ioe.getMessage());
+            System.exit(1);
+        }
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                System.err.println("invalid override " + args[i] + " : expecting key=value");
+                System.exit(1);
+            }
+            config.setProperty(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        PipelineRunner runner = new PipelineRunner(config);
+        try {
+            runner.configure();
+            runner.build();
+            runner.run(System.err);
+        } catch (IllegalArgumentException iae) {
+            System.err.println("invalid pipeline description : " + iae.getMessage());
+            System.exit(1);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * apply the engine settings. this must be done before the stages are created since it
+     * determines how they are connected.
+     */
+    public void configure()
+    {
+        String engine = get("engine", "threads");
+        if (engine.equals("cooperative")) {
+            cooperative = true;
+        } else if (!engine.equals("threads")) {
+            throw new IllegalArgumentException("unknown engine " + engine);
+        }
+        String transport = get("transport", "piped");
+        if (transport.equals("link") || cooperative || hasStageType("socketsink")) {
+            Link.setEnabled(true);
+        } else if (!transport.equals("piped")) {
+            throw new IllegalArgumentException("unknown transport " + transport);
+        }
+        int min = getInt("link.minCapacity", 1024);
+        int max = getInt("link.maxCapacity", Math.max(min, 64 * 1024));
+        Link.setCapacity(min, max);
+        Link.setWaitStrategy(WaitStrategy.forName(get("link.waitStrategy", "blocking")));
+        AffinityScheduler.setEnabled(getBoolean("affinity", AffinityScheduler.isEnabled()));
+        Startup.setLazy(getBoolean("startup.lazy", Startup.isLazy()));
+        Startup.setReporting(getBoolean("startup.report", Startup.isReporting()));
+    }
+
+    private boolean hasStageType(String type)
+    {
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith("stage.") && key.endsWith(".type") && config.getProperty(key).trim().equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * create and connect all the stages in the description
+     * @throws IOException if a stage cannot be created
+     */
+    public void build() throws IOException
+    {
+        Set<String> names = new TreeSet<String>();
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith("stage.") && key.endsWith(".type")) {
+                names.add(key.substring(6, key.length() - 5));
+            }
+        }
+        // the stages of a directory's per-file pipeline are only used as templates
+        for (String name : new ArrayList<String>(names)) {
+            if (get(name, "type", "").trim().equals("directory")) {
+                for (String element : require(name, "pipeline").split(",")) {
+                    names.remove(element.trim());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("no stages defined");
+        }
+        // each stage builds its input first so stages are created in pipeline order
+        for (String name : names) {
+            build(name);
+        }
+    }
+
+    /**
+     * start all the stages and wait for them to finish
+     * @param out the stream to which the summary is printed
+     * @throws InterruptedException if interrupted while waiting for the pipeline to finish
+     */
+    public void run(PrintStream out) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        CooperativeScheduler scheduler = null;
+        List<CooperativeScheduler.Task> tasks = new ArrayList<CooperativeScheduler.Task>();
+        List<CooperativeStage> taskStages = new ArrayList<CooperativeStage>();
+        List<Thread> threads = new ArrayList<Thread>();
+        List<SocketStage> sockets = new ArrayList<SocketStage>();
+        if (cooperative) {
+            scheduler = new CooperativeScheduler(getInt("engine.parallelism", Runtime.getRuntime().availableProcessors()));
+            scheduler.setQuantum(getInt("engine.quantumLines", CooperativeScheduler.DEFAULT_QUANTUM_LINES),
+                    getInt("engine.quantumChars", CooperativeScheduler.DEFAULT_QUANTUM_CHARS));
+        }
+        // stages were created in pipeline order so start them in the same order
+        for (Object stage : stages.values()) {
+            if (scheduler != null && stage instanceof CooperativeStage) {
+                tasks.add(scheduler.schedule((CooperativeStage)stage));
+                taskStages.add((CooperativeStage)stage);
+            } else if (stage instanceof SocketStage) {
+                SocketStage socket = (SocketStage)stage;
+                sockets.add(socket);
+                socket.start();
+            } else {
+                Thread thread = (Thread)stage;
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (SocketStage socket : sockets) {
+            socket.join();
+            if (socket.getFailure() != null) {
+                socket.getFailure().printStackTrace();
+            }
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            CooperativeScheduler.Task task = tasks.get(i);
+            task.join();
+            // a pipeline processor running on its own thread quietly stops when the
+            // pipeline is closed under it so only report failures of sources and sinks
+            if (task.getFailure() != null && !(taskStages.get(i) instanceof PipelineProcessor)) {
+                task.getFailure().printStackTrace();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        for (CharSequenceSink sink : textSinks) {
+            System.out.print(sink);
+        }
+        System.out.flush();
+        if (bindings != null && getBoolean("bindings.print", false)) {
+            Iterator<Map.Entry<String, String>> iterator = bindings.entries();
+            while (iterator.hasNext()) {
+                Map.Entry<String, String> entry = iterator.next();
+                System.out.println(entry.getKey() + " = " + entry.getValue());
+            }
+        }
+        summarize(out, elapsed, threads.size(), tasks.size(), sockets.size(), scheduler);
+    }
+
+    private void summarize(PrintStream out, long elapsed, int threads, int tasks, int sockets, CooperativeScheduler scheduler)
+    {
+        long in = 0;
+        for (String file : inputFiles) {
+            in += new File(file).length();
+        }
+        for (CharSequence text : inputTexts) {
+            in += text.length();
+        }
+        for (StdinSource stdin : stdinSources) {
+            in += stdin.getByteCount();
+        }
+        for (SocketSource socket : socketSources) {
+            in += socket.getByteCount();
+        }
+        for (DirectorySource directory : directories) {
+            in += directory.getBytesRead();
+        }
+        long outBytes = 0;
+        for (String file : outputFiles) {
+            outBytes += new File(file).length();
+        }
+        for (CharSequenceSink sink : textSinks) {
+            outBytes += sink.length();
+        }
+        for (SocketSink socket : socketSinks) {
+            outBytes += socket.getByteCount();
+        }
+        for (DirectorySource directory : directories) {
+            // merged output is counted by the sink it feeds
+            if (directory.isPerFile()) {
+                outBytes += directory.getBytesWritten();
+            }
+        }
+        for (StdoutSink stdout : stdoutSinks) {
+            outBytes += stdout.getByteCount();
+            if (stdout.isBrokenPipe()) {
+                out.println("  " + stdout.getName() + " : output closed by reader");
+            }
+        }
+        double seconds = elapsed / 1000000000.0;
+        out.println("pipeline finished in " + String.format("%.3f", elapsed / 1000000.0) + "ms");
+        out.println("  stages : " + stages.size() + " (" + threads + " threads, " + tasks + " cooperative"
+                + (sockets > 0 ? ", " + sockets + " on the socket selector)" : ")"));
+        out.println("  input  : " + in + " bytes " + rate(in, seconds));
+        out.println("  output : " + outBytes + " bytes " + rate(outBytes, seconds));
+        if (scheduler != null) {
+            out.println("  steps  : " + scheduler.getStepCount() + " (" + scheduler.getYieldCount() + " yielded)");
+        }
+        if (bindings != null) {
+            out.println("  bindings : " + bindings.size());
+        }
+        for (DirectorySource directory : directories) {
+            out.print("  ");
+            directory.report(out);
+        }
+        if (AffinityScheduler.isEnabled()) {
+            AffinityScheduler.getInstance().report(out);
+        }
+        if (Startup.isReporting() && !Boolean.getBoolean("org.my.pipeline.startup.report")) {
+            // the report is only printed at exit when enabled using the system property
+            Startup.report(out);
+        }
+    }
+
+    private static String rate(long bytes, double seconds)
+    {
+        if (seconds <= 0) {
+            return "";
+        }
+        return String.format("(%.2f MB/s)", bytes / seconds / (1024 * 1024));
+    }
+
+    /**
+     * create a stage after creating the stage which feeds it
+     * @param name the stage name
+     * @return the stage
+     */
+    private Object build(String name) throws IOException
+    {
+        Object stage = stages.get(name);
+        if (stage != null) {
+            return stage;
+        }
+        if (!building.add(name)) {
+            throw new IllegalArgumentException("stage " + name + " is part of a cycle");
+        }
+        String type = require(name, "type").trim();
+        Source source = null;
+        if (!type.equals("file") && !type.equals("split") && !type.equals("text") && !type.equals("stdin") && !type.equals("socket")
+                && !type.equals("directory")) {
+            Object input = build(require(name, "input").trim());
+            if (!(input instanceof Source)) {
+                throw new IllegalArgumentException("stage " + name + " has input " + get(name, "input", null) + " which is a sink");
+            }
+            source = (Source)input;
+        }
+        if (type.equals("file")) {
+            String file = require(name, "file");
+            FileSource fileSource = new FileSource(file);
+            fileSource.setCompression(compression(name));
+            fileSource.setTailing(getBoolean("stage." + name + ".tail", false));
+            inputFiles.add(file);
+            stage = fileSource;
+        } else if (type.equals("split")) {
+            String file = require(name, "file");
+            stage = new SplitFileSource(file, getInt("stage." + name + ".segments", 4));
+            inputFiles.add(file);
+        } else if (type.equals("text")) {
+            String text = require(name, "text");
+            stage = new CharSequenceSource(text);
+            inputTexts.add(text);
+        } else if (type.equals("directory")) {
+            DirectorySource directory = new DirectorySource(require(name, "dir"), get(name, "glob", null), template(name), bindings());
+            directory.setRecursive(getBoolean("stage." + name + ".recursive", false));
+            directory.setConcurrency(getInt("stage." + name + ".concurrency", DirectorySource.DEFAULT_CONCURRENCY));
+            directory.setCompression(compression(name));
+            String output = get(name, "output", "").trim();
+            if (output.length() > 0) {
+                directory.setOutputDirectory(output);
+            }
+            int progress = getInt("stage." + name + ".progress", 0);
+            if (progress > 0) {
+                directory.setProgressReport(System.err, progress);
+            }
+            directories.add(directory);
+            stage = directory;
+        } else if (type.equals("stdin")) {
+            StdinSource stdin = new StdinSource();
+            String charset = get(name, "charset", null);
+            if (charset != null) {
+                stdin.setCharset(Charset.forName(charset.trim()));
+            }
+            stdin.setBufferSize(getInt("stage." + name + ".bufferSize", StdinSource.DEFAULT_BUFFER_SIZE));
+            stdinSources.add(stdin);
+            stage = stdin;
+        } else if (type.equals("socket")) {
+            String host = get(name, "host", null);
+            int port = getInt("stage." + name + ".port", -1);
+            if (port < 0) {
+                throw new IllegalArgumentException("stage " + name + " has no port");
+            }
+            InetSocketAddress address = (host == null ? new InetSocketAddress(port) : new InetSocketAddress(host.trim(), port));
+            SocketSource socket = new SocketSource(SocketSelector.getShared(), address);
+            String charset = get(name, "charset", null);
+            if (charset != null) {
+                socket.setCharset(Charset.forName(charset.trim()));
+            }
+            socket.setBufferSize(getInt("stage." + name + ".bufferSize", SocketSource.DEFAULT_BUFFER_SIZE));
+            socket.setConnectionLimit(getInt("stage." + name + ".connections", 0));
+            socketSources.add(socket);
+            stage = socket;
+        } else if (type.equals("replacer")) {
+            stage = new PatternReplacer(require(name, "pattern"), require(name, "replacement"), source);
+        } else if (type.equals("binder")) {
+            stage = new Binder(require(name, "pattern"), require(name, "prefix"), bindings(), source);
+        } else if (type.equals("inserter")) {
+            stage = new BindingInserter(require(name, "pattern"), require(name, "prefix"), bindings(), source);
+        } else if (type.equals("bindingreplacer")) {
+            stage = new BindingReplacer(bindings(), source);
+        } else if (type.equals("tracer")) {
+            stage = new TraceProcessor(get(name, "prefix", ""), source);
+        } else if (type.equals("tee")) {
+            stage = new TeeProcessor(source);
+        } else if (type.equals("filesink")) {
+            String file = require(name, "file");
+            FileSink fileSink = new FileSink(file, source);
+            fileSink.setCompression(compression(name));
+            outputFiles.add(file);
+            stage = fileSink;
+        } else if (type.equals("textsink")) {
+            CharSequenceSink sink = new CharSequenceSink(source);
+            textSinks.add(sink);
+            stage = sink;
+        } else if (type.equals("stdout")) {
+            StdoutSink stdout = new StdoutSink(source);
+            String charset = get(name, "charset", null);
+            if (charset != null) {
+                stdout.setCharset(Charset.forName(charset.trim()));
+            }
+            stdout.setBufferSize(getInt("stage." + name + ".bufferSize", StdoutSink.DEFAULT_BUFFER_SIZE));
+            stdoutSinks.add(stdout);
+            stage = stdout;
+        } else if (type.equals("socketsink")) {
+            int port = getInt("stage." + name + ".port", -1);
+            if (port < 0) {
+                throw new IllegalArgumentException("stage " + name + " has no port");
+            }
+            InetSocketAddress address = new InetSocketAddress(require(name, "host").trim(), port);
+            SocketSink socket = new SocketSink(SocketSelector.getShared(), address, source);
+            String charset = get(name, "charset", null);
+            if (charset != null) {
+                socket.setCharset(Charset.forName(charset.trim()));
+            }
+            socket.setBufferSize(getInt("stage." + name + ".bufferSize", SocketSink.DEFAULT_BUFFER_SIZE));
+            socketSinks.add(socket);
+            stage = socket;
+        } else {
+            throw new IllegalArgumentException("stage " + name + " has unknown type " + type);
+        }
+        String placement = get(name, "placement", null);
+        if (placement != null) {
+            place(stage, Placement.valueOf(placement.trim().toUpperCase()));
+        }
+        if (stage instanceof Thread) {
+            // makes thread dumps and the affinity report readable
+            ((Thread)stage).setName(name);
+        }
+        building.remove(name);
+        stages.put(name, stage);
+        return stage;
+    }
+
+    /**
+     * @return a template for the per-file pipeline of a directory stage
+     */
+    private PipelineTemplate template(String name)
+    {
+        String pipeline = require(name, "pipeline").trim();
+        List<PipelineTemplate.Stage> elements = new ArrayList<PipelineTemplate.Stage>();
+        for (String element : (pipeline.length() == 0 ? new String[0] : pipeline.split(","))) {
+            element = element.trim();
+            String type = require(element, "type").trim();
+            if (get(element, "input", null) != null) {
+                throw new IllegalArgumentException("stage " + element + " in the pipeline of " + name + " has an input");
+            }
+            if (type.equals("replacer")) {
+                elements.add(PipelineTemplate.replacer(require(element, "pattern"), require(element, "replacement")));
+            } else if (type.equals("binder")) {
+                elements.add(PipelineTemplate.binder(require(element, "pattern"), require(element, "prefix")));
+            } else if (type.equals("inserter")) {
+                elements.add(PipelineTemplate.inserter(require(element, "pattern"), require(element, "prefix")));
+            } else if (type.equals("bindingreplacer")) {
+                elements.add(PipelineTemplate.bindingReplacer());
+            } else if (type.equals("tracer")) {
+                elements.add(PipelineTemplate.tracer(get(element, "prefix", ""), null, 0));
+            } else {
+                throw new IllegalArgumentException("stage " + element + " in the pipeline of " + name + " has unsupported type " + type);
+            }
+        }
+        return new PipelineTemplate(elements.toArray(new PipelineTemplate.Stage[elements.size()]));
+    }
+
+    private static void place(Object stage, Placement placement)
+    {
+        if (stage instanceof SourceProcessor) {
+            ((SourceProcessor)stage).setPlacement(placement);
+        } else if (stage instanceof PipelineProcessor) {
+            ((PipelineProcessor)stage).setPlacement(placement);
+        } else if (stage instanceof SinkProcessor) {
+            ((SinkProcessor)stage).setPlacement(placement);
+        }
+    }
+
+    /**
+     * @return the binding map shared by all binding stages, creating it if needed
+     */
+    private BindingMap bindings()
+    {
+        if (bindings == null) {
+            int capacity = getInt("bindings.capacity", 0);
+            String eviction = get("bindings.eviction", "tinylfu");
+            if (capacity <= 0) {
+                bindings = new BindingMap();
+            } else if (eviction.equals("lru")) {
+                bindings = new BindingMap(new LruEvictionPolicy(capacity));
+            } else if (eviction.equals("tinylfu")) {
+                bindings = new BindingMap(new TinyLfuEvictionPolicy(capacity));
+            } else {
+                throw new IllegalArgumentException("unknown eviction policy " + eviction);
+            }
+            bindings.setOrdered(getBoolean("bindings.ordered", false));
+        }
+        return bindings;
+    }
+
+    private Compression compression(String name)
+    {
+        return Compression.valueOf(get(name, "compression", "none").trim().toUpperCase());
+    }
+
+    private String require(String name, String option)
+    {
+        String value = get(name, option, null);
+        if (value == null) {
+            throw new IllegalArgumentException("stage " + name + " has no " + option);
+        }
+        return value;
+    }
+
+    private String get(String name, String option, String defaultValue)
+    {
+        // stage options are used verbatim since spaces may be significant in patterns and text
+        String value = config.getProperty("stage." + name + "." + option);
+        return (value == null ? defaultValue : value);
+    }
+
+    private String get(String key, String defaultValue)
+    {
+        String value = config.getProperty(key);
+        return (value == null ? defaultValue : value.trim());
+    }
+
+    private int getInt(String key, int defaultValue)
+    {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(key + " is not a number : " + value);
+        }
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue)
+    {
+        String value = get(key, null);
+        return (value == null ? defaultValue : Boolean.parseBoolean(value));
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An AffinityScheduler pins pipeline stage threads to cpus so that stages which pass data to each
+ * other run on nearby cores. Without this the operating system may run adjacent stages on
+ * different sockets, meaning every character passed through a link has to cross the interconnect
+ * between them.<p/>
+ *
+ * The scheduler reads the cpu topology from /sys/devices/system/cpu and /sys/devices/system/node
+ * and orders the cpus the process may use by NUMA node, physical core and hyperthread. When a
+ * stage is started it asks the scheduler to reserve a cpu according to its {@link Placement} hint
+ * and then, once its thread is running, to pin the thread to that cpu. Stages should be started
+ * in pipeline order, source first, so that each stage's upstream stage has already been placed.
+ * A stage which follows its upstream stage is given the least loaded cpu on the same node as that
+ * stage, preferring an idle core and then the cpu closest to the upstream stage's cpu. Other
+ * stages are given the least loaded cpu on the least loaded node. A stage's thread is pinned by
+ * running taskset against its native thread id, which is read from /proc/thread-self, so no
+ * native code or special hardware support is needed.<p/>
+ *
+ * Scheduling is disabled by default. It can be enabled by calling {@link #setEnabled(boolean)}
+ * or by setting system property org.my.pipeline.affinity.enabled to true. When it is enabled but
+ * the topology cannot be read, or pinning fails, stages still run but are left unpinned. The
+ * placements made by the scheduler, including any failures, can be printed using
+ * {@link #report(PrintStream)}.
+ */
+public class AffinityScheduler
+{
+    /**
+     * the number of placements retained for reporting
+     */
+    private static final int HISTORY_SIZE = 256;
+
+    private static volatile boolean enabled = Boolean.getBoolean("org.my.pipeline.affinity.enabled");
+
+    private static AffinityScheduler instance = null;
+
+    private Cpu[] cpus;
+    private String problem;
+    private Map<Thread, Assignment> assignments;
+    private ArrayDeque<Assignment> history;
+
+    /**
+     * create a scheduler for the cpus which this process may run on
+     */
+    private AffinityScheduler()
+    {
+        this.assignments = new WeakHashMap<Thread, Assignment>();
+        this.history = new ArrayDeque<Assignment>();
+        this.problem = null;
+        try {
+            this.cpus = readTopology();
+        } catch (IOException ioe) {
+            this.cpus = new Cpu[0];
+            this.problem = "cannot read cpu topology : " + ioe.getMessage();
+        }
+    }
+
+    /**
+     * @return the process-wide scheduler
+     */
+    public static synchronized AffinityScheduler getInstance()
+    {
+        if (instance == null) {
+            instance = new AffinityScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * select whether stages are pinned to cpus when they start
+     * @param enabled true if stages should be pinned otherwise false
+     */
+    public static void setEnabled(boolean enabled)
+    {
+        AffinityScheduler.enabled = enabled;
+    }
+
+    /**
+     * @return true if stages are pinned to cpus when they start otherwise false
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * reserve a cpu for a stage if scheduling is enabled. this must be called when the stage's
+     * thread is started.
+     * @param stage the stage thread
+     * @param upstream the source feeding the stage or null if it has none
+     * @param hint where the stage should be placed
+     */
+    public static void reserve(Thread stage, Object upstream, Placement hint)
+    {
+        if (!enabled || hint == Placement.NONE) {
+            return;
+        }
+        getInstance().choose(stage, upstream, hint);
+    }
+
+    /**
+     * pin a stage to the cpu reserved for it. this must be called by the stage's own thread
+     * before it starts processing data.
+     * @param stage the stage thread
+     */
+    public static void started(Thread stage)
+    {
+        if (!enabled || Thread.currentThread() != stage) {
+            // stages run by a pipeline template on pool threads are left alone as the
+            // pool thread would otherwise stay pinned after the stage has completed
+            return;
+        }
+        getInstance().pin(stage);
+    }
+
+    /**
+     * note that a stage has finished so that its cpu is available for other stages
+     * @param stage the stage thread
+     */
+    public static void finished(Thread stage)
+    {
+        if (!enabled) {
+            return;
+        }
+        getInstance().release(stage);
+    }
+
+    /**
+     * @return the number of cpus available for placing stages
+     */
+    public int getCpuCount()
+    {
+        return cpus.length;
+    }
+
+    /**
+     * print the placements made for recently started stages
+     * @param out the stream to print to
+     */
+    public void report(PrintStream out)
+    {
+        out.println("affinity placements:");
+        if (problem != null) {
+            out.println("  " + problem);
+        }
+        synchronized (this) {
+            for (Assignment assignment : history) {
+                out.println("  " + assignment);
+            }
+            int[] load = new int[cpus.length];
+            for (Assignment assignment : assignments.values()) {
+                if (assignment.active && assignment.cpu != null) {
+                    load[assignment.cpu.index]++;
+                }
+            }
+            for (int i = 0; i < cpus.length; i++) {
+                if (load[i] != 0) {
+                    out.println("  " + cpus[i] + " running " + load[i] + " stage(s)");
+                }
+            }
+        }
+    }
+
+    /**
+     * forget all placements made so far
+     */
+    public synchronized void reset()
+    {
+        history.clear();
+        Iterator<Assignment> iterator = assignments.values().iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().active) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void choose(Thread stage, Object upstream, Placement hint)
+    {
+        Assignment previous = (upstream instanceof Thread ? assignments.get(upstream) : null);
+        Cpu cpu = choose(hint == Placement.FOLLOW && previous != null ? previous.cpu : null);
+        Assignment assignment = new Assignment(stage.getName(), cpu, previous);
+        assignments.put(stage, assignment);
+        history.addLast(assignment);
+        if (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+        if (cpu == null) {
+            assignment.status = (problem != null ? "unpinned" : "unpinned : no cpus available");
+        } else {
+            cpu.load++;
+        }
+    }
+
+    private void pin(Thread stage)
+    {
+        Assignment assignment;
+        synchronized (this) {
+            assignment = assignments.get(stage);
+        }
+        if (assignment == null || assignment.cpu == null) {
+            return;
+        }
+        // pin outside the lock as this means running another process but update the
+        // assignment under it as report reads it from other threads
+        String tid = "?";
+        String status;
+        try {
+            tid = new File("/proc/thread-self").getCanonicalFile().getName();
+            pin(tid, assignment.cpu.id);
+            status = "pinned";
+        } catch (IOException ioe) {
+            status = "unpinned : " + ioe.getMessage();
+        }
+        synchronized (this) {
+            assignment.tid = tid;
+            assignment.status = status;
+        }
+    }
+
+    private synchronized void release(Thread stage)
+    {
+        Assignment assignment = assignments.get(stage);
+        if (assignment != null && assignment.active) {
+            assignment.active = false;
+            if (assignment.cpu != null) {
+                assignment.cpu.load--;
+            }
+        }
+    }
+
+    /**
+     * pick the best cpu for a stage
+     * @param near the cpu of the stage's upstream stage or null if it should go on the least
+     * loaded node
+     * @return the chosen cpu or null if there are no cpus
+     */
+    private Cpu choose(Cpu near)
+    {
+        if (cpus.length == 0) {
+            return null;
+        }
+        int node;
+        if (near != null) {
+            node = near.node;
+        } else {
+            // find the node with the fewest stages per cpu
+            node = -1;
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < cpus.length; i++) {
+                int candidate = cpus[i].node;
+                int load = 0;
+                int count = 0;
+                for (int j = 0; j < cpus.length; j++) {
+                    if (cpus[j].node == candidate) {
+                        load += cpus[j].load;
+                        count++;
+                    }
+                }
+                // compare load / count without dividing
+                long score = ((long)load << 16) / count;
+                if (score < best) {
+                    best = score;
+                    node = candidate;
+                }
+            }
+        }
+        Cpu chosen = null;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < cpus.length; i++) {
+            Cpu cpu = cpus[i];
+            if (cpu.node != node) {
+                continue;
+            }
+            // prefer an idle cpu, then one whose hyperthread siblings are idle, then the
+            // one nearest the upstream stage's cpu
+            long score = cpu.load * 1000000L + coreLoad(cpu) * 1000L;
+            score += (near != null ? Math.abs(cpu.index - near.index) : cpu.index);
+            if (score < best) {
+                best = score;
+                chosen = cpu;
+            }
+        }
+        return chosen;
+    }
+
+    private int coreLoad(Cpu cpu)
+    {
+        int load = 0;
+        for (int i = 0; i < cpus.length; i++) {
+            Cpu other = cpus[i];
+            if (other != cpu && other.node == cpu.node && other.pkg == cpu.pkg && other.core == cpu.core) {
+                load += other.load;
+            }
+        }
+        return load;
+    }
+
+    private static void pin(String tid, int cpu) throws IOException
+    {
+        ProcessBuilder builder = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), tid);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        StringBuilder output = new StringBuilder();
+        InputStream in = process.getInputStream();
+        try {
+            int b;
+            while ((b = in.read()) >= 0) {
+                output.append((char)b);
+            }
+        } finally {
+            in.close();
+        }
+        int status;
+        try {
+            status = process.waitFor();
+        } catch (InterruptedException ie) {
+            // leave the interrupt for the stage to see
+            Thread.currentThread().interrupt();
+            process.destroy();
+            throw new IOException("interrupted while pinning thread " + tid);
+        }
+        if (status != 0) {
+            throw new IOException("taskset failed with status " + status + " : " + output.toString().trim());
+        }
+    }
+
+    /**
+     * read the cpus this process may run on and sort them into placement order
+     */
+    private static Cpu[] readTopology() throws IOException
+    {
+        List<Integer> allowed = null;
+        BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    allowed = parseList(line.substring(line.indexOf(':') + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (allowed == null) {
+            throw new IOException("no Cpus_allowed_list in /proc/self/status");
+        }
+        int[] nodes = readNodes();
+        List<Cpu> list = new ArrayList<Cpu>();
+        for (Integer id : allowed) {
+            String topology = "/sys/devices/system/cpu/cpu" + id + "/topology/";
+            int core = readInt(topology + "core_id", id);
+            int pkg = readInt(topology + "physical_package_id", 0);
+            int node = (id < nodes.length && nodes[id] >= 0 ? nodes[id] : pkg);
+            list.add(new Cpu(id, node, pkg, core));
+        }
+        Collections.sort(list, new Comparator<Cpu>() {
+            public int compare(Cpu c1, Cpu c2) {
+                if (c1.node != c2.node) {
+                    return (c1.node < c2.node ? -1 : 1);
+                }
+                if (c1.pkg != c2.pkg) {
+                    return (c1.pkg < c2.pkg ? -1 : 1);
+                }
+                if (c1.core != c2.core) {
+                    return (c1.core < c2.core ? -1 : 1);
+                }
+                return (c1.id < c2.id ? -1 : (c1.id == c2.id ? 0 : 1));
+            }
+        });
+        Cpu[] result = list.toArray(new Cpu[list.size()]);
+        for (int i = 0; i < result.length; i++) {
+            result[i].index = i;
+        }
+        return result;
+    }
+
+    /**
+     * @return an array mapping cpu ids to NUMA node ids with -1 for cpus whose node is unknown
+     */
+    private static int[] readNodes()
+    {
+        int[] nodes = new int[0];
+        File[] entries = new File("/sys/devices/system/node").listFiles();
+        if (entries == null) {
+            return nodes;
+        }
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (!name.matches("node[0-9]+")) {
+                continue;
+            }
+            int node = Integer.parseInt(name.substring(4));
+            List<Integer> members;
+            try {
+                members = parseList(readLine(new File(entry, "cpulist").getPath()));
+            } catch (IOException ioe) {
+                continue;
+            }
+            for (Integer id : members) {
+                if (id >= nodes.length) {
+                    int[] grown = new int[id + 1];
+                    Arrays.fill(grown, -1);
+                    System.arraycopy(nodes, 0, grown, 0, nodes.length);
+                    nodes = grown;
+                }
+                nodes[id] = node;
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * parse a cpu list such as 0-3,8,10-11
+     */
+    private static List<Integer> parseList(String text)
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String range : text.trim().split(",")) {
+            if (range.length() == 0) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                ids.add(Integer.parseInt(range.trim()));
+            } else {
+                int from = Integer.parseInt(range.substring(0, dash).trim());
+                int to = Integer.parseInt(range.substring(dash + 1).trim());
+                for (int id = from; id <= to; id++) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static int readInt(String file, int defaultValue)
+    {
+        try {
+            return Integer.parseInt(readLine(file).trim());
+        } catch (IOException ioe) {
+            return defaultValue;
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private static String readLine(String file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("empty file " + file);
+            }
+            return line;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * a cpu which stages may be placed on
+     */
+    private static class Cpu
+    {
+        private int id;
+        private int node;
+        private int pkg;
+        private int core;
+        private int index;
+        private int load;
+
+        Cpu(int id, int node, int pkg, int core)
+        {
+            this.id = id;
+            this.node = node;
+            this.pkg = pkg;
+            this.core = core;
+            this.index = 0;
+            this.load = 0;
+        }
+
+        public String toString()
+        {
+            return "cpu " + id + " (node " + node + " socket " + pkg + " core " + core + ")";
+        }
+    }
+
+    /**
+     * the placement made for a stage
+     */
+    private static class Assignment
+    {
+        private String name;
+        private Cpu cpu;
+        private Assignment upstream;
+        private String tid;
+        private String status;
+        private boolean active;
+
+        Assignment(String name, Cpu cpu, Assignment upstream)
+        {
+            this.name = name;
+            this.cpu = cpu;
+            this.upstream = upstream;
+            this.tid = "?";
+            this.status = "reserved";
+            this.active = true;
+        }
+
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append(name);
+            builder.append(" tid ");
+            builder.append(tid);
+            if (cpu != null) {
+                builder.append(" on ");
+                builder.append(cpu);
+            }
+            if (upstream != null) {
+                builder.append(" after ");
+                builder.append(upstream.name);
+                if (cpu != null && upstream.cpu != null && upstream.cpu.node != cpu.node) {
+                    builder.append(" across nodes");
+                }
+            }
+            builder.append(" : ");
+            builder.append(status);
+            return builder.toString();
+        }
+    }
+}
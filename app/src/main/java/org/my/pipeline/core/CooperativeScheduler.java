@@ -0,0 +1,273 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A CooperativeScheduler runs {@link CooperativeStage}s on a small, work-stealing pool of
+ * threads instead of giving each stage a thread of its own. A scheduled stage is run for one
+ * quantum of input, a configurable number of lines or characters, and then either requeued, if
+ * it yielded, or left idle until one of its links changes, if it blocked. Stages are requeued at
+ * the back of the queue so that every runnable stage gets a turn before any stage gets a second
+ * one, allowing many small pipelines to share a few cores fairly.<p/>
+ *
+ * A stage is resumed by a listener installed on its links. When a character is written to the
+ * stage's input, when a character is read from its output or when either link is closed the
+ * stage is queued unless it is already queued or running. A stage which is running when it is
+ * signalled is requeued as soon as it returns, so a wakeup which arrives while the stage is
+ * deciding to block is never lost.<p/>
+ *
+ * Cooperative stages must be connected by {@link Link}s, so links must be enabled before the
+ * stages are created. Stages scheduled cooperatively must not also be started as threads.
+ */
+public class CooperativeScheduler
+{
+    public static final int DEFAULT_QUANTUM_LINES = 64;
+    public static final int DEFAULT_QUANTUM_CHARS = 8 * 1024;
+
+    private ForkJoinPool pool;
+    private volatile int quantumLines;
+    private volatile int quantumChars;
+    private AtomicLong steps;
+    private AtomicLong yields;
+
+    /**
+     * create a scheduler using one thread for each available processor
+     */
+    public CooperativeScheduler()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * create a scheduler
+     * @param parallelism the number of threads used to run stages
+     */
+    public CooperativeScheduler(int parallelism)
+    {
+        // async mode makes each worker's queue first-in first-out which is what
+        // provides fairness between stages which yield
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.quantumLines = DEFAULT_QUANTUM_LINES;
+        this.quantumChars = DEFAULT_QUANTUM_CHARS;
+        this.steps = new AtomicLong();
+        this.yields = new AtomicLong();
+    }
+
+    /**
+     * configure the amount of work a stage does before giving up its thread
+     * @param lines the maximum number of lines processed in one step
+     * @param chars the maximum number of characters processed in one step
+     */
+    public void setQuantum(int lines, int chars)
+    {
+        if (lines <= 0 || chars <= 0) {
+            throw new IllegalArgumentException("invalid quantum " + lines + " lines " + chars + " chars");
+        }
+        this.quantumLines = lines;
+        this.quantumChars = chars;
+    }
+
+    /**
+     * start running a stage
+     * @param stage the stage to run
+     * @return a handle which can be used to wait for the stage to finish
+     * @throws IllegalArgumentException if the stage is not connected by links
+     */
+    public Task schedule(CooperativeStage stage)
+    {
+        PipedReader input = stage.getInput();
+        PipedWriter output = stage.getOutput();
+        if ((input != null && !(input instanceof LinkReader)) || (output != null && !(output instanceof LinkWriter))) {
+            throw new IllegalArgumentException("cooperative stages must be connected by links");
+        }
+        Task task = new Task(stage);
+        if (input != null) {
+            ((LinkReader)input).getLink().setReaderListener(task.signaller);
+        }
+        if (output != null) {
+            ((LinkWriter)output).getLink().setWriterListener(task.signaller);
+        }
+        task.signal();
+        return task;
+    }
+
+    /**
+     * @return the number of steps run so far
+     */
+    public long getStepCount()
+    {
+        return steps.get();
+    }
+
+    /**
+     * @return the number of steps which used up their quantum and were requeued
+     */
+    public long getYieldCount()
+    {
+        return yields.get();
+    }
+
+    /**
+     * stop the scheduler's threads once all scheduled stages have finished
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * wait for the scheduler's threads to exit after a shutdown
+     * @param timeout the longest time to wait in milliseconds
+     * @return true if the threads have exited otherwise false
+     * @throws InterruptedException if the wait is interrupted
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException
+    {
+        return pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * a scheduled stage
+     */
+    public class Task implements Runnable
+    {
+        private static final int IDLE = 0;
+        private static final int QUEUED = 1;
+        private static final int RUNNING = 2;
+        private static final int SIGNALLED = 3;
+        private static final int DONE = 4;
+
+        private CooperativeStage stage;
+        private AtomicInteger state;
+        private CountDownLatch finished;
+        private volatile IOException failure;
+        private Runnable signaller;
+
+        private Task(CooperativeStage stage)
+        {
+            this.stage = stage;
+            this.state = new AtomicInteger(IDLE);
+            this.finished = new CountDownLatch(1);
+            this.failure = null;
+            this.signaller = new Runnable() {
+                public void run()
+                {
+                    signal();
+                }
+            };
+        }
+
+        /**
+         * queue the stage unless it is already queued or running
+         */
+        private void signal()
+        {
+            while (true) {
+                int current = state.get();
+                if (current == IDLE) {
+                    if (state.compareAndSet(IDLE, QUEUED)) {
+                        pool.execute(this);
+                        return;
+                    }
+                } else if (current == RUNNING) {
+                    if (state.compareAndSet(RUNNING, SIGNALLED)) {
+                        return;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        public void run()
+        {
+            state.set(RUNNING);
+            CooperativeStage.Status status;
+            steps.incrementAndGet();
+            try {
+                status = stage.step(quantumLines, quantumChars);
+            } catch (IOException ioe) {
+                failure = ioe;
+                status = CooperativeStage.Status.DONE;
+            } catch (RuntimeException re) {
+                failure = new IOException(re);
+                status = CooperativeStage.Status.DONE;
+            }
+            switch (status) {
+                case DONE:
+                    state.set(DONE);
+                    stage.finish(failure);
+                    finished.countDown();
+                    break;
+                case YIELDED:
+                    yields.incrementAndGet();
+                    state.set(QUEUED);
+                    pool.execute(this);
+                    break;
+                case BLOCKED:
+                    if (!state.compareAndSet(RUNNING, IDLE)) {
+                        // signalled while running so there may be more to do
+                        state.set(QUEUED);
+                        pool.execute(this);
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * wait for the stage to finish
+         * @throws InterruptedException if the wait is interrupted
+         */
+        public void join() throws InterruptedException
+        {
+            finished.await();
+        }
+
+        /**
+         * @return true if the stage has finished otherwise false
+         */
+        public boolean isDone()
+        {
+            return finished.getCount() == 0;
+        }
+
+        /**
+         * @return the exception which caused the stage to fail or null if it did not fail
+         */
+        public IOException getFailure()
+        {
+            return failure;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+
+/**
+ * A CooperativeStage is a pipeline stage which can be run by a {@link CooperativeScheduler}
+ * instead of by its own thread. Rather than looping until it reaches EOF the stage processes a
+ * bounded quantum of input each time {@link #step(int, int)} is called and then returns, saying
+ * whether it still has work to do, is waiting for input or for space to write output, or has
+ * finished. A cooperative stage must be connected to its neighbours using {@link Link}s, since
+ * it relies on being able to poll its input and on being told when its links change state.
+ */
+public interface CooperativeStage
+{
+    /**
+     * the outcome of a call to step
+     */
+    public enum Status
+    {
+        /**
+         * the quantum was used up and there may be more work to do
+         */
+        YIELDED,
+        /**
+         * no more work can be done until the input or output link changes
+         */
+        BLOCKED,
+        /**
+         * the stage has reached EOF and written all its output
+         */
+        DONE
+    }
+
+    /**
+     * @return the stream this stage reads or null if it is a source
+     */
+    public PipedReader getInput();
+
+    /**
+     * @return the stream this stage writes or null if it is a sink
+     */
+    public PipedWriter getOutput();
+
+    /**
+     * process input until a quantum is used up or no more progress can be made without waiting
+     * @param maxLines the maximum number of lines to process
+     * @param maxChars the maximum number of characters to process
+     * @return whether the stage yielded, blocked or finished
+     * @throws IOException if the input or output fails
+     */
+    public Status step(int maxLines, int maxChars) throws IOException;
+
+    /**
+     * close the stage's streams once it has finished or failed
+     * @param failure the exception which caused the stage to fail or null if it finished
+     */
+    public void finish(IOException failure);
+}
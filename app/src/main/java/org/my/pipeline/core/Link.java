@@ -0,0 +1,804 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Startup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Link is an alternative to a connected PipedWriter and PipedReader for carrying characters from
+ * one pipeline stage to the next. Sources obtain the writer for a link to a sink by calling
+ * {@link #connect(Sink)}. By default this simply returns a PipedWriter connected to a PipedReader,
+ * just as the stages always used to do. Links must be enabled by calling {@link #setEnabled(boolean)}
+ * or by setting system property org.my.pipeline.link.enabled to true.<p/>
+ *
+ * A PipedReader has a fixed buffer of 1024 characters, so a fast stage repeatedly fills the buffer
+ * and then waits for a slower neighbour to empty it. The buffer of a Link adapts to the rates at
+ * which its two ends are used. If the writer spends more than a tenth of the time waiting for space
+ * the buffer is doubled, allowing a bursty producer to run ahead and both ends to work in larger
+ * batches. If the buffer has stayed less than a quarter full it is halved, so links which never
+ * carry much data do not hold on to memory. The capacity always lies between a minimum and maximum
+ * which default to 1024 and 64K characters and can be configured using {@link #setCapacity(int, int)}
+ * or system properties org.my.pipeline.link.minCapacity and org.my.pipeline.link.maxCapacity. The
+ * buffers are taken from the shared {@link ChunkPool}s when data is first written and returned to
+ * them when they are resized or when the link is finished with. Links are also used when lazy
+ * startup is enabled using {@link Startup}, so that a stage which never produces output never
+ * allocates a buffer.<p/>
+ *
+ * As with a PipedWriter, a reader waiting for input is not woken every time a character is
+ * written. It is woken when the writer flushes, when the buffer is half full or when the writer is
+ * about to wait for space. This lets the reader consume input in batches rather than switching
+ * threads for each write.<p/>
+ *
+ * Latency sensitive pipelines can select a {@link WaitStrategy} using {@link #setWaitStrategy}
+ * or system property org.my.pipeline.link.waitStrategy (blocking, busy-spin, spin-yield-park or
+ * park). With any strategy but BLOCKING a waiting thread does not hold the link's lock and is
+ * unparked as soon as the other end has written or read a character, so small inputs pass
+ * through a pipeline without any thread sleeping on a timeout. Selecting such a strategy implies
+ * that links are enabled.<p/>
+ *
+ * The writer and reader of a link extend PipedWriter and PipedReader so that they can be used by
+ * the existing stage implementations.
+ */
+public class Link
+{
+    /**
+     * the value returned by {@link #poll()} when no input is available
+     */
+    public static final int NONE = -2;
+
+    /**
+     * the interval over which the writer's waiting time and the buffer fill level are measured
+     */
+    private static final long ADAPT_INTERVAL_NANOS = 10 * 1000 * 1000L;
+
+    private static volatile boolean enabled = Boolean.getBoolean("org.my.pipeline.link.enabled");
+    private static volatile int minCapacity = Integer.getInteger("org.my.pipeline.link.minCapacity", 1024);
+    private static volatile int maxCapacity = Integer.getInteger("org.my.pipeline.link.maxCapacity", 64 * 1024);
+    private static volatile WaitStrategy waitStrategy =
+            WaitStrategy.forName(System.getProperty("org.my.pipeline.link.waitStrategy", "blocking"));
+
+    private LinkWriter writer;
+    private LinkReader reader;
+    private int min;
+    private int max;
+    private ChunkPool.Chunk chunk;
+    private char[] buffer;
+    private int head;
+    private int count;
+    private boolean closedByWriter;
+    private boolean closedByReader;
+    private Thread writeSide;
+    private Thread readSide;
+    private WaitStrategy strategy;
+    private ReentrantLock lock;
+    private Condition notEmpty;
+    private Condition notFull;
+    private boolean readerWaiting;
+    private boolean writerWaiting;
+    private Thread parkedReader;
+    private Thread parkedWriter;
+    private Runnable readerListener;
+    private Runnable writerListener;
+    private int writerAttempts;
+    private long windowStart;
+    private long stallNanos;
+    private int maxFill;
+    private int resizes;
+    private int writes;
+
+    /**
+     * create a link
+     * @param min the minimum capacity of the link
+     * @param max the maximum capacity of the link
+     */
+    public Link(int min, int max)
+    {
+        this(min, max, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * create a link
+     * @param min the minimum capacity of the link
+     * @param max the maximum capacity of the link
+     * @param strategy the way the reader and writer wait for the link
+     */
+    public Link(int min, int max, WaitStrategy strategy)
+    {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("invalid link capacity " + min + " to " + max);
+        }
+        this.min = min;
+        this.max = max;
+        // the buffer is allocated when data is first written
+        this.chunk = null;
+        this.buffer = null;
+        this.head = 0;
+        this.count = 0;
+        this.closedByWriter = false;
+        this.closedByReader = false;
+        this.writeSide = null;
+        this.readSide = null;
+        this.strategy = strategy;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.readerWaiting = false;
+        this.writerWaiting = false;
+        this.parkedReader = null;
+        this.parkedWriter = null;
+        this.writerAttempts = 0;
+        this.readerListener = null;
+        this.writerListener = null;
+        this.windowStart = System.nanoTime();
+        this.stallNanos = 0;
+        this.maxFill = 0;
+        this.resizes = 0;
+        this.writes = 0;
+        this.writer = new LinkWriter(this);
+        this.reader = new LinkReader(this);
+    }
+
+    /**
+     * create the output stream for a source and pass a connected input stream to a sink
+     * @param sink the sink to connect
+     * @return the output stream which the source should write
+     * @throws IOException if the sink cannot accept the input
+     */
+    public static PipedWriter connect(Sink sink) throws IOException
+    {
+        if (!enabled && waitStrategy == WaitStrategy.BLOCKING && !Startup.isLazy()) {
+            PipedWriter output = new PipedWriter();
+            sink.setInput(new PipedReader(output));
+            return output;
+        }
+        return open(sink).writer;
+    }
+
+    /**
+     * create a link with the configured capacity and wait strategy and pass its reader to a sink.
+     * unlike {@link #connect(Sink)} this always creates a link, whether or not links are enabled,
+     * so it can be used by a source which needs to check for space or install a listener.
+     * @param sink the sink to connect
+     * @return the link
+     * @throws IOException if the sink cannot accept the input
+     */
+    public static Link open(Sink sink) throws IOException
+    {
+        Link link = new Link(minCapacity, maxCapacity, waitStrategy);
+        sink.setInput(link.reader);
+        return link;
+    }
+
+    /**
+     * select whether {@link #connect(Sink)} creates links or plain piped streams
+     * @param enabled true if links should be used otherwise false
+     */
+    public static void setEnabled(boolean enabled)
+    {
+        Link.enabled = enabled;
+    }
+
+    /**
+     * @return true if {@link #connect(Sink)} creates links otherwise false
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * configure the capacity of links created by {@link #connect(Sink)}
+     * @param min the minimum number of characters a link buffers
+     * @param max the maximum number of characters a link buffers
+     */
+    public static void setCapacity(int min, int max)
+    {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("invalid link capacity " + min + " to " + max);
+        }
+        minCapacity = min;
+        maxCapacity = max;
+    }
+
+    /**
+     * select how the ends of links created by {@link #connect(Sink)} wait. selecting a strategy
+     * other than BLOCKING means links are created even if they have not been enabled.
+     * @param strategy the wait strategy to use
+     */
+    public static void setWaitStrategy(WaitStrategy strategy)
+    {
+        if (strategy == null) {
+            throw new IllegalArgumentException("wait strategy must not be null");
+        }
+        waitStrategy = strategy;
+    }
+
+    /**
+     * @return the wait strategy used by links created by {@link #connect(Sink)}
+     */
+    public static WaitStrategy getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    /**
+     * @return the wait strategy used by this link
+     */
+    public WaitStrategy getStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * install a task to be run whenever data is written to the link or the writer closes it.
+     * this allows a stage which is run by a {@link CooperativeScheduler} rather than by its
+     * own thread to be resumed when it has input. the task is run while the link is locked
+     * so it must not block or access the link.<p/>
+     *
+     * once a listener has been installed the link no longer checks whether the thread which
+     * last read it is still alive, since a cooperative stage may be run by any thread.
+     * @param listener the task to run
+     */
+    public void setReaderListener(Runnable listener)
+    {
+        lock.lock();
+        try {
+            readerListener = listener;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * install a task to be run whenever data is read from the link or the reader closes it.
+     * the same constraints apply as for {@link #setReaderListener(Runnable)}.
+     * @param listener the task to run
+     */
+    public void setWriterListener(Runnable listener)
+    {
+        lock.lock();
+        try {
+            writerListener = listener;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the writer for this link
+     */
+    public PipedWriter getWriter()
+    {
+        return writer;
+    }
+
+    /**
+     * @return the reader for this link
+     */
+    public PipedReader getReader()
+    {
+        return reader;
+    }
+
+    /**
+     * @return the current capacity of the link's buffer or 0 if it has not been written yet or
+     * has been finished with
+     */
+    public int getCapacity()
+    {
+        lock.lock();
+        try {
+            return (buffer == null ? 0 : buffer.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times the link's buffer has been resized
+     */
+    public int getResizeCount()
+    {
+        lock.lock();
+        try {
+            return resizes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void write(char[] chars, int offset, int length) throws IOException
+    {
+        lock.lock();
+        try {
+            writeSide = Thread.currentThread();
+            while (length > 0) {
+                checkWritable();
+                if (buffer == null) {
+                    allocate();
+                }
+                if (count == buffer.length) {
+                    awaitSpace();
+                    continue;
+                }
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(length, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(chars, offset, buffer, tail, n);
+                offset += n;
+                length -= n;
+                produced(n);
+            }
+            if ((++writes & 63) == 0) {
+                adapt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void write(int c) throws IOException
+    {
+        lock.lock();
+        try {
+            writeSide = Thread.currentThread();
+            checkWritable();
+            if (buffer == null) {
+                allocate();
+            }
+            while (count == buffer.length) {
+                awaitSpace();
+                checkWritable();
+            }
+            buffer[(head + count) % buffer.length] = (char)c;
+            produced(1);
+            if ((++writes & 63) == 0) {
+                adapt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * read a character if one is available without waiting
+     * @return the character, -1 at EOF or {@link #NONE} if no character is available
+     * @throws IOException if the reader has been closed
+     */
+    public int poll() throws IOException
+    {
+        lock.lock();
+        try {
+            if (closedByReader) {
+                throw new IOException("Pipe closed");
+            }
+            readSide = Thread.currentThread();
+            if (count == 0) {
+                if (closedByWriter) {
+                    release();
+                    return -1;
+                }
+                return NONE;
+            }
+            int c = buffer[head];
+            consumed(1);
+            return c;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * read as many characters as are available, up to a limit, without waiting
+     * @param chars the array into which characters are read
+     * @param offset the offset at which to store the first character
+     * @param length the maximum number of characters to read
+     * @return the number of characters read, -1 at EOF or {@link #NONE} if no character is available
+     * @throws IOException if the reader has been closed
+     */
+    public int poll(char[] chars, int offset, int length) throws IOException
+    {
+        lock.lock();
+        try {
+            if (closedByReader) {
+                throw new IOException("Pipe closed");
+            }
+            readSide = Thread.currentThread();
+            if (count == 0) {
+                if (closedByWriter) {
+                    release();
+                    return -1;
+                }
+                return NONE;
+            }
+            int total = 0;
+            while (length > 0 && count > 0) {
+                int n = Math.min(length, Math.min(count, buffer.length - head));
+                System.arraycopy(buffer, head, chars, offset, n);
+                consumed(n);
+                offset += n;
+                length -= n;
+                total += n;
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of characters which can be written to the link without waiting
+     * @throws IOException if either end of the link has been closed
+     */
+    public int space() throws IOException
+    {
+        lock.lock();
+        try {
+            if (closedByReader || closedByWriter) {
+                throw new IOException("Pipe closed");
+            }
+            return (buffer == null ? min : buffer.length - count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flush() throws IOException
+    {
+        lock.lock();
+        try {
+            if (closedByReader) {
+                throw new IOException("Pipe closed");
+            }
+            signalReader(true);
+            adapt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void closeWriter()
+    {
+        lock.lock();
+        try {
+            closedByWriter = true;
+            signalReader(true);
+            if (readerListener != null) {
+                readerListener.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int read() throws IOException
+    {
+        lock.lock();
+        try {
+            if (!awaitData()) {
+                return -1;
+            }
+            int c = buffer[head];
+            consumed(1);
+            return c;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int read(char[] chars, int offset, int length) throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            if (!awaitData()) {
+                return -1;
+            }
+            int total = 0;
+            while (length > 0 && count > 0) {
+                int n = Math.min(length, Math.min(count, buffer.length - head));
+                System.arraycopy(buffer, head, chars, offset, n);
+                consumed(n);
+                offset += n;
+                length -= n;
+                total += n;
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean ready() throws IOException
+    {
+        lock.lock();
+        try {
+            if (closedByReader) {
+                throw new IOException("Pipe closed");
+            }
+            return count > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void closeReader()
+    {
+        lock.lock();
+        try {
+            closedByReader = true;
+            release();
+            signalWriter(true);
+            if (writerListener != null) {
+                writerListener.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkWritable() throws IOException
+    {
+        if (closedByWriter || closedByReader) {
+            throw new IOException("Pipe closed");
+        }
+        if (readerListener == null && readSide != null && !readSide.isAlive()) {
+            throw new IOException("Read end dead");
+        }
+    }
+
+    /**
+     * wait until the reader has removed some data from a full buffer. the
+     * lock is held on entry and on return but not while waiting.
+     */
+    private void awaitSpace() throws IOException
+    {
+        long start = System.nanoTime();
+        // make sure the reader knows there is a full buffer to empty
+        signalReader(true);
+        try {
+            if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                // a cooperative stage has written more than the link can hold. let the
+                // pool start another worker while we wait so the reader can still run
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    public boolean block() throws InterruptedException
+                    {
+                        waitForSpace();
+                        return true;
+                    }
+
+                    public boolean isReleasable()
+                    {
+                        return buffer == null || count < buffer.length || closedByReader;
+                    }
+                });
+            } else {
+                waitForSpace();
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+        stallNanos += System.nanoTime() - start;
+        adapt();
+    }
+
+    /**
+     * wait once for the reader to make space, either on the link's condition or by pausing
+     * according to the wait strategy
+     */
+    private void waitForSpace() throws InterruptedException
+    {
+        if (strategy == WaitStrategy.BLOCKING) {
+            writerWaiting = true;
+            try {
+                notFull.await(100, TimeUnit.MILLISECONDS);
+            } finally {
+                writerWaiting = false;
+            }
+        } else {
+            // park outside the lock. the reader unparks us while holding the lock
+            // after emptying some of the buffer so the wakeup cannot be missed
+            parkedWriter = Thread.currentThread();
+            lock.unlock();
+            try {
+                strategy.pause(writerAttempts++);
+            } finally {
+                lock.lock();
+                parkedWriter = null;
+            }
+        }
+    }
+
+    /**
+     * wait until there is data to read. the lock is held on entry and on
+     * return but not while waiting.
+     * @return true if there is data or false at EOF
+     */
+    private boolean awaitData() throws IOException
+    {
+        readSide = Thread.currentThread();
+        int attempt = 0;
+        while (count == 0) {
+            if (closedByReader) {
+                throw new IOException("Pipe closed");
+            }
+            if (closedByWriter) {
+                // nothing more will arrive so the buffer can go back to the pool
+                release();
+                return false;
+            }
+            if (writerListener == null && writeSide != null && !writeSide.isAlive()) {
+                throw new IOException("Write end dead");
+            }
+            try {
+                if (strategy == WaitStrategy.BLOCKING) {
+                    readerWaiting = true;
+                    try {
+                        notEmpty.await(100, TimeUnit.MILLISECONDS);
+                    } finally {
+                        readerWaiting = false;
+                    }
+                } else {
+                    parkedReader = Thread.currentThread();
+                    lock.unlock();
+                    try {
+                        strategy.pause(attempt++);
+                    } finally {
+                        lock.lock();
+                        parkedReader = null;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+        }
+        return true;
+    }
+
+    private void produced(int n)
+    {
+        count += n;
+        writerAttempts = 0;
+        if (count > maxFill) {
+            maxFill = count;
+        }
+        signalReader(false);
+        if (readerListener != null) {
+            readerListener.run();
+        }
+    }
+
+    private void consumed(int n)
+    {
+        head = (head + n) % buffer.length;
+        count -= n;
+        if (count == 0) {
+            head = 0;
+        }
+        signalWriter(false);
+        if (writerListener != null) {
+            writerListener.run();
+        }
+    }
+
+    /**
+     * wake a reader waiting for data. a blocked reader is only woken once it has a good part of
+     * the buffer to consume unless the writer insists while a parked reader is woken at once
+     * @param always true if a blocked reader should be woken however much data is available
+     */
+    private void signalReader(boolean always)
+    {
+        if (readerWaiting) {
+            if (always || count >= buffer.length / 2) {
+                notEmpty.signal();
+            }
+        } else if (parkedReader != null) {
+            LockSupport.unpark(parkedReader);
+        }
+    }
+
+    /**
+     * wake a writer waiting for space. a blocked writer is only woken once it has a good part of
+     * the buffer to refill unless the reader insists while a parked writer is woken at once
+     * @param always true if a blocked writer should be woken however much space is available
+     */
+    private void signalWriter(boolean always)
+    {
+        if (writerWaiting) {
+            if (always || count <= buffer.length / 2) {
+                notFull.signal();
+            }
+        } else if (parkedWriter != null) {
+            LockSupport.unpark(parkedWriter);
+        }
+    }
+
+    /**
+     * grow or shrink the buffer at the end of each measurement interval
+     */
+    private void adapt()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < ADAPT_INTERVAL_NANOS || buffer == null) {
+            return;
+        }
+        int capacity = buffer.length;
+        if (stallNanos * 10 > elapsed && capacity < max) {
+            resize(Math.min(capacity * 2, max));
+        } else if (maxFill * 4 < capacity && capacity > min && count <= capacity / 2) {
+            resize(Math.max(capacity / 2, min));
+        }
+        windowStart = now;
+        stallNanos = 0;
+        maxFill = count;
+    }
+
+    private void allocate()
+    {
+        chunk = ChunkPool.charPool(min).allocate();
+        buffer = chunk.chars();
+        head = 0;
+        count = 0;
+    }
+
+    private void resize(int capacity)
+    {
+        ChunkPool.Chunk newChunk = ChunkPool.charPool(capacity).allocate();
+        char[] newBuffer = newChunk.chars();
+        // copy the unread data to the start of the new buffer
+        int first = Math.min(count, buffer.length - head);
+        System.arraycopy(buffer, head, newBuffer, 0, first);
+        System.arraycopy(buffer, 0, newBuffer, first, count - first);
+        chunk.release();
+        chunk = newChunk;
+        buffer = newBuffer;
+        head = 0;
+        resizes++;
+    }
+
+    private void release()
+    {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+            buffer = null;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+
+/**
+ * the reading end of a {@link Link}
+ */
+public class LinkReader extends PipedReader
+{
+    private Link link;
+
+    LinkReader(Link link)
+    {
+        // the parent's own buffer is never used so keep it as small as possible
+        super(1);
+        this.link = link;
+    }
+
+    /**
+     * @return the link this reader belongs to
+     */
+    public Link getLink()
+    {
+        return link;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return link.read();
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || offset + length > chars.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return link.read(chars, offset, length);
+    }
+
+    @Override
+    public boolean ready() throws IOException
+    {
+        return link.ready();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        link.closeReader();
+    }
+
+    @Override
+    public void connect(PipedWriter writer) throws IOException
+    {
+        throw new IOException("Already connected");
+    }
+}
@@ -24,6 +24,9 @@
 
 package org.my.pipeline.core;
 
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Startup;
+
 import java.io.IOException;
 import java.io.PipedReader;
 import java.io.PipedWriter;
@@ -42,6 +45,14 @@ public abstract class PipelineProcessor extends Thread implements Source, Sink {
      */
     protected PipedWriter output;
     protected PipedReader input;
+    /**
+     * where the affinity scheduler should place this processor
+     */
+    protected Placement placement;
+    /**
+     * the source feeding this processor
+     */
+    private Source upstream;
 
     /**
      * construct a PipelineProcessor by setting up its input stream from the supplied Source
@@ -51,7 +62,10 @@ public abstract class PipelineProcessor extends Thread implements Source, Sink {
     public PipelineProcessor(Source source) throws IOException {
     	input = null;
     	output = null;
+    	placement = Placement.FOLLOW;
+    	upstream = source;
     	source.feed(this);
+    	Startup.mark(Startup.STAGE_CREATED);
     }
 
     public void setInput(PipedReader input) throws IOException {
@@ -66,8 +80,24 @@ public abstract class PipelineProcessor extends Thread implements Source, Sink {
         if (output != null) {
             throw new IOException("output already connected");
         }
-        output = new PipedWriter();
-        sink.setInput(new PipedReader(output));
+        output = Link.connect(sink);
+    }
+
+    /**
+     * @return the source feeding this processor
+     */
+    public Source getUpstream()
+    {
+        return upstream;
+    }
+
+    /**
+     * provide a hint to the {@link AffinityScheduler} saying where this processor should run
+     * @param placement the placement hint
+     */
+    public void setPlacement(Placement placement)
+    {
+        this.placement = placement;
     }
 
     /**
@@ -78,6 +108,15 @@ public abstract class PipelineProcessor extends Thread implements Source, Sink {
      */
     public abstract void processPipeline() throws IOException;
 
+    /**
+     * reserve a cpu for this processor if affinity scheduling is enabled and then start it
+     */
+    public void start() {
+        AffinityScheduler.reserve(this, upstream, placement);
+        Startup.mark(Startup.STAGE_STARTED);
+        super.start();
+    }
+
     /**
      * Calls {@link #processPipeline()}.
      * @throws RuntimeException if either an input or an output has not been configured
@@ -89,6 +128,7 @@ public abstract class PipelineProcessor extends Thread implements Source, Sink {
             throw new RuntimeException("unconnected pipeline");
         }
         try {
+            AffinityScheduler.started(this);
             processPipeline();
         } catch (IOException ioe) {
             //ioe.printStackTrace();
@@ -113,6 +153,9 @@ public abstract class PipelineProcessor extends Thread implements Source, Sink {
                     // the input may be the source of the original exception so don't bother to print this
                 }
             }
+            // hand any buffers cached by this thread back for reuse
+            ChunkPool.releaseThreadCaches();
+            AffinityScheduler.finished(this);
         }
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+/**
+ * Placement is a hint telling the {@link AffinityScheduler} where a pipeline stage should run.
+ * NONE leaves the stage wherever the operating system chooses to run it. FOLLOW places the stage
+ * on a core near to the stage which feeds it, so that data passed between them stays in a cache
+ * shared by both cores. A stage with no upstream stage is placed on the least loaded NUMA node.
+ * SPREAD always places the stage on the least loaded node, which suits a stage which starts a
+ * new chain of work or one which is so busy that it should not share a node with its neighbours.
+ */
+public enum Placement
+{
+    NONE,
+    FOLLOW,
+    SPREAD
+}
@@ -24,6 +24,9 @@
 
 package org.my.pipeline.core;
 
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Startup;
+
 import java.io.IOException;
 import java.io.PipedReader;
 
@@ -36,11 +39,22 @@ public abstract class SinkProcessor extends Thread implements Sink {
 	 * the stream of data consumed by this sink
 	 */
     protected PipedReader input;
+    /**
+     * where the affinity scheduler should place this sink
+     */
+    protected Placement placement;
+    /**
+     * the source feeding this sink
+     */
+    private Source upstream;
 
     protected SinkProcessor(Source source) throws IOException
     {
     	input = null;
+    	placement = Placement.FOLLOW;
+    	upstream = source;
         source.feed(this);
+        Startup.mark(Startup.STAGE_CREATED);
     }
 
     public void setInput(PipedReader input) throws IOException {
@@ -50,6 +64,15 @@ public abstract class SinkProcessor extends Thread implements Sink {
         this.input = input;
     }
     
+    /**
+     * provide a hint to the {@link AffinityScheduler} saying where this sink should run
+     * @param placement the placement hint
+     */
+    public void setPlacement(Placement placement)
+    {
+        this.placement = placement;
+    }
+
     /**
      * method implemented by subclasses which consumes the data
      * coming from an upstream source
@@ -58,6 +81,16 @@ public abstract class SinkProcessor extends Thread implements Sink {
      */
     public abstract void consume() throws IOException;
 
+    /**
+     * reserve a cpu for this sink if affinity scheduling is enabled and then start it
+     */
+    public void start()
+    {
+        AffinityScheduler.reserve(this, upstream, placement);
+        Startup.mark(Startup.STAGE_STARTED);
+        super.start();
+    }
+
     public void run()
     {
         if (input==null) {
@@ -66,6 +99,8 @@ public abstract class SinkProcessor extends Thread implements Sink {
         }
 
         try {
+        	AffinityScheduler.started(this);
+        	Startup.mark(Startup.SINK_RUNNING);
         	consume();
         } catch (IOException ioe) {
             ioe.printStackTrace();
@@ -75,6 +110,10 @@ public abstract class SinkProcessor extends Thread implements Sink {
     		} catch (IOException ioe) {
     			ioe.printStackTrace();
     		}
+    		// hand any buffers cached by this thread back for reuse
+    		ChunkPool.releaseThreadCaches();
+    		AffinityScheduler.finished(this);
+    		Startup.markLast(Startup.SINK_FINISHED);
     	}
     }
 }
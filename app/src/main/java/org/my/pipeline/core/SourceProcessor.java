@@ -24,8 +24,10 @@
 
 package org.my.pipeline.core;
 
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Startup;
+
 import java.io.IOException;
-import java.io.PipedReader;
 import java.io.PipedWriter;
 
 /**
@@ -39,9 +41,15 @@ public abstract class SourceProcessor extends Thread implements Source {
 	 * the stream of data produced by this source
 	 */
 	protected PipedWriter output;
+	/**
+	 * where the affinity scheduler should place this source
+	 */
+	protected Placement placement;
 
 	protected SourceProcessor() {
 		output = null;
+		placement = Placement.FOLLOW;
+		Startup.mark(Startup.STAGE_CREATED);
 	}
 
 	
@@ -49,8 +57,15 @@ public abstract class SourceProcessor extends Thread implements Source {
 		if (output != null) {
 			throw new IOException("output already connected");
 		}
-		output = new PipedWriter();
-		sink.setInput(new PipedReader(output));
+		output = Link.connect(sink);
+	}
+
+	/**
+	 * provide a hint to the {@link AffinityScheduler} saying where this source should run
+	 * @param placement the placement hint
+	 */
+	public void setPlacement(Placement placement) {
+		this.placement = placement;
 	}
 
     /**
@@ -61,12 +76,23 @@ public abstract class SourceProcessor extends Thread implements Source {
      */
 	public abstract void produce() throws IOException;
 
+	/**
+	 * reserve a cpu for this source if affinity scheduling is enabled and then start it
+	 */
+	public void start() {
+		AffinityScheduler.reserve(this, null, placement);
+		Startup.mark(Startup.STAGE_STARTED);
+		super.start();
+	}
+
 	public void run() {
 		if (output==null) {
 			//nothing to do
 			return;
 		}
 		try {
+			AffinityScheduler.started(this);
+			Startup.mark(Startup.SOURCE_RUNNING);
 			produce();
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
@@ -76,6 +102,9 @@ public abstract class SourceProcessor extends Thread implements Source {
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 			}
+			// hand any buffers cached by this thread back for reuse
+			ChunkPool.releaseThreadCaches();
+			AffinityScheduler.finished(this);
 		}
 	}
 }
@@ -24,8 +24,9 @@
 
 package org.my.pipeline.core;
 
+import org.my.pipeline.util.ChunkPool;
+
 import java.io.IOException;
-import java.io.PipedReader;
 import java.io.PipedWriter;
 
 /**
@@ -35,6 +36,11 @@ import java.io.PipedWriter;
  * from exactly two sinks.
  */
 public class TeeProcessor extends PipelineProcessor {
+    /**
+     * the size of the blocks copied from the input to the outputs
+     */
+    private static final int BLOCK_SIZE = 4096;
+
     protected PipedWriter output2;
 
     public TeeProcessor(Source source) throws IOException {
@@ -52,8 +58,7 @@ public class TeeProcessor extends PipelineProcessor {
         if (output == null) {
             super.feed(sink);
         } else if (output2 == null) {
-            output2 = new PipedWriter();
-            sink.setInput(new PipedReader(output2));
+            output2 = Link.connect(sink);
         } else {
             throw new IOException("output already connected");
         }
@@ -69,14 +74,22 @@ public class TeeProcessor extends PipelineProcessor {
             throw new IOException("unconnected tee");
         }
 
+        // both outputs are written from the same pooled block
+        ChunkPool.Chunk chunk = ChunkPool.charPool(BLOCK_SIZE).allocate();
         try {
-            int next = input.read();
-            while (next != -1) {
-                output.write(next);
-                output2.write(next);
-                next = input.read();
+            char[] chars = chunk.chars();
+            int count = input.read(chars);
+            while (count != -1) {
+                output.write(chars, 0, count);
+                output2.write(chars, 0, count);
+                if (!input.ready()) {
+                    output.flush();
+                    output2.flush();
+                }
+                count = input.read(chars);
             }
         } finally {
+            chunk.release();
         	output2.close();
         }
     }
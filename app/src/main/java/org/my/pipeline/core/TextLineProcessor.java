@@ -25,6 +25,8 @@
 package org.my.pipeline.core;
 
 import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
 import java.io.Reader;
 
 /**
@@ -34,19 +36,62 @@ import java.io.Reader;
  *
  * Subclasses of TextLineProcessor must provide an implementation of method transform which accepts a line
  * of text as a String and returns a transformed version of the line as a String
+ *
+ * A TextLineProcessor may also be run by a {@link CooperativeScheduler} rather than being started as
+ * a thread, in which case its input is processed a few lines at a time by calls to {@link #step(int, int)}.
  */
 
-public abstract class TextLineProcessor extends PipelineProcessor {
+public abstract class TextLineProcessor extends PipelineProcessor implements CooperativeStage {
+
+    /**
+     * the number of characters a cooperative step takes from its input link at a time
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * the text of a partial line read by a cooperative step
+     */
+    private StringBuilder pending;
+    /**
+     * true if the last character read by a cooperative step was a CR
+     */
+    private boolean pendingCr;
+    /**
+     * transformed output which a cooperative step could not write without waiting
+     */
+    private StringBuilder backlog;
+    /**
+     * characters taken from the input link by a cooperative step
+     */
+    private char[] chunk;
+    /**
+     * the position of the first character in the chunk which has not yet been scanned
+     */
+    private int chunkStart;
+    /**
+     * the position after the last character in the chunk
+     */
+    private int chunkEnd;
 
     public TextLineProcessor(Source source) throws IOException
     {
         super(source);
+        pending = null;
+        pendingCr = false;
+        backlog = null;
+        chunk = null;
+        chunkStart = 0;
+        chunkEnd = 0;
     }
 
     /**
      * reads successive lines of text from its input up to a CR/LF or LF separator (or to EOF),
      * calling {@link #transform(String)} to allow the text line to be substituted and then
-     * writes the test line followedby the same line terminator.
+     * writes the test line followedby the same line terminator. the output is flushed whenever
+     * no more input is immediately available so that a slow trickle of lines, such as that
+     * produced by a tailing FileSource, is not held up in the pipeline. a RuntimeException thrown
+     * by {@link #transform(String)} is rethrown as an IOException so that the stage closes its
+     * input as well as its output and the upstream stages stop too.
      * @throws IOException
      */
     public void processPipeline() throws IOException
@@ -54,7 +99,7 @@ public abstract class TextLineProcessor extends PipelineProcessor {
         LineBuffer lineBuffer = new LineBuffer(input);
         String text = lineBuffer.readText();
         while (text != null) {
-            text = transform(text);
+            text = transformLine(text);
             output.write(text);
             if (lineBuffer.isCrLf()) {
                 output.write('\r');
@@ -62,10 +107,186 @@ public abstract class TextLineProcessor extends PipelineProcessor {
             } else if (lineBuffer.isLf()){
                 output.write('\n');
             }
+            if (!input.ready()) {
+                // we are about to wait for more input so make sure the downstream
+                // stage is woken to process what we have written
+                output.flush();
+            }
             text = lineBuffer.readText();
         }
     }
 
+    public PipedReader getInput()
+    {
+        return input;
+    }
+
+    public PipedWriter getOutput()
+    {
+        return output;
+    }
+
+    /**
+     * reads and transforms lines from the input without waiting, stopping when there is no more
+     * input available, when the output is full or when the quantum has been used up. lines are
+     * split and terminated in the same way as by {@link #processPipeline()}. output which does
+     * not fit in the output link is held back and written by the next step so that a step never
+     * waits for the downstream stage. input is taken from the link a chunk at a time and any part
+     * of the chunk left unscanned when the quantum is used up is scanned by the next step.
+     * @param maxLines the maximum number of lines to process
+     * @param maxChars the maximum number of characters to process
+     * @return whether the step yielded, blocked or finished
+     * @throws IOException
+     */
+    public Status step(int maxLines, int maxChars) throws IOException
+    {
+        Link inputLink = ((LinkReader)input).getLink();
+        Link outputLink = ((LinkWriter)output).getLink();
+        if (pending == null) {
+            pending = new StringBuilder();
+            backlog = new StringBuilder();
+            chunk = new char[CHUNK_SIZE];
+        }
+        int lines = 0;
+        int chars = 0;
+        while (lines < maxLines && chars < maxChars) {
+            if (!drainBacklog(outputLink)) {
+                // wait for the downstream stage to make room
+                return Status.BLOCKED;
+            }
+            if (chunkStart == chunkEnd) {
+                int count = inputLink.poll(chunk, 0, chunk.length);
+                if (count == Link.NONE) {
+                    // as in processPipeline make sure a downstream stage which is
+                    // waiting on the output link is woken to process what we wrote
+                    output.flush();
+                    return Status.BLOCKED;
+                }
+                if (count < 0) {
+                    // a CR on its own at EOF is just part of the text
+                    if (pendingCr) {
+                        pendingCr = false;
+                        pending.append('\r');
+                    }
+                    // write any final line which has no terminator
+                    if (pending.length() > 0) {
+                        writeLine(null);
+                    }
+                    if (!drainBacklog(outputLink)) {
+                        // we will be resumed when there is room and will see EOF again
+                        return Status.BLOCKED;
+                    }
+                    return Status.DONE;
+                }
+                chunkStart = 0;
+                chunkEnd = count;
+            }
+            if (pendingCr) {
+                pendingCr = false;
+                char next = chunk[chunkStart++];
+                chars++;
+                if (next == '\n') {
+                    writeLine("\r\n");
+                    lines++;
+                } else {
+                    // a CR on its own is just part of the text as is whatever follows it
+                    pending.append('\r');
+                    pending.append(next);
+                }
+                continue;
+            }
+            // copy everything up to the next terminator in one go
+            int limit = Math.min(chunkEnd, chunkStart + (maxChars - chars));
+            int i = chunkStart;
+            char next = 0;
+            while (i < limit && (next = chunk[i]) != '\n' && next != '\r') {
+                i++;
+            }
+            pending.append(chunk, chunkStart, i - chunkStart);
+            chars += i - chunkStart;
+            chunkStart = i;
+            if (i < limit) {
+                chunkStart++;
+                chars++;
+                if (next == '\r') {
+                    pendingCr = true;
+                } else {
+                    writeLine("\n");
+                    lines++;
+                }
+            }
+        }
+        return Status.YIELDED;
+    }
+
+    public void finish(IOException failure)
+    {
+        try {
+            output.close();
+        } catch (IOException ioe) {
+            // nothing more can be done
+        }
+        if (failure != null) {
+            try {
+                input.close();
+            } catch (IOException ioe) {
+                // the input may be the source of the original exception
+            }
+        }
+    }
+
+    private void writeLine(String terminator) throws IOException
+    {
+        String text = transformLine(pending.toString());
+        pending.setLength(0);
+        backlog.append(text);
+        if (terminator != null) {
+            backlog.append(terminator);
+        }
+    }
+
+    /**
+     * transform a line, turning a failure of the transform into an I/O failure of the stage. this
+     * is how, for example, a pattern which is only compiled when the first line arrives because
+     * startup is lazy reports that it is invalid
+     */
+    private String transformLine(String line) throws IOException
+    {
+        try {
+            return transform(line);
+        } catch (RuntimeException re) {
+            // print it as the uncaught exception used to be since run() does not report failures
+            re.printStackTrace();
+            IOException ioe = new IOException("transform failed in " + getName() + " : " + re.getMessage());
+            ioe.initCause(re);
+            throw ioe;
+        }
+    }
+
+    /**
+     * write as much of the backlog as the output link can accept without waiting
+     * @return true if the backlog is now empty otherwise false
+     */
+    private boolean drainBacklog(Link link) throws IOException
+    {
+        int length = backlog.length();
+        if (length == 0) {
+            return true;
+        }
+        // only this stage writes the link so the space available can only grow
+        int n = Math.min(length, link.space());
+        if (n == length) {
+            output.write(backlog.toString());
+            backlog.setLength(0);
+            return true;
+        }
+        if (n > 0) {
+            output.write(backlog.substring(0, n));
+            backlog.delete(0, n);
+        }
+        return false;
+    }
+
     /**
      * abstract method provided to allow subclasses to define how each text line istobe transformed
      * @param line a line of text from the file omitting any line terminator
@@ -113,6 +334,10 @@ public abstract class TextLineProcessor extends PipelineProcessor {
                         return builder.toString();
                     } else {
                         builder.append(c);
+                        if (next < 0) {
+                            // a CR on its own at EOF is just part of the text
+                            break;
+                        }
                         c = (char)next;
                     }
                 } else  if (c == '\n') {
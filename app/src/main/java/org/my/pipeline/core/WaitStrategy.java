@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import org.my.pipeline.util.Backoff;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * WaitStrategy identifies how a thread using a {@link Link} waits for input to read or for space
+ * to write. BLOCKING waits on a condition of the link's lock, one for input and one for space,
+ * much as a PipedReader or PipedWriter waits on its monitor. The thread at the other end only
+ * signals the condition once it has a reasonable amount of data or space to hand over. This is cheapest when throughput matters more than latency.<p/>
+ *
+ * The other strategies wait without holding the link's lock and the thread at the other end
+ * calls LockSupport.unpark as soon as it has changed the state of the link, so a character
+ * written to an empty link is seen by the reader within microseconds. BUSY_SPIN never gives up
+ * the CPU, giving the lowest latency at the cost of a whole core for each waiting stage.
+ * SPIN_YIELD_PARK spins briefly, then yields and then parks, so short waits are fast while long
+ * ones cost very little CPU. PARK parks immediately, relying entirely on being unparked.
+ */
+public enum WaitStrategy
+{
+    BLOCKING,
+    BUSY_SPIN,
+    SPIN_YIELD_PARK,
+    PARK;
+
+    /**
+     * the longest time a parked thread waits before rechecking the link, in case the thread at
+     * the other end has died
+     */
+    private static final long MAX_PARK_NANOS = 1000 * 1000L;
+
+    /**
+     * pause before rechecking a link. this is only called for strategies other than BLOCKING.
+     * @param attempt the number of times the link has already been checked, counting from 0
+     */
+    public void pause(int attempt)
+    {
+        switch (this) {
+            case BUSY_SPIN:
+                break;
+            case SPIN_YIELD_PARK:
+                Backoff.pause(attempt);
+                break;
+            case PARK:
+                LockSupport.parkNanos(MAX_PARK_NANOS);
+                break;
+            default:
+                throw new IllegalStateException("cannot pause for wait strategy " + this);
+        }
+    }
+
+    /**
+     * identify a wait strategy by name
+     * @param name the name of a strategy in any case, using either '_' or '-' as separator
+     * @return the corresponding strategy
+     * @throws IllegalArgumentException if the name does not identify a strategy
+     */
+    public static WaitStrategy forName(String name)
+    {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -27,6 +27,10 @@ package org.my.pipeline.impl;
 import org.my.pipeline.core.Source;
 import org.my.pipeline.core.TextLineProcessor;
 import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.EpochLog;
+import org.my.pipeline.util.LiteralPattern;
+import org.my.pipeline.util.PatternCache;
+import org.my.pipeline.util.Startup;
 
 import java.io.IOException;
 import java.util.regex.Matcher;
@@ -45,31 +49,82 @@ import java.util.regex.Pattern;
  *
  * So, for example, given pattern "the [A-Za-z]+", prefix "DET" and input text "the boy threw the
  * stick at the boy" the bindings would be [ "DET1" -> "the boy", "DET2" -> "the stick" ]. By contrast,
- * with pattern "the \([A-Za-z]+\)" and prefix N the bindings would be [ "N1" -> "boy", "N2" -> "stick" ].
+ * with pattern "the \([A-Za-z]+\)" and prefix N the bindings would be [ "N1" -> "boy", "N2" -> "stick" ].<p/>
+ *
+ * Patterns consisting of a literal prefix followed by a single repeated character class, like the two
+ * examples above, are matched using a {@link LiteralPattern} rather than a regular expression matcher.
  */
 
 public class Binder extends TextLineProcessor
 {
+    private String regex;
     private Pattern pattern;
+    private LiteralPattern literal;
+    private int[] match;
     private String prefix;
     private int counter;
     private BindingMap bindings;
+    private EpochLog epochs;
     public Binder(String regex, String prefix, BindingMap bindings, Source source) throws IOException {
         super(source);
         createMatcher(regex);
         this.prefix = prefix;
-        this.counter = 1;
         this.bindings = bindings;
+        // continue numbering after any preloaded or restored bindings
+        this.counter = bindings.getHighestIndex(prefix) + 1;
+        // replacers need our epochs in ordered mode and our reference stamps in a bounded map
+        this.epochs = (bindings.isOrdered() || bindings.getCapacity() >= 0 ? new EpochLog(prefix) : null);
+    }
+
+    /**
+     * @return the log of the epoch reached after each line or null if the map is neither ordered nor bounded
+     */
+    EpochLog getEpochLog() {
+        return epochs;
     }
 
     private void createMatcher(String regex) throws IOException {
-        pattern = Pattern.compile(regex);
+        // reuse the compiled forms if another stage has been created with the same pattern
+        PatternCache cache = PatternCache.getInstance();
+        // use a hand-specialized scanner when the pattern is simple enough
+        literal = cache.literal(regex);
+        // the compiled pattern is only needed when the scanner cannot be used and,
+        // for a lazy startup, is not compiled until the first line arrives
+        this.regex = regex;
+        pattern = (literal == null && !Startup.isLazy() ? cache.pattern(regex) : null);
+        match = new int[4];
     }
 
     @Override
     public String transform(String line) {
         // seach for successive matches
         // look up previous bindings or bind them if they are new
+        if (literal != null) {
+            bindLiteral(line);
+        } else {
+            bindRegex(line);
+        }
+        if (epochs != null) {
+            // let downstream replacers know which bindings this line may see
+            epochs.record(counter - 1, bindings.getReferenceStamp());
+        }
+        // return the original line unchanged
+
+        return line;
+    }
+
+    private void bindLiteral(String line) {
+        int current = 0;
+        while (literal.find(line, current, match)) {
+            findOrCreateBinding(line.substring(match[2], match[3]));
+            current = match[3];
+        }
+    }
+
+    private void bindRegex(String line) {
+        if (pattern == null) {
+            pattern = PatternCache.getInstance().pattern(regex);
+        }
         Matcher matcher = pattern.matcher(line);
         int current = 0;
         boolean isMatch = matcher.find(current);
@@ -87,21 +142,16 @@ public class Binder extends TextLineProcessor
             current = end;
             isMatch = matcher.find(current);
         }
-        // return the original line unchanged
-
-        return line;
     }
 
     private String findOrCreateBinding(String matchedText) {
-        String next = prefix + counter;
-        String identifier = bindings.putIfAbsent(next, matchedText);
-        if (identifier == null) {
-            // this was a new binding
-            counter++;
-            return next;
-        } else {
-            // this was an existing binding
-            return identifier;
+        // the map allocates the index for a new binding so stages sharing it never collide
+        String identifier = bindings.bind(prefix, matchedText);
+        int highest = bindings.getHighestIndex(prefix);
+        if (highest >= counter) {
+            // a new binding was made, by this stage or by another one sharing the prefix
+            counter = highest + 1;
         }
+        return identifier;
     }
 }
@@ -27,6 +27,10 @@ package org.my.pipeline.impl;
 import org.my.pipeline.core.Source;
 import org.my.pipeline.core.TextLineProcessor;
 import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.EpochLog;
+import org.my.pipeline.util.LiteralPattern;
+import org.my.pipeline.util.PatternCache;
+import org.my.pipeline.util.Startup;
 
 import java.io.IOException;
 import java.util.regex.Matcher;
@@ -43,25 +47,52 @@ import java.util.regex.Pattern;
  * stick at the boy" the output text would be "${DET1} threw ${DET2} at ${DET1}" and the  * bindings would
  * be ["DET1" -> "the boy", "DET2" -> "the stick"]. By contrast, with pattern "the \([A-Za-z]+\)"
  * and prefix N the output text would be "the ${N1} threw the ${N2} at the ${N1}" and the bindings would be
- * ["N1" -> "boy", "N2" -> "stick"].
+ * ["N1" -> "boy", "N2" -> "stick"].<p/>
+ *
+ * As with {@link Binder} simple patterns are matched using a {@link LiteralPattern}.
  */
 
 public class BindingInserter extends TextLineProcessor
 {
+    private String regex;
     private Pattern pattern;
+    private LiteralPattern literal;
+    private int[] match;
     private String prefix;
     private int counter;
     private BindingMap bindings;
+    private EpochLog epochs;
+    private StringBuilder builder;
     public BindingInserter(String regex, String prefix, BindingMap bindings, Source source) throws IOException {
         super(source);
         createMatcher(regex);
         this.prefix = prefix;
-        this.counter = 1;
         this.bindings = bindings;
+        // continue numbering after any preloaded or restored bindings
+        this.counter = bindings.getHighestIndex(prefix) + 1;
+        // replacers need our epochs in ordered mode and our reference stamps in a bounded map
+        this.epochs = (bindings.isOrdered() || bindings.getCapacity() >= 0 ? new EpochLog(prefix) : null);
+        // reused for every transformed line
+        this.builder = new StringBuilder(256);
+    }
+
+    /**
+     * @return the log of the epoch reached after each line or null if the map is neither ordered nor bounded
+     */
+    EpochLog getEpochLog() {
+        return epochs;
     }
 
     private void createMatcher(String regex) throws IOException {
-        pattern = Pattern.compile(regex);
+        // reuse the compiled forms if another stage has been created with the same pattern
+        PatternCache cache = PatternCache.getInstance();
+        // use a hand-specialized scanner when the pattern is simple enough
+        literal = cache.literal(regex);
+        // the compiled pattern is only needed when the scanner cannot be used and,
+        // for a lazy startup, is not compiled until the first line arrives
+        this.regex = regex;
+        pattern = (literal == null && !Startup.isLazy() ? cache.pattern(regex) : null);
+        match = new int[4];
     }
 
     @Override
@@ -69,11 +100,29 @@ public class BindingInserter extends TextLineProcessor
         // seach for successive matches
         // look up previous bindings or bind them if they are new
         // replace them
-        StringBuilder builder = new StringBuilder();
+        String result = (literal != null ? transformLiteral(line) : transformRegex(line));
+        if (epochs != null) {
+            // let downstream replacers know which bindings this line may see
+            epochs.record(counter - 1, bindings.getReferenceStamp());
+        }
+        return result;
+    }
+
+    /**
+     * locate matches using the regular expression
+     */
+    private String transformRegex(String line) {
+        if (pattern == null) {
+            pattern = PatternCache.getInstance().pattern(regex);
+        }
         Matcher matcher = pattern.matcher(line);
-        char[] chars = line.toCharArray();
         int current = 0;
         boolean isMatch = matcher.find(current);
+        if (!isMatch) {
+            // nothing to replace
+            return line;
+        }
+        builder.setLength(0);
         while (isMatch) {
             int start;
             int end;
@@ -89,9 +138,7 @@ public class BindingInserter extends TextLineProcessor
             }
             String binding = getBinding(matchedText);
             // copy text up to match and bound name and then restart from end of match
-            while (current < start) {
-                builder.append(chars[current++]);
-            }
+            builder.append(line, current, start);
             builder.append("${");
             builder.append(binding);
             builder.append("}");
@@ -99,23 +146,44 @@ public class BindingInserter extends TextLineProcessor
             isMatch = matcher.find(current);
         }
         // if we have any text left over then append it too
+        builder.append(line, current, line.length());
+        return builder.toString();
+    }
 
-        while (current < chars.length) {
-            builder.append(chars[current++]);
+    /**
+     * equivalent to {@link #transformRegex(String)} but using the literal pattern to locate matches
+     */
+    private String transformLiteral(String line) {
+        int current = 0;
+        if (!literal.find(line, current, match)) {
+            // nothing to replace
+            return line;
         }
+        builder.setLength(0);
+        do {
+            int start = match[2];
+            int end = match[3];
+            String binding = getBinding(line.substring(start, end));
+            // copy text up to match and bound name and then restart from end of match
+            builder.append(line, current, start);
+            builder.append("${");
+            builder.append(binding);
+            builder.append("}");
+            current = end;
+        } while (literal.find(line, current, match));
+        // if we have any text left over then append it too
+        builder.append(line, current, line.length());
         return builder.toString();
     }
 
     private String getBinding(String matchedText) {
-        String next = prefix + counter;
-        String identifier = bindings.putIfAbsent(next, matchedText);
-        if (identifier == null) {
-            // this was a new binding
-            counter++;
-            return next;
-        } else {
-            // this was an existing binding
-            return identifier;
+        // the map allocates the index for a new binding so stages sharing it never collide
+        String identifier = bindings.bind(prefix, matchedText);
+        int highest = bindings.getHighestIndex(prefix);
+        if (highest >= counter) {
+            // a new binding was made, by this stage or by another one sharing the prefix
+            counter = highest + 1;
         }
+        return identifier;
     }
 }
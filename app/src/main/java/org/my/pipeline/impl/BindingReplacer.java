@@ -24,13 +24,15 @@
 
 package org.my.pipeline.impl;
 
+import org.my.pipeline.core.PipelineProcessor;
 import org.my.pipeline.core.Source;
 import org.my.pipeline.core.TextLineProcessor;
 import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.EpochLog;
 
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A BindingReplacer is a text line processor which searches for references to bindings in
@@ -40,56 +42,249 @@ import java.util.regex.Pattern;
  *
  * So, for example, given input text "${DET1} threw ${DET2} at ${DET1}" and bindings
  * ["DET1" -> "a boy", "DET2" -> "a stick"] the output text would be "a boy threw a
- * stick at a boy".
+ * stick at a boy".<p/>
+ *
+ * A reference is "${" followed by an identifier made up of one or more letters and a number
+ * with no leading zero, followed by "}". References are located with a hand-written scanner
+ * rather than a regular expression. Lines which contain no references, or only references
+ * to unbound identifiers, are returned unchanged without being copied. The binding map's
+ * Bloom filter is consulted before each lookup so that unbound references are skipped without
+ * creating a String for the identifier.<p/>
+ *
+ * If the binding map is in ordered mode then the replacer reads the epoch reached by each
+ * Binder or BindingInserter in its chain of upstream stages for each line and only replaces a reference if the binding
+ * was made while processing the same or an earlier line. This makes the output independent of
+ * how far ahead of the replacer the upstream stages are running. The map must be put into
+ * ordered mode before any of the stages are created.<p/>
+ *
+ * If the binding map is bounded then the replacer advances a {@link BindingMap.Watermark} as
+ * it completes each line so that the map does not evict a binding referenced by an upstream
+ * stage before the reference has been replaced.
  */
 
 public class BindingReplacer extends TextLineProcessor
 {
-    private Pattern pattern;
     private BindingMap bindings;
+    private StringBuilder builder;
+    private String[] epochPrefixes;
+    private EpochLog.Cursor[] cursors;
+    private int[] lineEpochs;
+    private boolean ordered;
+    private BindingMap.Watermark watermark;
 
     public BindingReplacer(BindingMap bindings, Source source) throws IOException {
         super(source);
         this.bindings = bindings;
-        this.pattern = Pattern.compile("\\$\\{([A-Za-z]+[1-9][0-9]*)\\}");
+        // reused for every transformed line
+        this.builder = new StringBuilder(256);
+        this.ordered = bindings.isOrdered();
+        boolean bounded = bindings.getCapacity() >= 0;
+        if (ordered || bounded) {
+            // track the epochs and reference stamps of the stages upstream of us
+            List<EpochLog> logs = upstreamLogs(source);
+            epochPrefixes = new String[logs.size()];
+            cursors = new EpochLog.Cursor[logs.size()];
+            lineEpochs = new int[logs.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                epochPrefixes[i] = logs.get(i).getPrefix();
+                cursors[i] = logs.get(i).newCursor();
+            }
+            if (bounded && cursors.length > 0) {
+                // stop the map evicting bindings which our upstream stages have referenced
+                // until we have replaced the references
+                watermark = bindings.openWatermark();
+            }
+        }
+    }
+
+    @Override
+    public void processPipeline() throws IOException {
+        try {
+            super.processPipeline();
+        } finally {
+            if (watermark != null) {
+                watermark.close();
+            }
+        }
+    }
+
+    @Override
+    public void finish(IOException failure) {
+        if (watermark != null) {
+            watermark.close();
+        }
+        super.finish(failure);
     }
 
     @Override
     public String transform(String line) {
-        // seach for successive matches
-        // look up previous bindings or bind them if they are new
+        // seach for successive references
+        // look up their bindings
         // replace them
-        StringBuilder builder = new StringBuilder();
-        Matcher matcher = pattern.matcher(line);
-        char[] chars = line.toCharArray();
+        if (cursors == null) {
+            return replaceReferences(line);
+        }
+        // every reference made by an upstream stage up to the lowest stamp it recorded
+        // for this line will have been resolved once the line has been processed
+        long stamp = Long.MAX_VALUE;
+        for (int i = 0; i < cursors.length; i++) {
+            lineEpochs[i] = cursors[i].next();
+            stamp = Math.min(stamp, cursors[i].getStamp());
+        }
+        String result = replaceReferences(line);
+        if (watermark != null) {
+            watermark.advance(stamp);
+        }
+        return result;
+    }
+
+    /**
+     * replace the references in a line with their bound values
+     * @param line the line of text
+     * @return the line with its references replaced or the original line if nothing was replaced
+     */
+    private String replaceReferences(String line) {
+        int index = line.indexOf("${");
+        if (index < 0) {
+            return line;
+        }
+        boolean replaced = false;
         int current = 0;
-        boolean isMatch = matcher.find(current);
-        while (isMatch) {
-            int start = matcher.start();
-            int end = matcher.end();
-            String matchedText = matcher.group(1);
-            String value = bindings.get(matchedText);
-            // copy text up to match
-            while (current < start) {
-                builder.append(chars[current++]);
+        while (index >= 0) {
+            int end = scanReference(line, index);
+            if (end < 0) {
+                // not a valid reference so keep looking
+                index = line.indexOf("${", index + 1);
+                continue;
             }
+            if (!bindings.mightBeBound(line, index + 2, end - 1)) {
+                // definitely unbound so pass the reference through without a lookup
+                index = line.indexOf("${", end);
+                continue;
+            }
+            if (ordered && !isVisible(line, index + 2, end - 1)) {
+                // bound for a later line so pass the reference through
+                index = line.indexOf("${", end);
+                continue;
+            }
+            String value = bindings.get(line.substring(index + 2, end - 1));
             // if there is a bound value replace it otherwise just pass the binding reference through
             if (value != null) {
+                if (!replaced) {
+                    builder.setLength(0);
+                    replaced = true;
+                }
+                // copy text up to the reference then the value
+                builder.append(line, current, index);
                 builder.append(value);
                 current = end;
-            } else {
-                while (current < end) {
-                    builder.append(chars[current++]);
-                }
             }
-            // restart from end of match
-            isMatch = matcher.find(current);
+            // restart from end of reference
+            index = line.indexOf("${", end);
+        }
+        if (!replaced) {
+            // nothing was replaced
+            return line;
         }
         // if we have any text left over then append it too
+        builder.append(line, current, line.length());
+        return builder.toString();
+    }
+
+    /**
+     * collect the epoch logs of the Binder and BindingInserter stages feeding this replacer by
+     * following the chain of processors back to the pipeline's source. stages in other pipelines
+     * or on other branches of a tee never see our lines so they must not be waited for
+     * @param source the source feeding this replacer
+     * @return the logs in downstream to upstream order
+     */
+    private static List<EpochLog> upstreamLogs(Source source)
+    {
+        List<EpochLog> logs = new ArrayList<EpochLog>();
+        while (source instanceof PipelineProcessor) {
+            EpochLog log = null;
+            if (source instanceof Binder) {
+                log = ((Binder) source).getEpochLog();
+            } else if (source instanceof BindingInserter) {
+                log = ((BindingInserter) source).getEpochLog();
+            }
+            if (log != null) {
+                logs.add(log);
+            }
+            source = ((PipelineProcessor) source).getUpstream();
+        }
+        return logs;
+    }
 
-        while (current < chars.length) {
-            builder.append(chars[current++]);
+    /**
+     * check for a binding reference of the form ${Aaa99} at a given position
+     * @param line the text being scanned
+     * @param index the position of the "${" which starts the reference
+     * @return the position after the closing "}" or -1 if there is no valid reference
+     */
+    private static int scanReference(String line, int index)
+    {
+        int length = line.length();
+        int i = index + 2;
+        int letters = i;
+        while (i < length && isLetter(line.charAt(i))) {
+            i++;
         }
-        return builder.toString();
+        if (i == letters || i >= length) {
+            return -1;
+        }
+        char c = line.charAt(i);
+        if (c < '1' || c > '9') {
+            return -1;
+        }
+        i++;
+        while (i < length && (c = line.charAt(i)) >= '0' && c <= '9') {
+            i++;
+        }
+        if (i >= length || line.charAt(i) != '}') {
+            return -1;
+        }
+        return i + 1;
+    }
+
+    /**
+     * in ordered mode check whether a binding was made before the end of the current line
+     * @param line the text being scanned
+     * @param start the start of the identifier
+     * @param end the end of the identifier
+     * @return false if the binding belongs to a later line otherwise true
+     */
+    private boolean isVisible(String line, int start, int end)
+    {
+        int digits = start;
+        while (isLetter(line.charAt(digits))) {
+            digits++;
+        }
+        int index = -1;
+        for (int i = 0; i < epochPrefixes.length; i++) {
+            String prefix = epochPrefixes[i];
+            if (prefix.length() == digits - start && line.regionMatches(start, prefix, 0, prefix.length())) {
+                if (end - digits > 9) {
+                    // too big to have been allocated yet
+                    return false;
+                }
+                if (index < 0) {
+                    index = Integer.parseInt(line.substring(digits, end));
+                }
+                // several upstream stages may share the prefix so any one of them may have made it
+                if (index <= lineEpochs[i]) {
+                    // the binding exists but its creator may still be publishing it
+                    bindings.awaitPublished(prefix, index);
+                    return true;
+                }
+            }
+        }
+        // only visible if not created by an upstream stage
+        return index < 0;
+    }
+
+    private static boolean isLetter(char c)
+    {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
     }
 }
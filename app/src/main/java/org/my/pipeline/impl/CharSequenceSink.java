@@ -24,22 +24,34 @@
 
 package org.my.pipeline.impl;
 
+import org.my.pipeline.core.CooperativeStage;
+import org.my.pipeline.core.Link;
+import org.my.pipeline.core.LinkReader;
 import org.my.pipeline.core.SinkProcessor;
 import org.my.pipeline.core.Source;
 
 import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
 
 /**
  * CharSequenceSink is a data Sink which collects the characters from its input stream
  * making them available as a CharSequence.
  */
-public class CharSequenceSink extends SinkProcessor implements CharSequence {
+public class CharSequenceSink extends SinkProcessor implements CharSequence, CooperativeStage {
+    /**
+     * the number of characters a cooperative step takes from its input link at a time
+     */
+    private static final int CHUNK_SIZE = 1024;
+
     private StringBuffer buffer;
+    private char[] chunk;
 
     public CharSequenceSink(Source source) throws IOException
     {
         super(source);
         this.buffer = new StringBuffer();
+        this.chunk = null;
     }
 
     public void consume() throws IOException
@@ -51,6 +63,48 @@ public class CharSequenceSink extends SinkProcessor implements CharSequence {
         }
     }
 
+    public PipedReader getInput()
+    {
+        return input;
+    }
+
+    public PipedWriter getOutput()
+    {
+        return null;
+    }
+
+    /**
+     * collects whatever input is available without waiting
+     */
+    public Status step(int maxLines, int maxChars) throws IOException
+    {
+        Link link = ((LinkReader)input).getLink();
+        if (chunk == null) {
+            chunk = new char[CHUNK_SIZE];
+        }
+        int total = 0;
+        while (total < maxChars) {
+            int count = link.poll(chunk, 0, Math.min(chunk.length, maxChars - total));
+            if (count == Link.NONE) {
+                return Status.BLOCKED;
+            } else if (count < 0) {
+                return Status.DONE;
+            }
+            buffer.append(chunk, 0, count);
+            total += count;
+        }
+        return Status.YIELDED;
+    }
+
+    public void finish(IOException failure)
+    {
+        try {
+            input.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
     public int length() {
         return buffer.length();
     }
@@ -24,22 +24,32 @@
 
 package org.my.pipeline.impl;
 
+import org.my.pipeline.core.CooperativeStage;
+import org.my.pipeline.core.Link;
+import org.my.pipeline.core.LinkWriter;
 import org.my.pipeline.core.SourceProcessor;
 
 import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
 
 /**
  * CharSequenceSource is a data Source which populates its output stream with bytes read from a CharSequence
  */
 
-public class CharSequenceSource extends SourceProcessor
+public class CharSequenceSource extends SourceProcessor implements CooperativeStage
 {
     CharSequence charseq;
+    /**
+     * the number of characters written by cooperative steps
+     */
+    private int written;
 
     public CharSequenceSource(CharSequence charseq) throws IOException
     {
         super();
         this.charseq = charseq;
+        this.written = 0;
     }
 
 	@Override
@@ -53,4 +63,48 @@ public class CharSequenceSource extends SourceProcessor
 			}
 		}
 	}
+
+    public PipedReader getInput()
+    {
+        return null;
+    }
+
+    public PipedWriter getOutput()
+    {
+        return output;
+    }
+
+    /**
+     * writes as much of the sequence as the output link can accept without waiting
+     */
+    public Status step(int maxLines, int maxChars) throws IOException
+    {
+        Link link = ((LinkWriter)output).getLink();
+        int l = charseq.length();
+        int n = Math.min(l - written, Math.min(maxChars, link.space()));
+        if (n > 0) {
+            int end = written + n;
+            if (charseq instanceof String) {
+                output.write((String)charseq, written, n);
+            } else {
+                for (int i = written; i < end; i++) {
+                    output.write(charseq.charAt(i));
+                }
+            }
+            written = end;
+        }
+        if (written == l) {
+            return Status.DONE;
+        }
+        return (n == maxChars ? Status.YIELDED : Status.BLOCKED);
+    }
+
+    public void finish(IOException failure)
+    {
+        try {
+            output.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,682 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.PipelineProcessor;
+import org.my.pipeline.core.Sink;
+import org.my.pipeline.core.SinkProcessor;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.core.SourceProcessor;
+import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Compression;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DirectorySource is a data Source which processes every file in a directory, optionally limited
+ * to the files whose names match a glob pattern, e.g. "*.log", and optionally including the files
+ * in subdirectories. Each file is read by its own {@link FileSource} and transformed by its own
+ * instance of a {@link PipelineTemplate}. A bounded number of these per-file pipelines run at
+ * the same time and all of them share one BindingMap, so a value bound while processing one
+ * file can be replaced in any other. The map must not be in ordered mode.<p/>
+ *
+ * The source can be used in one of two ways. If a sink is fed directly from the source then the
+ * output of every per-file pipeline is merged into the source's output. The outputs are merged
+ * a block of whole lines at a time, in whatever order the pipelines produce them, so a line is
+ * never interrupted by text from another file unless it is longer than a block. A final line which
+ * is not terminated is given a line feed. Alternatively, if an output directory is configured,
+ * each pipeline writes its own {@link FileSink} whose path relative to the output directory is
+ * the same as the input file's path relative to the input directory. The two modes cannot be
+ * mixed.<p/>
+ *
+ * Files are processed in name order. Progress, i.e. the number of files processed and the bytes
+ * read and written so far, can be obtained at any time using {@link #report(PrintStream)} and can
+ * also be printed at a regular interval while the source runs.
+ */
+public class DirectorySource extends SourceProcessor
+{
+    /**
+     * the default number of per-file pipelines which run at the same time
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+    /**
+     * the size of the blocks merged from the per-file pipelines
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+    /**
+     * the number of merged blocks which may be queued for each per-file pipeline
+     */
+    private static final int QUEUE_SIZE = 4;
+    /**
+     * marker queued by a worker once it has no more files to process
+     */
+    private static final ChunkPool.Chunk END = ChunkPool.marker();
+
+    private Path directory;
+    private PathMatcher matcher;
+    private PipelineTemplate template;
+    private BindingMap bindings;
+    private int concurrency;
+    private boolean recursive;
+    private Compression compression;
+    private Path outputDirectory;
+    private PrintStream progressOut;
+    private long progressInterval;
+    private long lastProgress;
+    private ConcurrentLinkedQueue<Path> files;
+    private BlockingQueue<ChunkPool.Chunk> queue;
+    private volatile boolean aborted;
+    private volatile int fileCount;
+    private AtomicInteger completed;
+    private AtomicInteger failed;
+    private AtomicLong bytesRead;
+    private AtomicLong bytesWritten;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    /**
+     * create a source
+     * @param directory the directory containing the files to be processed
+     * @param glob a pattern which the path of each file relative to the directory must match
+     * or null to process all files
+     * @param template the stages which process each file
+     * @param bindings the bindings shared by all the per-file pipelines or null if they should
+     * share a new empty map
+     * @throws IOException if the directory does not exist
+     */
+    public DirectorySource(String directory, String glob, PipelineTemplate template, BindingMap bindings) throws IOException
+    {
+        super();
+        this.directory = Paths.get(directory);
+        if (!Files.isDirectory(this.directory)) {
+            throw new IOException("not a directory " + directory);
+        }
+        if (bindings == null) {
+            bindings = new BindingMap();
+        } else if (bindings.isOrdered()) {
+            throw new IllegalArgumentException("an ordered binding map cannot be shared by several pipelines");
+        }
+        this.matcher = (glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        this.template = template;
+        this.bindings = bindings;
+        this.concurrency = DEFAULT_CONCURRENCY;
+        this.recursive = false;
+        this.compression = Compression.NONE;
+        this.outputDirectory = null;
+        this.progressOut = null;
+        this.progressInterval = 0;
+        this.files = null;
+        this.queue = null;
+        this.aborted = false;
+        this.fileCount = 0;
+        this.completed = new AtomicInteger();
+        this.failed = new AtomicInteger();
+        this.bytesRead = new AtomicLong();
+        this.bytesWritten = new AtomicLong();
+        this.startTime = 0;
+        this.endTime = 0;
+    }
+
+    /**
+     * configure the number of per-file pipelines which run at the same time. this must be called
+     * before the source is started.
+     * @param concurrency the number of pipelines
+     */
+    public void setConcurrency(int concurrency)
+    {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * configure whether files in subdirectories are processed. this must be called before the
+     * source is started.
+     * @param recursive true if subdirectories should be searched otherwise false
+     */
+    public void setRecursive(boolean recursive)
+    {
+        this.recursive = recursive;
+    }
+
+    /**
+     * configure the codec used to read each file and, in per-file mode, to write its output.
+     * this must be called before the source is started.
+     * @param compression the codec or AUTO to detect it from the contents of each input file
+     * and from the name of each output file
+     */
+    public void setCompression(Compression compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * write the output of each per-file pipeline to its own file rather than merging them.
+     * this must be called before the source is started.
+     * @param outputDirectory the directory in which output files are created
+     * @throws IOException if the output is already connected to a sink or the output directory
+     * is the input directory
+     */
+    public void setOutputDirectory(String outputDirectory) throws IOException
+    {
+        if (output != null) {
+            throw new IOException("merged output already connected");
+        }
+        Path path = Paths.get(outputDirectory);
+        if (path.toAbsolutePath().normalize().equals(directory.toAbsolutePath().normalize())) {
+            throw new IOException("output directory " + outputDirectory + " is the input directory");
+        }
+        this.outputDirectory = path;
+    }
+
+    /**
+     * print a progress report at regular intervals while the source runs and a final report
+     * when it finishes. this must be called before the source is started.
+     * @param out the stream to which reports are printed
+     * @param intervalMillis the interval between reports in milliseconds
+     */
+    public void setProgressReport(PrintStream out, long intervalMillis)
+    {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("progress interval must be positive");
+        }
+        this.progressOut = out;
+        this.progressInterval = intervalMillis;
+    }
+
+    public void feed(Sink sink) throws IOException
+    {
+        if (outputDirectory != null) {
+            throw new IOException("per-file output already configured");
+        }
+        super.feed(sink);
+    }
+
+    /**
+     * @return the number of files to be processed or 0 if the source has not yet listed the directory
+     */
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+
+    /**
+     * @return the number of files which have been processed
+     */
+    public int getCompletedCount()
+    {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of files which could not be processed
+     */
+    public int getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of bytes read from the files which have been processed
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the number of bytes written to per-file output files or the number of chars
+     * merged into the source's output
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return true if the output of each file is written to its own file
+     */
+    public boolean isPerFile()
+    {
+        return outputDirectory != null;
+    }
+
+    /**
+     * @return the time the source has been running in nanoseconds
+     */
+    public long getElapsedNanos()
+    {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+    }
+
+    /**
+     * print a one line summary of the progress made so far
+     * @param out the stream to which the report is printed
+     */
+    public void report(PrintStream out)
+    {
+        double seconds = getElapsedNanos() / 1000000000.0;
+        long read = getBytesRead();
+        StringBuilder builder = new StringBuilder();
+        builder.append(getName());
+        builder.append(" : ");
+        builder.append(getCompletedCount());
+        builder.append('/');
+        builder.append(getFileCount());
+        builder.append(" files (");
+        builder.append(getFailedCount());
+        builder.append(" failed) ");
+        builder.append(read);
+        builder.append(" bytes read ");
+        if (seconds > 0) {
+            builder.append(String.format("(%.2f MB/s) ", read / seconds / (1024 * 1024)));
+        }
+        builder.append(getBytesWritten());
+        builder.append(" written");
+        out.println(builder.toString());
+    }
+
+    /**
+     * the parent implementation only runs when the merged output is connected so
+     * we need to override it to handle per-file output
+     */
+    public void run()
+    {
+        if (outputDirectory == null) {
+            super.run();
+            return;
+        }
+        try {
+            produce();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            ChunkPool.releaseThreadCaches();
+        }
+    }
+
+    @Override
+    public void produce() throws IOException
+    {
+        List<Path> paths = listFiles();
+        fileCount = paths.size();
+        files = new ConcurrentLinkedQueue<Path>(paths);
+        startTime = System.nanoTime();
+        lastProgress = startTime;
+        int workerCount = Math.max(1, Math.min(concurrency, paths.size()));
+        if (outputDirectory == null) {
+            queue = new ArrayBlockingQueue<ChunkPool.Chunk>(QUEUE_SIZE * workerCount);
+        }
+        Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(getName() + "-worker-" + i) {
+                public void run()
+                {
+                    try {
+                        work();
+                    } finally {
+                        if (queue != null) {
+                            put(END);
+                        }
+                        ChunkPool.releaseThreadCaches();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        boolean finished = false;
+        try {
+            if (queue != null) {
+                merge(workerCount);
+            } else {
+                for (int i = 0; i < workerCount; i++) {
+                    while (!join(workers[i])) {
+                        progress();
+                    }
+                }
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                // make sure the workers do not stay blocked on a full queue
+                aborted = true;
+            }
+            for (int i = 0; i < workerCount; i++) {
+                while (!join(workers[i])) {
+                    // keep waiting
+                }
+            }
+            if (queue != null) {
+                ChunkPool.Chunk chunk = queue.poll();
+                while (chunk != null) {
+                    chunk.release();
+                    chunk = queue.poll();
+                }
+            }
+            endTime = System.nanoTime();
+            if (progressOut != null) {
+                report(progressOut);
+            }
+        }
+    }
+
+    /**
+     * copy the blocks queued by the per-file pipelines to our output until every worker has finished
+     */
+    private void merge(int workerCount) throws IOException
+    {
+        int ended = 0;
+        while (ended < workerCount) {
+            ChunkPool.Chunk chunk;
+            try {
+                chunk = queue.poll(pollInterval(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                throw new IOException("interrupted merging " + directory);
+            }
+            if (chunk == END) {
+                ended++;
+            } else if (chunk != null) {
+                try {
+                    output.write(chunk.chars(), 0, chunk.length());
+                    bytesWritten.addAndGet(chunk.length());
+                } finally {
+                    chunk.release();
+                }
+            }
+            progress();
+        }
+    }
+
+    private boolean join(Thread worker)
+    {
+        try {
+            worker.join(pollInterval());
+        } catch (InterruptedException ie) {
+            // keep waiting
+        }
+        return !worker.isAlive();
+    }
+
+    private long pollInterval()
+    {
+        return (progressOut == null ? 100 : Math.min(progressInterval, 100));
+    }
+
+    /**
+     * print a progress report if one is due
+     */
+    private void progress()
+    {
+        if (progressOut != null) {
+            long now = System.nanoTime();
+            if (now - lastProgress >= progressInterval * 1000000L) {
+                lastProgress = now;
+                report(progressOut);
+            }
+        }
+    }
+
+    /**
+     * @return the files to be processed in name order
+     */
+    private List<Path> listFiles() throws IOException
+    {
+        List<Path> paths = new ArrayList<Path>();
+        listFiles(directory, paths);
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private void listFiles(Path dir, List<Path> paths) throws IOException
+    {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    // don't process our own output
+                    if (recursive && (outputDirectory == null || !Files.exists(outputDirectory) || !Files.isSameFile(path, outputDirectory))) {
+                        listFiles(path, paths);
+                    }
+                } else if (Files.isRegularFile(path)) {
+                    if (matcher == null || matcher.matches(directory.relativize(path))) {
+                        paths.add(path);
+                    }
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * run per-file pipelines until there are no more files
+     */
+    private void work()
+    {
+        Path file = files.poll();
+        while (file != null && !aborted) {
+            if (process(file)) {
+                completed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            file = files.poll();
+        }
+    }
+
+    /**
+     * create and run a pipeline which processes one file
+     * @return true if the file was processed otherwise false
+     */
+    private boolean process(Path file)
+    {
+        try {
+            FileSource source = new FileSource(file.toString());
+            source.setCompression(compression);
+            PipelineProcessor[] processors = template.connect(source, bindings);
+            Source last = (processors.length == 0 ? source : processors[processors.length - 1]);
+            Path target = null;
+            SinkProcessor sink;
+            if (outputDirectory != null) {
+                target = outputDirectory.resolve(directory.relativize(file).toString());
+                if (target.getParent() != null) {
+                    Files.createDirectories(target.getParent());
+                }
+                FileSink fileSink = new FileSink(target.toString(), last);
+                fileSink.setCompression(compression);
+                sink = fileSink;
+            } else {
+                sink = new MergeSink(last);
+            }
+            List<Thread> stages = new ArrayList<Thread>();
+            stages.add(source);
+            Collections.addAll(stages, processors);
+            stages.add(sink);
+            runStages(stages);
+            bytesRead.addAndGet(Files.size(file));
+            if (target != null) {
+                bytesWritten.addAndGet(Files.size(target));
+            }
+            return !aborted;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * run the stages of a pipeline in pooled threads and wait for them all to finish. as with
+     * a {@link PipelineTemplate} this avoids starting a thread for every stage of every file.
+     */
+    private void runStages(List<Thread> stages)
+    {
+        Executor executor = PipelineTemplate.getExecutor();
+        final CountDownLatch done = new CountDownLatch(stages.size());
+        for (final Thread stage : stages) {
+            executor.execute(new Runnable() {
+                public void run()
+                {
+                    try {
+                        stage.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException ie) {
+                // keep waiting
+            }
+        }
+    }
+
+    /**
+     * queue a block for the merge
+     * @return true if the block was queued or false if the merge has been abandoned
+     */
+    private boolean put(ChunkPool.Chunk chunk)
+    {
+        try {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (aborted) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ie) {
+            // the merge has been abandoned
+            return false;
+        }
+    }
+
+    /**
+     * the sink at the end of a per-file pipeline in merged mode. it cuts its input into blocks
+     * which end on a line boundary and queues them for the merge.
+     */
+    private class MergeSink extends SinkProcessor
+    {
+        MergeSink(Source source) throws IOException
+        {
+            super(source);
+        }
+
+        public void consume() throws IOException
+        {
+            ChunkPool pool = ChunkPool.charPool(CHUNK_SIZE);
+            ChunkPool.Chunk chunk = pool.allocate();
+            try {
+                int length = 0;
+                int count = input.read(chunk.chars(), 0, chunk.chars().length);
+                while (count >= 0) {
+                    length += count;
+                    if (length == chunk.chars().length) {
+                        chunk = emit(pool, chunk, length);
+                        if (chunk == null) {
+                            return;
+                        }
+                        length = chunk.length();
+                    }
+                    count = input.read(chunk.chars(), length, chunk.chars().length - length);
+                }
+                if (length > 0 && chunk.chars()[length - 1] != '\n') {
+                    if (length == chunk.chars().length) {
+                        chunk = emit(pool, chunk, length);
+                        if (chunk == null) {
+                            return;
+                        }
+                        length = chunk.length();
+                    }
+                    chunk.chars()[length++] = '\n';
+                }
+                if (length > 0) {
+                    chunk.setLength(length);
+                    ChunkPool.Chunk last = chunk;
+                    chunk = null;
+                    if (!put(last)) {
+                        last.release();
+                    }
+                }
+            } finally {
+                if (chunk != null) {
+                    chunk.release();
+                }
+            }
+        }
+
+        /**
+         * queue the whole lines in a full block and carry any partial line over to a new block
+         * @return the new block, with its length set to the length of the carried text, or
+         * null if the merge has been abandoned
+         */
+        private ChunkPool.Chunk emit(ChunkPool pool, ChunkPool.Chunk chunk, int length)
+        {
+            char[] chars = chunk.chars();
+            int cut = length;
+            while (cut > 0 && chars[cut - 1] != '\n') {
+                cut--;
+            }
+            if (cut == 0) {
+                // a line longer than a block has to be split
+                cut = length;
+            }
+            ChunkPool.Chunk next = pool.allocate();
+            System.arraycopy(chars, cut, next.chars(), 0, length - cut);
+            next.setLength(length - cut);
+            chunk.setLength(cut);
+            if (!put(chunk)) {
+                chunk.release();
+                next.release();
+                return null;
+            }
+            return next;
+        }
+    }
+}
@@ -26,20 +26,69 @@ package org.my.pipeline.impl;
 
 import org.my.pipeline.core.SinkProcessor;
 import org.my.pipeline.core.Source;
+import org.my.pipeline.util.Checkpoint;
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Compression;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 
 /**
- * FileSink is a data Sink which collects the characters from its input stream into a file
+ * FileSink is a data Sink which collects the characters from its input stream into a file<p/>
+ *
+ * If it is created with a {@link Checkpoint} then it truncates the file to the output offset
+ * saved in the checkpoint and appends to it. Each time it writes a line at which a checkpoint is
+ * due it syncs its output to disk and commits the checkpoint.<p/>
+ *
+ * The output may be compressed by calling {@link #setCompression(Compression)}, with AUTO
+ * selecting the codec from the file name suffix. Compression is performed by a helper thread
+ * so that it runs in parallel with the pipeline. Compressed output cannot be checkpointed
+ * since it cannot be truncated at an arbitrary offset.
  */
 public class FileSink extends SinkProcessor {
     private FileOutputStream fout;
+    private String file;
+    private Checkpoint checkpoint;
+    private Compression compression;
 
     public FileSink(String file, Source source) throws IOException
+    {
+        this(file, null, source);
+    }
+
+    public FileSink(String file, Checkpoint checkpoint, Source source) throws IOException
     {
         super(source);
-        this.fout = new FileOutputStream(file);
+        this.file = file;
+        this.checkpoint = checkpoint;
+        this.compression = Compression.NONE;
+        if (checkpoint != null) {
+            // discard any output written after the last checkpoint
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(checkpoint.getOutputOffset());
+            } finally {
+                raf.close();
+            }
+            this.fout = new FileOutputStream(file, true);
+        } else {
+            this.fout = new FileOutputStream(file);
+        }
+    }
+
+    /**
+     * configure the codec used to compress the file. this must be called before the
+     * sink is started.
+     * @param compression the codec or AUTO to select it using the file name suffix
+     */
+    public void setCompression(Compression compression)
+    {
+        if (checkpoint != null && compression.resolve(file) != Compression.NONE) {
+            throw new IllegalStateException("cannot checkpoint a compressed file");
+        }
+        this.compression = compression;
     }
 
     public void consume() throws IOException
@@ -49,15 +98,58 @@ public class FileSink extends SinkProcessor {
             return;
         }
 
+        OutputStream out = fout;
+        ChunkPool.Chunk charChunk = null;
+        ChunkPool.Chunk byteChunk = null;
         try {
-            int next = input.read();
-            while  (next >= 0) {
-                fout.write(next);
-                next = input.read();
+            out = compression.resolve(file).compress(fout, getName() + "-compress");
+            long offset = 0;
+            long lines = 0;
+            if (checkpoint != null) {
+                offset = checkpoint.getOutputOffset();
+                lines = checkpoint.getLineCount();
+            }
+            // the transfer buffers come from the shared pools so repeated runs allocate nothing
+            charChunk = ChunkPool.charPool(4096).allocate();
+            byteChunk = ChunkPool.bytePool(4096).allocate();
+            char[] chars = charChunk.chars();
+            byte[] bytes = byteChunk.bytes();
+            boolean pending = false;
+            int count = input.read(chars);
+            while  (count >= 0) {
+                int written = 0;
+                for (int i = 0; i < count; i++) {
+                    char c = chars[i];
+                    // chars are written as single bytes matching the encoding used by FileSource
+                    bytes[i] = (byte)c;
+                    if (c == '\n') {
+                        lines++;
+                        if (checkpoint != null && checkpoint.isDue(lines)) {
+                            out.write(bytes, written, i + 1 - written);
+                            fout.getFD().sync();
+                            written = i + 1;
+                            checkpoint.commit(lines, offset + written);
+                        }
+                    }
+                }
+                out.write(bytes, written, count - written);
+                if (count > 0) {
+                    pending = (chars[count - 1] != '\n');
+                }
+                offset += count;
+                count = input.read(chars);
+            }
+            if (checkpoint != null) {
+                fout.getFD().sync();
+                checkpoint.complete(pending ? lines + 1 : lines);
             }
         } finally {
+            if (charChunk != null) {
+                charChunk.release();
+                byteChunk.release();
+            }
             try {
-                fout.close();
+                out.close();
             } catch (IOException ioe) {
                 ioe.printStackTrace();
             }
@@ -25,21 +25,126 @@
 package org.my.pipeline.impl;
 
 import org.my.pipeline.core.SourceProcessor;
+import org.my.pipeline.util.Checkpoint;
+import org.my.pipeline.util.ChunkPool;
+import org.my.pipeline.util.Compression;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
 
 /**
- * FileSource is a data Source which populates its output stream with bytes read from a file
+ * FileSource is a data Source which populates its output stream with bytes read from a file<p/>
+ *
+ * If it is created with a {@link Checkpoint} then it resumes reading from the input offset
+ * saved in the checkpoint and records the offset of the end of each line at which a new
+ * checkpoint may be taken.<p/>
+ *
+ * A FileSource can also be configured to tail its file. In this mode it does not stop when it
+ * reaches EOF. Instead it waits for more data to be appended and streams it into the pipeline
+ * as soon as it appears, continuing until {@link #stopTailing()} is called or the thread is
+ * interrupted. The source waits on a WatchService registered for the file's directory so that
+ * it is woken as soon as the file is modified. The wait is also bounded by a timeout which
+ * doubles each time the source finds no new data, up to a maximum, so it still makes progress
+ * on file systems which do not deliver change events. A file which is truncated is reread from
+ * the start and a file which is rotated, i.e. renamed and replaced with a new file, is read to
+ * the end before the new file is opened.<p/>
+ *
+ * The file may be compressed. The codec can be configured by calling
+ * {@link #setCompression(Compression)}, with AUTO detecting the format from the file contents.
+ * Decompression is performed by a helper thread so that it runs in parallel with the pipeline.
+ * A compressed file cannot be tailed. It can be checkpointed but a restart has to decompress
+ * and skip the data preceding the checkpoint.
  */
 
 public class FileSource extends SourceProcessor {
+	/**
+	 * the shortest and longest time to wait for more data when tailing the file
+	 */
+	private static final long MIN_TAIL_DELAY = 1;
+	private static final long MAX_TAIL_DELAY = 500;
+
 	public FileInputStream fin;
+	private String file;
+	private Checkpoint checkpoint;
+	private Compression compression;
+	private boolean tailing;
+	private volatile boolean stopped;
+	private volatile WatchService watcher;
+	private long offset;
+	private long lines;
+	private boolean pending;
 
 	public FileSource(String file) throws IOException
+	{
+		this(file, null);
+	}
+
+	public FileSource(String file, Checkpoint checkpoint) throws IOException
 	{
 		super();
 		fin = new FileInputStream(file);
+		this.file = file;
+		this.checkpoint = checkpoint;
+		this.compression = Compression.NONE;
+		this.tailing = false;
+		this.stopped = false;
+	}
+
+	/**
+	 * configure whether this source continues to read data appended to the file after reaching EOF.
+	 * this must be called before the source is started.
+	 * @param tailing true if the file should be tailed otherwise false
+	 */
+	public void setTailing(boolean tailing)
+	{
+		if (tailing && checkpoint != null) {
+			throw new IllegalStateException("cannot tail a file which is being checkpointed");
+		}
+		if (tailing && compression != Compression.NONE) {
+			throw new IllegalStateException("cannot tail a compressed file");
+		}
+		this.tailing = tailing;
+	}
+
+	/**
+	 * configure the codec used to decompress the file. this must be called before the
+	 * source is started.
+	 * @param compression the codec or AUTO to detect it from the file contents
+	 */
+	public void setCompression(Compression compression)
+	{
+		if (tailing && compression != Compression.NONE) {
+			throw new IllegalStateException("cannot tail a compressed file");
+		}
+		this.compression = compression;
+	}
+
+	/**
+	 * ask a tailing source to stop once it has forwarded any data currently available
+	 */
+	public void stopTailing()
+	{
+		stopped = true;
+		// closing the watcher wakes the source if it is waiting for a change
+		WatchService watcher = this.watcher;
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException ioe) {
+				// nothing to do
+			}
+		}
 	}
 
 	@Override
@@ -49,18 +154,215 @@ public class FileSource extends SourceProcessor {
 			//nothing to do
 			return;
 		}
+		InputStream in = fin;
+		// the transfer buffers come from the shared pools so repeated runs allocate nothing
+		ChunkPool.Chunk byteChunk = ChunkPool.bytePool(4096).allocate();
+		ChunkPool.Chunk charChunk = ChunkPool.charPool(4096).allocate();
 		try {
-			int next = fin.read();
-			while (next >=0) {
-				output.write(next);
-				next = fin.read();
+			offset = 0;
+			lines = 0;
+			pending = false;
+			Compression codec = compression.resolve(file, fin.getChannel());
+			in = codec.decompress(fin, getName() + "-decompress");
+			if (checkpoint != null) {
+				offset = checkpoint.getInputOffset();
+				lines = checkpoint.getLineCount();
+				if (codec == Compression.NONE) {
+					fin.getChannel().position(offset);
+				} else {
+					skip(in, offset);
+				}
+			}
+			byte[] bytes = byteChunk.bytes();
+			char[] chars = charChunk.chars();
+			Object fileKey = null;
+			long delay = MIN_TAIL_DELAY;
+			if (tailing) {
+				watcher = openWatcher();
+				fileKey = currentFileKey();
+			}
+			while (true) {
+				int count = in.read(bytes);
+				if (count > 0) {
+					transfer(bytes, chars, count);
+					if (tailing) {
+						// don't let data sit in the pipe waiting for more to arrive
+						output.flush();
+						delay = MIN_TAIL_DELAY;
+					}
+				} else if (count < 0) {
+					if (!tailing || stopped) {
+						break;
+					}
+					long size = fin.getChannel().size();
+					Object newKey = currentFileKey();
+					if (size < offset) {
+						// the file has been truncated so start again from the beginning
+						fin.getChannel().position(0);
+						offset = 0;
+					} else if (isRotated(fileKey, newKey, size)) {
+						// we have consumed all of the old file so switch to the new one
+						fin.close();
+						fin = new FileInputStream(file);
+						in = fin;
+						fileKey = newKey;
+						offset = 0;
+					} else if (!awaitChange(delay)) {
+						break;
+					} else if (delay < MAX_TAIL_DELAY) {
+						delay = Math.min(delay * 2, MAX_TAIL_DELAY);
+					}
+				}
+			}
+			if (checkpoint != null) {
+				// a final line with no LF at end still counts as a line
+				checkpoint.markInputComplete(pending ? lines + 1 : lines);
 			}
 		} finally {
+			byteChunk.release();
+			charChunk.release();
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException ioe) {
+					// nothing to do
+				}
+			}
 			try {
-				fin.close();
+				in.close();
+				if (in != fin) {
+					fin.close();
+				}
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 			}
 		}
 	}
+
+	/**
+	 * discard uncompressed data up to a checkpoint offset
+	 */
+	private void skip(InputStream in, long count) throws IOException
+	{
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				throw new IOException("checkpoint offset is beyond the end of " + file);
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * write a block of bytes read from the file to the output, tracking line ends
+	 */
+	private void transfer(byte[] bytes, char[] chars, int count) throws IOException
+	{
+		for (int i = 0; i < count; i++) {
+			byte b = bytes[i];
+			// bytes are passed through unconverted as chars in the range 0-255
+			chars[i] = (char)(b & 0xff);
+			if (b == '\n') {
+				lines++;
+				if (checkpoint != null && checkpoint.isDue(lines)) {
+					checkpoint.markInput(lines, offset + i + 1);
+				}
+			}
+		}
+		pending = (bytes[count - 1] != '\n');
+		offset += count;
+		output.write(chars, 0, count);
+	}
+
+	/**
+	 * create a watch service which reports changes to the directory containing the file or
+	 * return null if the file system does not support one. in the latter case we simply poll.
+	 */
+	private WatchService openWatcher()
+	{
+		if (stopped) {
+			return null;
+		}
+		Path dir = Paths.get(file).toAbsolutePath().getParent();
+		WatchService watcher = null;
+		try {
+			watcher = dir.getFileSystem().newWatchService();
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+			return watcher;
+		} catch (IOException ioe) {
+			// fall back to polling
+		} catch (UnsupportedOperationException uoe) {
+			// fall back to polling
+		}
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException ioe) {
+				// nothing to do
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * wait until the directory containing the file changes or the delay expires
+	 * @return false if the wait was interrupted otherwise true
+	 */
+	private boolean awaitChange(long delay)
+	{
+		WatchService watcher = this.watcher;
+		try {
+			if (watcher == null) {
+				Thread.sleep(delay);
+				return true;
+			}
+			WatchKey key = watcher.poll(delay, TimeUnit.MILLISECONDS);
+			if (key != null) {
+				// we only care that something changed so discard the details
+				key.pollEvents();
+				key.reset();
+			}
+			return true;
+		} catch (InterruptedException ie) {
+			return false;
+		} catch (ClosedWatchServiceException cwse) {
+			// we have been asked to stop
+			return true;
+		}
+	}
+
+	/**
+	 * identify the file currently found at the source's path
+	 * @return a key identifying the file, null if the file system provides no such key or
+	 * a marker value if there is currently no file at the path
+	 */
+	private Object currentFileKey() throws IOException
+	{
+		try {
+			return Files.readAttributes(Paths.get(file), BasicFileAttributes.class).fileKey();
+		} catch (NoSuchFileException nsfe) {
+			return NO_FILE;
+		}
+	}
+
+	/**
+	 * decide whether the file at our path has been replaced by a new one
+	 * @param fileKey the key for the file we are currently reading
+	 * @param newKey the key for the file now found at the path
+	 * @param size the size of the file we are currently reading
+	 */
+	private boolean isRotated(Object fileKey, Object newKey, long size) throws IOException
+	{
+		if (newKey == NO_FILE) {
+			// the old file has been moved but not yet replaced
+			return false;
+		}
+		if (fileKey != null && fileKey != NO_FILE) {
+			return !fileKey.equals(newKey);
+		}
+		// without file keys the best we can do is spot a file at the path which is shorter than ours
+		return Files.size(Paths.get(file)) < size;
+	}
+
+	private static final Object NO_FILE = new Object();
 }
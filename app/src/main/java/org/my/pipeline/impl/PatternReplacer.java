@@ -26,10 +26,11 @@ package org.my.pipeline.impl;
 
 import org.my.pipeline.core.Source;
 import org.my.pipeline.core.TextLineProcessor;
+import org.my.pipeline.util.PatternCache;
+import org.my.pipeline.util.ReplacementTemplate;
+import org.my.pipeline.util.Startup;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -51,13 +52,18 @@ import java.util.regex.Matcher;
  * Note that the replacement String literal requires the backslash character which precedes the matching
  * group index to be escaped with another backslash. A single backslash followed by a digit sequence
  * would be interpreted as a unicode character.<p/>
+ *
+ * The compiled pattern and the parsed replacement are obtained from the process-wide
+ * {@link PatternCache} so creating many replacers with the same configuration is cheap. When lazy
+ * {@link Startup} is enabled they are only obtained when the first line is transformed.
  */
 
 public class PatternReplacer extends TextLineProcessor {
+    private String regex;
     private Pattern pattern;
     private String replacement;
-    int[] groupIndices;
-    int maxGroupIndex;
+    private ReplacementTemplate template;
+    private StringBuilder builder;
 
     /**
      * create a pattern replacer
@@ -70,9 +76,13 @@ public class PatternReplacer extends TextLineProcessor {
     public PatternReplacer(String pattern, String replacement, Source source) throws IOException
     {
         super(source);
-        this.pattern = Pattern.compile(pattern);
+        this.regex = pattern;
         this.replacement = replacement;
-        computePatternGroups();
+        if (!Startup.isLazy()) {
+            computePatternGroups();
+        }
+        // reused for every transformed line
+        this.builder = new StringBuilder(256);
     }
 
     /**
@@ -82,66 +92,49 @@ public class PatternReplacer extends TextLineProcessor {
      */
     public String transform(String text)
     {
+        if (template == null) {
+            // lazy startup defers this until the first line arrives
+            computePatternGroups();
+        }
     	Matcher matcher = pattern.matcher(text);
-        StringBuilder builder = new StringBuilder();
         int current = 0;
-        int max = text.length();
-	    while (matcher.find(current)) {
+        if (!matcher.find(current)) {
+            // nothing to replace
+            return text;
+        }
+        builder.setLength(0);
+        do {
             int start = matcher.start();
             int end = matcher.end();
-            for (int i = current; i < start ; i++) {
-                builder.append(text.charAt(i));
-            }
-            substitutePatternGroups(matcher, builder);
+            builder.append(text, current, start);
+            substitutePatternGroups(matcher, text, builder);
             current = end;
-        }
-        for (int i = current; i < max ; i++) {
-            builder.append(text.charAt(i));
-        }
+        } while (matcher.find(current));
+        builder.append(text, current, text.length());
         return builder.toString();
     }
 
     /**
      * called when a match is found to substitute matching groups into the replacement text line
      * @param matcher
-     * @return
+     * @param text
+     * @param builder
      */
-    private void substitutePatternGroups(Matcher matcher, StringBuilder builder) {
+    private void substitutePatternGroups(Matcher matcher, String text, StringBuilder builder) {
         // reject inadequate matches
-        if (matcher.groupCount() < maxGroupIndex) {
+        if (matcher.groupCount() < template.getMaxGroupIndex()) {
              return;
         }
-        String text = replacement;
-        for (int i : groupIndices) {
-            text = text.replaceAll("\\\\" + i, matcher.group(i));
-        }
-        builder.append(text);
+        template.expand(matcher, text, builder);
     }
 
     /**
-     * parses the replacement to identify how many match groups need to be substituted and store
-     * their indices for later use
+     * compiles the pattern and parses the replacement to identify the match groups which need
+     * to be substituted
      */
     private void  computePatternGroups()
     {
-        maxGroupIndex = 0;
-        List<Integer> groups = new ArrayList<Integer>();
-        Matcher groupMatcher = Pattern.compile("\\\\[1-9][0-9]*").matcher(replacement);
-        int start = 0;
-        while(groupMatcher.find(start)) {
-            String text = groupMatcher.group(0);
-            int index =  Integer.valueOf(text.substring(1));
-            if (!groups.contains(index)) {
-                if(index > maxGroupIndex) {
-                    maxGroupIndex = index;
-                }
-                groups.add(index);
-            }
-            start = groupMatcher.end();
-        }
-        groupIndices = new int[groups.size()];
-        for (int i = 0;i < groups.size();i++) {
-            groupIndices[i] = groups.get(i);
-        }
+        pattern = PatternCache.getInstance().pattern(regex);
+        template = PatternCache.getInstance().template(replacement);
     }
 }
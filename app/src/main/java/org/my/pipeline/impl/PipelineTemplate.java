@@ -0,0 +1,377 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.PipelineProcessor;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.PatternCache;
+import org.my.pipeline.util.TraceWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A PipelineTemplate is an immutable description of a linear chain of pipeline stages which
+ * can be used to create any number of pipeline instances. The regular expressions and
+ * replacement text used by the stages are compiled when the template is created, so errors
+ * are reported then, and the compiled forms are shared by all instances via the process-wide
+ * {@link PatternCache}.<p/>
+ *
+ * Each instance reads its input from a CharSequence and collects its output in a
+ * CharSequenceSink. An instance can run its stages in dedicated threads, like the pipelines
+ * built by hand in the PipelineAppMain programs, or in the threads of an Executor. The latter
+ * avoids the cost of starting a thread for every stage of every instance when processing many
+ * small documents. n.b. an Executor must be able to run all the stages of an instance at the
+ * same time since each stage blocks until its neighbours read or write their streams.<p/>
+ *
+ * A BindingMap in ordered mode may be shared by several instances since each BindingReplacer
+ * only follows the epochs of the Binder and BindingInserter stages in its own instance.
+ */
+public class PipelineTemplate
+{
+    /**
+     * creates one stage of a pipeline instance
+     */
+    public interface Stage
+    {
+        /**
+         * create the stage
+         * @param source the source which feeds the stage
+         * @param bindings the bindings used by the instance
+         * @return the stage
+         * @throws IOException if the stage cannot be connected to its source
+         */
+        public PipelineProcessor create(Source source, BindingMap bindings) throws IOException;
+    }
+
+    private static ExecutorService executor = null;
+
+    private Stage[] stages;
+
+    /**
+     * create a template
+     * @param stages the stages in the order in which they process text
+     */
+    public PipelineTemplate(Stage... stages)
+    {
+        this.stages = stages.clone();
+    }
+
+    /**
+     * create a template which extends this one with a further stage
+     * @param stage the stage to add at the end of the chain
+     * @return the new template
+     */
+    public PipelineTemplate append(Stage stage)
+    {
+        Stage[] extended = Arrays.copyOf(stages, stages.length + 1);
+        extended[stages.length] = stage;
+        return new PipelineTemplate(extended);
+    }
+
+    /**
+     * @return the number of stages in the template
+     */
+    public int getStageCount()
+    {
+        return stages.length;
+    }
+
+    /**
+     * create an instance of the pipeline. the instance does nothing until it is started.
+     * @param input the text to be processed
+     * @param bindings the bindings used by the instance or null if it should use a new empty map
+     * @return the instance
+     * @throws IOException if the stages cannot be connected
+     */
+    public Instance instantiate(CharSequence input, BindingMap bindings) throws IOException
+    {
+        if (bindings == null) {
+            bindings = new BindingMap();
+        }
+        CharSequenceSource source = new CharSequenceSource(input);
+        PipelineProcessor[] processors = connect(source, bindings);
+        CharSequenceSink sink = new CharSequenceSink(processors.length == 0 ? source : processors[processors.length - 1]);
+        return new Instance(source, processors, sink);
+    }
+
+    /**
+     * create the template's stages fed by an arbitrary source. the caller is responsible for
+     * connecting a sink to the last stage and for running the stages.
+     * @param source the source which feeds the first stage
+     * @param bindings the bindings used by the stages
+     * @return the stages in processing order. if the template has no stages this is empty
+     * and the sink should be fed directly from the source.
+     * @throws IOException if the stages cannot be connected
+     */
+    public PipelineProcessor[] connect(Source source, BindingMap bindings) throws IOException
+    {
+        PipelineProcessor[] processors = new PipelineProcessor[stages.length];
+        Source previous = source;
+        for (int i = 0; i < stages.length; i++) {
+            processors[i] = stages[i].create(previous, bindings);
+            previous = processors[i];
+        }
+        return processors;
+    }
+
+    /**
+     * process some text using a new instance of the pipeline run in pooled threads
+     * @param input the text to be processed
+     * @param bindings the bindings used by the instance or null if it should use a new empty map
+     * @return the output of the pipeline
+     * @throws IOException if the stages cannot be connected
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the output
+     */
+    public String process(CharSequence input, BindingMap bindings) throws IOException, InterruptedException
+    {
+        Instance instance = instantiate(input, bindings);
+        instance.start(getExecutor());
+        instance.join();
+        return instance.getOutput();
+    }
+
+    /**
+     * @param regex a pattern which matches text to be bound
+     * @param prefix the prefix for identifiers of new bindings
+     * @return a stage which creates a {@link Binder}
+     */
+    public static Stage binder(final String regex, final String prefix)
+    {
+        precompile(regex);
+        return new Stage() {
+            public PipelineProcessor create(Source source, BindingMap bindings) throws IOException
+            {
+                return new Binder(regex, prefix, bindings, source);
+            }
+        };
+    }
+
+    /**
+     * @param regex a pattern which matches text to be bound and replaced with a reference
+     * @param prefix the prefix for identifiers of new bindings
+     * @return a stage which creates a {@link BindingInserter}
+     */
+    public static Stage inserter(final String regex, final String prefix)
+    {
+        precompile(regex);
+        return new Stage() {
+            public PipelineProcessor create(Source source, BindingMap bindings) throws IOException
+            {
+                return new BindingInserter(regex, prefix, bindings, source);
+            }
+        };
+    }
+
+    /**
+     * @return a stage which creates a {@link BindingReplacer}
+     */
+    public static Stage bindingReplacer()
+    {
+        return new Stage() {
+            public PipelineProcessor create(Source source, BindingMap bindings) throws IOException
+            {
+                return new BindingReplacer(bindings, source);
+            }
+        };
+    }
+
+    /**
+     * @param pattern a pattern which matches text to be transformed
+     * @param replacement the replacement for matching text
+     * @return a stage which creates a {@link PatternReplacer}
+     */
+    public static Stage replacer(final String pattern, final String replacement)
+    {
+        PatternCache.getInstance().pattern(pattern);
+        PatternCache.getInstance().template(replacement);
+        return new Stage() {
+            public PipelineProcessor create(Source source, BindingMap bindings) throws IOException
+            {
+                return new PatternReplacer(pattern, replacement, source);
+            }
+        };
+    }
+
+    /**
+     * @param prefix the prefix for each traced line
+     * @param writer the writer which records traced lines or null to print them to System.out
+     * @param sampleRate the interval between traced lines. ignored if writer is null.
+     * @return a stage which creates a {@link TraceProcessor}
+     */
+    public static Stage tracer(final String prefix, final TraceWriter writer, final int sampleRate)
+    {
+        return new Stage() {
+            public PipelineProcessor create(Source source, BindingMap bindings) throws IOException
+            {
+                if (writer == null) {
+                    return new TraceProcessor(prefix, source);
+                }
+                return new TraceProcessor(prefix, writer, sampleRate, source);
+            }
+        };
+    }
+
+    private static void precompile(String regex)
+    {
+        PatternCache cache = PatternCache.getInstance();
+        cache.pattern(regex);
+        cache.literal(regex);
+    }
+
+    /**
+     * @return the executor used by {@link #process}. this creates daemon threads on demand and
+     * retires them after they have been idle for a minute
+     */
+    static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger(0);
+
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "pipeline-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * a single use instance of a pipeline
+     */
+    public static class Instance
+    {
+        private CharSequenceSource source;
+        private PipelineProcessor[] stages;
+        private CharSequenceSink sink;
+        private CountDownLatch done;
+        private boolean started;
+
+        private Instance(CharSequenceSource source, PipelineProcessor[] stages, CharSequenceSink sink)
+        {
+            this.source = source;
+            this.stages = stages;
+            this.sink = sink;
+            this.done = null;
+            this.started = false;
+        }
+
+        /**
+         * start each stage in its own thread
+         * @throws IllegalStateException if the instance has already been started
+         */
+        public synchronized void start()
+        {
+            checkNotStarted();
+            source.start();
+            for (int i = 0; i < stages.length; i++) {
+                stages[i].start();
+            }
+            sink.start();
+        }
+
+        /**
+         * run the stages in threads supplied by an executor
+         * @param executor an executor which can run all the stages at once
+         * @throws IllegalStateException if the instance has already been started
+         */
+        public synchronized void start(Executor executor)
+        {
+            checkNotStarted();
+            done = new CountDownLatch(stages.length + 2);
+            // the stage threads are never started. their run methods are called by the executor
+            executor.execute(wrap(source));
+            for (int i = 0; i < stages.length; i++) {
+                executor.execute(wrap(stages[i]));
+            }
+            executor.execute(wrap(sink));
+        }
+
+        /**
+         * wait for all the stages to finish
+         * @throws InterruptedException if the calling thread is interrupted while waiting
+         */
+        public void join() throws InterruptedException
+        {
+            CountDownLatch latch;
+            synchronized (this) {
+                if (!started) {
+                    throw new IllegalStateException("pipeline instance has not been started");
+                }
+                latch = done;
+            }
+            if (latch != null) {
+                latch.await();
+                return;
+            }
+            source.join();
+            for (int i = 0; i < stages.length; i++) {
+                stages[i].join();
+            }
+            sink.join();
+        }
+
+        /**
+         * @return the output collected so far. this is the complete output once join has returned
+         */
+        public String getOutput()
+        {
+            return sink.toString();
+        }
+
+        private void checkNotStarted()
+        {
+            if (started) {
+                throw new IllegalStateException("pipeline instance has already been started");
+            }
+            started = true;
+        }
+
+        private Runnable wrap(final Thread stage)
+        {
+            return new Runnable() {
+                public void run()
+                {
+                    try {
+                        stage.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SocketSelector runs the network I/O for any number of {@link SocketSource}s and
+ * {@link SocketSink}s on a single thread. The stages' channels are non-blocking and are
+ * registered with one NIO Selector, so an idle or stalled connection costs a registration
+ * rather than a blocked thread. All access to the channels and to the stages' selector-side
+ * state happens on the selector thread. Other threads hand work to it using
+ * {@link #execute(Runnable)}, which queues a task and wakes the selector.<p/>
+ *
+ * The thread is a daemon and is started when the first task is queued. Stages use the
+ * selector returned by {@link #getShared()} unless they are given one explicitly.<p/>
+ *
+ * A stage whose handler throws a RuntimeException is failed with an IOException rather than
+ * being left waiting for I/O which will never arrive. If the selector loop stops, because the
+ * selector was closed or because select failed, every stage which has not yet finished is
+ * failed so that nothing waiting in {@link SocketStage#join()} is stranded.
+ */
+public class SocketSelector implements Runnable
+{
+    private static SocketSelector shared = null;
+
+    private Selector selector;
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    private Set<SocketStage> stages;
+    private Thread thread;
+    private volatile boolean closed;
+    private AtomicLong selects;
+
+    /**
+     * create a selector
+     * @throws IOException if the NIO selector cannot be opened
+     */
+    public SocketSelector() throws IOException
+    {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.stages = Collections.newSetFromMap(new ConcurrentHashMap<SocketStage, Boolean>());
+        this.thread = null;
+        this.closed = false;
+        this.selects = new AtomicLong();
+    }
+
+    /**
+     * @return the selector used by socket stages which are not given one explicitly
+     * @throws IOException if the NIO selector cannot be opened
+     */
+    public static synchronized SocketSelector getShared() throws IOException
+    {
+        if (shared == null) {
+            shared = new SocketSelector();
+        }
+        return shared;
+    }
+
+    /**
+     * run a task on the selector thread, starting the thread if needed
+     * @param task the task to run
+     * @throws IllegalStateException if the selector has been closed
+     */
+    public void execute(Runnable task)
+    {
+        if (closed) {
+            throw new IllegalStateException("socket selector closed");
+        }
+        tasks.add(task);
+        synchronized (this) {
+            if (thread == null) {
+                thread = new Thread(this, "socket-selector");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * stop the selector thread and close the NIO selector. channels registered with the selector
+     * are deregistered but not closed so this should only be called once all stages have finished.
+     */
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+        synchronized (this) {
+            if (thread == null) {
+                try {
+                    selector.close();
+                } catch (IOException ioe) {
+                    // nothing more can be done
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the selector has returned from a select
+     */
+    public long getSelectCount()
+    {
+        return selects.get();
+    }
+
+    /**
+     * @return true if the caller is running on the selector thread
+     */
+    public boolean inSelectorThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * note a stage which has been started so that it can be failed if the selector stops. this
+     * must be called before the stage queues its first task
+     * @param stage the stage
+     */
+    void attach(SocketStage stage)
+    {
+        stages.add(stage);
+    }
+
+    /**
+     * forget a stage which has finished
+     * @param stage the stage
+     */
+    void detach(SocketStage stage)
+    {
+        stages.remove(stage);
+    }
+
+    /**
+     * @return the NIO selector with which channels should be registered. this must only be
+     * used on the selector thread.
+     */
+    Selector selector()
+    {
+        return selector;
+    }
+
+    public void run()
+    {
+        IOException failure = null;
+        try {
+            while (!closed) {
+                Runnable task = tasks.poll();
+                while (task != null) {
+                    runSafely(task);
+                    task = tasks.poll();
+                }
+                selector.select();
+                selects.incrementAndGet();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        runSafely(new Ready(key));
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            failure = ioe;
+        } finally {
+            // refuse new tasks before sweeping up so that no stage can start after the sweep
+            closed = true;
+            if (failure == null) {
+                failure = new IOException("socket selector closed");
+            }
+            List<SocketStage> remaining = new ArrayList<SocketStage>(stages);
+            for (int i = 0; i < remaining.size(); i++) {
+                remaining.get(i).finish(failure);
+            }
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                // nothing more can be done
+            }
+        }
+    }
+
+    private void runSafely(Runnable task)
+    {
+        try {
+            task.run();
+        } catch (RuntimeException re) {
+            // a broken stage must not stop the other stages' I/O but it must not be left
+            // waiting for a key which has been cancelled either
+            if (task instanceof Ready) {
+                ((Ready)task).getStage().fail(re);
+            } else {
+                re.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * implemented by objects attached to selection keys so they can be told when the key is ready
+     */
+    interface Handler
+    {
+        /**
+         * called on the selector thread when the key has been selected
+         * @param key the key
+         */
+        public void ready(SelectionKey key);
+
+        /**
+         * @return the stage which owns the key
+         */
+        public SocketStage getStage();
+    }
+
+    private static class Ready implements Runnable
+    {
+        private SelectionKey key;
+
+        Ready(SelectionKey key)
+        {
+            this.key = key;
+        }
+
+        public void run()
+        {
+            ((Handler)key.attachment()).ready(key);
+        }
+
+        SocketStage getStage()
+        {
+            return ((Handler)key.attachment()).getStage();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.Link;
+import org.my.pipeline.core.LinkReader;
+import org.my.pipeline.core.Sink;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.util.ChunkPool;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * SocketSink is a data Sink which connects to a TCP server and sends it the characters from its
+ * input stream, encoded using a configurable charset. The connection is closed once the input
+ * reaches EOF and all the encoded data has been sent.<p/>
+ *
+ * The sink has no thread of its own. Its channel is registered with a {@link SocketSelector}
+ * which polls the input link and writes whatever it finds. When the socket's send buffer is full
+ * the sink stops polling, so the input link fills and the upstream stage is held back until the
+ * server catches up. Because of this the input must be a {@link Link}. Links must be enabled,
+ * see {@link Link#setEnabled(boolean)}, before the sink is created.<p/>
+ *
+ * If the connection fails the sink closes its input, so that the upstream stages stop, and the
+ * failure is available from {@link #getFailure()}.
+ */
+public class SocketSink extends SocketStage implements Sink
+{
+    /**
+     * the default size of the write buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * the number of buffers written by one call to pump before other stages are given a turn
+     */
+    private static final int QUANTUM = 16;
+
+    private InetSocketAddress address;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Link link;
+    private PipedReader input;
+    private Charset charset;
+    private int bufferSize;
+    private CharsetEncoder encoder;
+    private ByteBuffer bytes;
+    private ChunkPool.Chunk chunk;
+    private CharBuffer chars;
+    private boolean eof;
+    private boolean flushed;
+    private volatile long byteCount;
+
+    /**
+     * create a sink using the shared selector
+     * @param address the address of the server to which the sink connects
+     * @param source the source which feeds the sink
+     * @throws IOException if the source cannot be connected
+     */
+    public SocketSink(InetSocketAddress address, Source source) throws IOException
+    {
+        this(SocketSelector.getShared(), address, source);
+    }
+
+    /**
+     * create a sink
+     * @param selector the selector which runs the sink's I/O
+     * @param address the address of the server to which the sink connects
+     * @param source the source which feeds the sink
+     * @throws IOException if the source cannot be connected
+     */
+    public SocketSink(SocketSelector selector, InetSocketAddress address, Source source) throws IOException
+    {
+        super(selector);
+        this.address = address;
+        this.channel = null;
+        this.key = null;
+        this.charset = Charset.defaultCharset();
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.eof = false;
+        this.flushed = false;
+        this.byteCount = 0;
+        source.feed(this);
+    }
+
+    public void setInput(PipedReader input) throws IOException
+    {
+        if (this.input != null) {
+            throw new IOException("input already connected");
+        }
+        if (!(input instanceof LinkReader)) {
+            throw new IOException("socket sinks must be connected by links");
+        }
+        this.input = input;
+        link = ((LinkReader)input).getLink();
+        // resume sending when the upstream stage writes more data or closes
+        link.setReaderListener(new Runnable() {
+            public void run()
+            {
+                signal();
+            }
+        });
+    }
+
+    /**
+     * configure the charset used to encode the output. this must be called before the sink is started.
+     * @param charset the charset
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    /**
+     * configure the size of the write buffer. this must be called before the sink is started.
+     * @param bufferSize the buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("buffer size too small " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the number of bytes sent so far
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    protected void open() throws IOException
+    {
+        encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes = ByteBuffer.allocateDirect(bufferSize);
+        chunk = ChunkPool.charPool(4096).allocate();
+        chars = CharBuffer.wrap(chunk.chars());
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        SocketSelector.Handler handler = new SocketSelector.Handler() {
+            public void ready(SelectionKey key)
+            {
+                try {
+                    if (key.isConnectable()) {
+                        channel.finishConnect();
+                    }
+                    pump();
+                } catch (IOException ioe) {
+                    finish(ioe);
+                }
+            }
+
+            public SocketStage getStage()
+            {
+                return SocketSink.this;
+            }
+        };
+        if (channel.connect(address)) {
+            key = channel.register(selector.selector(), 0, handler);
+        } else {
+            key = channel.register(selector.selector(), SelectionKey.OP_CONNECT, handler);
+        }
+    }
+
+    /**
+     * send buffered data and poll the input for more until the socket will take no more,
+     * the input is empty or the quantum is used up
+     */
+    protected void pump() throws IOException
+    {
+        if (isFinished() || !channel.isConnected()) {
+            return;
+        }
+        for (int i = 0; i < QUANTUM; i++) {
+            if (bytes.position() > 0) {
+                bytes.flip();
+                byteCount += channel.write(bytes);
+                boolean full = bytes.hasRemaining();
+                bytes.compact();
+                if (full) {
+                    // wait until the server has taken some data
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (flushed) {
+                finish(null);
+                return;
+            }
+            if (!eof) {
+                int count = link.poll(chars.array(), chars.position(), chars.remaining());
+                if (count == Link.NONE) {
+                    // wait until the upstream stage signals more input
+                    key.interestOps(0);
+                    return;
+                } else if (count < 0) {
+                    eof = true;
+                } else {
+                    chars.position(chars.position() + count);
+                }
+            }
+            chars.flip();
+            CoderResult result = encoder.encode(chars, bytes, eof);
+            // keep any unpaired surrogate for the next poll
+            chars.compact();
+            if (eof && !result.isOverflow()) {
+                flushed = encoder.flush(bytes).isUnderflow();
+            }
+        }
+        // give the selector's other stages a turn
+        key.interestOps(0);
+        signal();
+    }
+
+    protected void close(IOException failure)
+    {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // nothing more can be done
+            }
+        }
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+        }
+        try {
+            input.close();
+        } catch (IOException ioe) {
+            // nothing more can be done
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.Link;
+import org.my.pipeline.core.Sink;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.util.ChunkPool;
+
+import java.io.IOException;
+import java.io.PipedWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SocketSource is a data Source which listens on a TCP port and populates its output stream with
+ * the text sent by the clients which connect to it, e.g. log shippers. Any number of clients may
+ * be connected at once. Their text is merged a line at a time, so a line from one client is never
+ * interrupted by text from another. A final line which is not terminated is given a line feed.<p/>
+ *
+ * The source has no thread of its own. Its channels are registered with a {@link SocketSelector}
+ * which reads whatever the clients have sent, decodes it using a configurable charset and writes
+ * it to the output link. When the link is full the source stops reading, so the clients are held
+ * back by TCP flow control until the downstream stage catches up. Because of this the output is
+ * always a {@link Link}, whether or not links are enabled.<p/>
+ *
+ * The output reaches EOF once the source has stopped accepting connections and every connected
+ * client has closed its connection. The source stops accepting when {@link #stopAccepting()}
+ * is called or once it has accepted the number of connections set by
+ * {@link #setConnectionLimit(int)}. If the downstream stage closes the pipeline then the
+ * connections are closed and the source finishes.
+ */
+public class SocketSource extends SocketStage implements Source
+{
+    /**
+     * the default size of the per-connection read buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private ServerSocketChannel server;
+    private SelectionKey serverKey;
+    private List<Connection> connections;
+    private Connection owner;
+    private int next;
+    private Link link;
+    private PipedWriter output;
+    private Charset charset;
+    private int bufferSize;
+    private int connectionLimit;
+    private volatile int accepted;
+    private volatile long byteCount;
+
+    /**
+     * create a source listening on a port of all local addresses and using the shared selector
+     * @param port the port or 0 to use an ephemeral port
+     * @throws IOException if the port cannot be bound
+     */
+    public SocketSource(int port) throws IOException
+    {
+        this(SocketSelector.getShared(), new InetSocketAddress(port));
+    }
+
+    /**
+     * create a source
+     * @param selector the selector which runs the source's I/O
+     * @param address the address on which to listen
+     * @throws IOException if the address cannot be bound
+     */
+    public SocketSource(SocketSelector selector, InetSocketAddress address) throws IOException
+    {
+        super(selector);
+        this.server = ServerSocketChannel.open();
+        this.server.configureBlocking(false);
+        this.server.socket().setReuseAddress(true);
+        this.server.socket().bind(address);
+        this.serverKey = null;
+        this.connections = new ArrayList<Connection>();
+        this.owner = null;
+        this.next = 0;
+        this.link = null;
+        this.output = null;
+        this.charset = Charset.defaultCharset();
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.connectionLimit = 0;
+        this.accepted = 0;
+        this.byteCount = 0;
+    }
+
+    public void feed(Sink sink) throws IOException
+    {
+        if (output != null) {
+            throw new IOException("output already connected");
+        }
+        link = Link.open(sink);
+        // resume reading when the downstream stage makes space or goes away
+        link.setWriterListener(new Runnable() {
+            public void run()
+            {
+                signal();
+            }
+        });
+        output = link.getWriter();
+    }
+
+    /**
+     * configure the charset used to decode the input. this must be called before the source is started.
+     * @param charset the charset
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    /**
+     * configure the size of each connection's read buffer. this must be called before the source is started.
+     * @param bufferSize the buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("buffer size too small " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * configure the number of connections after which the source stops accepting connections.
+     * this must be called before the source is started.
+     * @param connectionLimit the number of connections or 0 to accept connections until
+     * {@link #stopAccepting()} is called
+     */
+    public void setConnectionLimit(int connectionLimit)
+    {
+        if (connectionLimit < 0) {
+            throw new IllegalArgumentException("invalid connection limit " + connectionLimit);
+        }
+        this.connectionLimit = connectionLimit;
+    }
+
+    /**
+     * stop accepting connections. the output reaches EOF once the connected clients have closed
+     * their connections.
+     */
+    public void stopAccepting()
+    {
+        execute(new Runnable() {
+            public void run()
+            {
+                closeServer();
+                signal();
+            }
+        });
+    }
+
+    /**
+     * @return the port on which the source is listening
+     */
+    public int getLocalPort()
+    {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of connections accepted so far
+     */
+    public int getConnectionCount()
+    {
+        return accepted;
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    protected void open() throws IOException
+    {
+        if (output == null) {
+            throw new IOException("unconnected socket source");
+        }
+        if (server.isOpen()) {
+            serverKey = server.register(selector.selector(), SelectionKey.OP_ACCEPT, new SocketSelector.Handler() {
+                public void ready(SelectionKey key)
+                {
+                    try {
+                        accept();
+                    } catch (IOException ioe) {
+                        finish(ioe);
+                    }
+                }
+
+                public SocketStage getStage()
+                {
+                    return SocketSource.this;
+                }
+            });
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = server.accept();
+        while (channel != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector.selector(), SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            accepted++;
+            if (connectionLimit > 0 && accepted >= connectionLimit) {
+                closeServer();
+                break;
+            }
+            channel = server.accept();
+        }
+    }
+
+    private void closeServer()
+    {
+        if (serverKey != null) {
+            serverKey.cancel();
+            serverKey = null;
+        }
+        try {
+            server.close();
+        } catch (IOException ioe) {
+            // nothing more can be done
+        }
+    }
+
+    /**
+     * write whole lines from the connections to the output for as long as the output has space,
+     * then read from those connections which have room to buffer more input
+     */
+    protected void pump() throws IOException
+    {
+        if (isFinished()) {
+            return;
+        }
+        boolean wrote = false;
+        try {
+            int space = link.space();
+            while (space > 0) {
+                Connection connection = (owner != null ? owner : nextReady());
+                if (connection == null) {
+                    break;
+                }
+                int count = Math.min(space, connection.available(connection == owner));
+                if (count == 0) {
+                    // the owner has not yet sent the rest of its line
+                    break;
+                }
+                char[] chars = connection.chars.array();
+                output.write(chars, 0, count);
+                // a connection keeps the output until it has written a whole line
+                owner = (chars[count - 1] == '\n' ? null : connection);
+                connection.consume(count);
+                wrote = true;
+                space = link.space();
+            }
+            if (wrote) {
+                output.flush();
+            }
+        } catch (IOException ioe) {
+            // the downstream stage has closed the pipeline so stop reading
+            finish(null);
+            return;
+        }
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            Connection connection = connections.get(i);
+            if (connection.isDrained()) {
+                connections.remove(i);
+                connection.close();
+            } else {
+                connection.key.interestOps(connection.wantsRead() ? SelectionKey.OP_READ : 0);
+            }
+        }
+        if (connections.isEmpty() && !server.isOpen()) {
+            finish(null);
+        }
+    }
+
+    /**
+     * @return the next connection in round robin order which has whole lines to write or null
+     */
+    private Connection nextReady()
+    {
+        int size = connections.size();
+        for (int i = 0; i < size; i++) {
+            Connection connection = connections.get((next + i) % size);
+            if (connection.available(false) > 0) {
+                next = (next + i + 1) % size;
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    protected void close(IOException failure)
+    {
+        closeServer();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+        owner = null;
+        try {
+            output.close();
+        } catch (IOException ioe) {
+            // nothing more can be done
+        }
+    }
+
+    /**
+     * a client connection and the input received from it which has not yet been written
+     */
+    private class Connection implements SocketSelector.Handler
+    {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer bytes;
+        private ChunkPool.Chunk chunk;
+        private CharBuffer chars;
+        private CharsetDecoder decoder;
+        private char last;
+        private boolean eof;
+        private boolean flushed;
+        private boolean terminated;
+
+        Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+            this.key = null;
+            this.bytes = ByteBuffer.allocateDirect(bufferSize);
+            this.chunk = ChunkPool.charPool(bufferSize).allocate();
+            this.chars = CharBuffer.wrap(chunk.chars());
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.last = '\n';
+            this.eof = false;
+            this.flushed = false;
+            this.terminated = false;
+        }
+
+        public SocketStage getStage()
+        {
+            return SocketSource.this;
+        }
+
+        public void ready(SelectionKey key)
+        {
+            int count;
+            try {
+                count = channel.read(bytes);
+            } catch (IOException ioe) {
+                // a reset connection ends the same way as a closed one
+                count = -1;
+            }
+            if (count < 0) {
+                eof = true;
+            } else {
+                byteCount += count;
+            }
+            decode();
+            try {
+                pump();
+            } catch (IOException ioe) {
+                finish(ioe);
+            }
+        }
+
+        /**
+         * move as much buffered input as will fit from the byte buffer to the char buffer
+         */
+        private void decode()
+        {
+            if (!flushed) {
+                bytes.flip();
+                CoderResult result = decoder.decode(bytes, chars, eof);
+                boolean decoded = !bytes.hasRemaining();
+                bytes.compact();
+                if (eof && decoded && !result.isOverflow()) {
+                    flushed = decoder.flush(chars).isUnderflow();
+                }
+                if (chars.position() > 0) {
+                    last = chars.get(chars.position() - 1);
+                }
+            }
+            if (flushed && !terminated) {
+                if (last == '\n') {
+                    terminated = true;
+                } else if (chars.hasRemaining()) {
+                    chars.put('\n');
+                    last = '\n';
+                    terminated = true;
+                }
+            }
+        }
+
+        /**
+         * @param owner true if this connection has written part of a line
+         * @return the number of characters which can be written without splitting a line
+         */
+        int available(boolean owner)
+        {
+            int end = chars.position();
+            if (owner || !chars.hasRemaining() || terminated) {
+                // a line which fills the buffer has to be split
+                return end;
+            }
+            char[] array = chars.array();
+            while (end > 0 && array[end - 1] != '\n') {
+                end--;
+            }
+            return end;
+        }
+
+        /**
+         * discard characters which have been written and decode any more buffered input
+         * @param count the number of characters written
+         */
+        void consume(int count)
+        {
+            chars.flip();
+            chars.position(count);
+            chars.compact();
+            decode();
+        }
+
+        /**
+         * @return true if the client has closed the connection and all its input has been written
+         */
+        boolean isDrained()
+        {
+            return terminated && chars.position() == 0;
+        }
+
+        /**
+         * @return true if there is room to read more input
+         */
+        boolean wantsRead()
+        {
+            return !eof && bytes.hasRemaining();
+        }
+
+        void close()
+        {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                // nothing more can be done
+            }
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+        }
+    }
+}
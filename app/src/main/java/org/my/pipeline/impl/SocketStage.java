@@ -0,0 +1,249 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A SocketStage is a pipeline stage whose network I/O is run by a {@link SocketSelector}
+ * rather than by a thread of its own. It is started with {@link #start()} in the same way as a
+ * stage which is a Thread, and {@link #join()} waits for it to finish. Its channels are opened
+ * and all its data is moved on the selector thread. Other threads, e.g. the threads running
+ * neighbouring stages via link listeners, ask for more data to be moved by calling
+ * {@link #signal()}. Repeated signals are coalesced into a single call to {@link #pump()}.<p/>
+ *
+ * A RuntimeException thrown by the stage's code on the selector thread fails the stage in the
+ * same way as an IOException, closing its channels and waking anything waiting to join it.
+ */
+public abstract class SocketStage
+{
+    /**
+     * the selector which runs this stage's I/O
+     */
+    protected SocketSelector selector;
+    private CountDownLatch finished;
+    private volatile IOException failure;
+    private AtomicBoolean scheduled;
+    private boolean started;
+    private boolean opened;
+    private boolean done;
+    private Runnable pumper;
+
+    protected SocketStage(SocketSelector selector)
+    {
+        this.selector = selector;
+        this.finished = new CountDownLatch(1);
+        this.failure = null;
+        this.scheduled = new AtomicBoolean(false);
+        this.started = false;
+        this.opened = false;
+        this.done = false;
+        this.pumper = new Runnable() {
+            public void run()
+            {
+                scheduled.set(false);
+                if (opened && !done) {
+                    try {
+                        pump();
+                    } catch (IOException ioe) {
+                        finish(ioe);
+                    } catch (RuntimeException re) {
+                        fail(re);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * open the stage's channels and start moving data
+     * @throws IllegalStateException if the stage has already been started
+     */
+    public synchronized void start()
+    {
+        if (started) {
+            throw new IllegalStateException("socket stage already started");
+        }
+        started = true;
+        selector.attach(this);
+        try {
+            selector.execute(new Runnable() {
+                public void run()
+                {
+                    try {
+                        open();
+                        opened = true;
+                        pump();
+                    } catch (IOException ioe) {
+                        finish(ioe);
+                    } catch (RuntimeException re) {
+                        fail(re);
+                    }
+                }
+            });
+        } catch (IllegalStateException ise) {
+            selector.detach(this);
+            throw ise;
+        }
+    }
+
+    /**
+     * wait for the stage to finish
+     * @throws InterruptedException if the wait is interrupted
+     */
+    public void join() throws InterruptedException
+    {
+        finished.await();
+    }
+
+    /**
+     * wait for the stage to finish
+     * @param millis the longest time to wait in milliseconds
+     * @return true if the stage has finished otherwise false
+     * @throws InterruptedException if the wait is interrupted
+     */
+    public boolean join(long millis) throws InterruptedException
+    {
+        return finished.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the stage has finished
+     */
+    public boolean isDone()
+    {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * @return the exception which stopped the stage or null if it has not failed
+     */
+    public IOException getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * ask the selector thread to move more data. this may be called from any thread,
+     * including by a link listener while the link is locked, since it never blocks.
+     */
+    protected void signal()
+    {
+        if (finished.getCount() == 0) {
+            // nothing left to move
+            return;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                selector.execute(pumper);
+            } catch (IllegalStateException ise) {
+                // the selector has stopped and will fail the stage if it has not already done so
+            }
+        }
+    }
+
+    /**
+     * run a task on the selector thread, failing the stage if the task throws a RuntimeException.
+     * this may be called from any thread.
+     * @param task the task
+     */
+    protected void execute(final Runnable task)
+    {
+        selector.execute(new Runnable() {
+            public void run()
+            {
+                try {
+                    task.run();
+                } catch (RuntimeException re) {
+                    fail(re);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the stage has finished. this must only be called on the selector thread.
+     */
+    protected boolean isFinished()
+    {
+        return done;
+    }
+
+    /**
+     * record that the stage has finished and release its resources. this must only be called
+     * on the selector thread.
+     * @param failure the exception which stopped the stage or null if it finished normally
+     */
+    protected void finish(IOException failure)
+    {
+        if (done) {
+            return;
+        }
+        done = true;
+        this.failure = failure;
+        selector.detach(this);
+        try {
+            close(failure);
+        } catch (RuntimeException re) {
+            // the stage has still finished
+            re.printStackTrace();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * fail the stage because its code threw an unexpected exception. this must only be called
+     * on the selector thread.
+     * @param re the exception
+     */
+    void fail(RuntimeException re)
+    {
+        IOException ioe = new IOException("socket stage failed: " + re);
+        ioe.initCause(re);
+        finish(ioe);
+    }
+
+    /**
+     * open the stage's channels and register them with the selector. called on the selector thread.
+     * @throws IOException if a channel cannot be opened
+     */
+    protected abstract void open() throws IOException;
+
+    /**
+     * move as much data as can be moved without waiting. called on the selector thread.
+     * @throws IOException if the stage fails
+     */
+    protected abstract void pump() throws IOException;
+
+    /**
+     * close the stage's channels and streams. called on the selector thread.
+     * @param failure the exception which stopped the stage or null if it finished normally
+     */
+    protected abstract void close(IOException failure);
+}
@@ -0,0 +1,479 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.Link;
+import org.my.pipeline.core.Sink;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.core.SourceProcessor;
+import org.my.pipeline.util.ChunkPool;
+
+import java.io.IOException;
+import java.io.PipedWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SplitFileSource is a data Source which reads a file using several threads in parallel. The file is
+ * cut into segments, byte ranges which start and end on a line boundary, and each segment is read
+ * and decoded by its own reader thread using positional reads on a shared FileChannel.<p/>
+ *
+ * The source can be used in one of two ways. If a sink is fed directly from the source then the
+ * decoded segments are merged back into file order, so the sink sees exactly the same data as it
+ * would from a {@link FileSource}. Alternatively, each segment can be fed to its own independent
+ * pipeline by connecting a sink to the Source returned by {@link #getSegment(int)}. In that case the
+ * segments are streamed concurrently and every segment must be given a sink. If any segment is left
+ * unconnected then nothing is read and the outputs of the connected segments are closed empty. The two
+ * modes cannot be mixed.<p/>
+ *
+ * As with FileSource bytes are passed through unconverted as chars in the range 0-255. Decoded
+ * blocks are taken from the shared {@link ChunkPool} and returned to it once they have been written.
+ */
+public class SplitFileSource extends SourceProcessor
+{
+    /**
+     * the size of the blocks read by each segment reader
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * the number of decoded blocks a segment reader may queue ahead of the merge
+     */
+    private static final int QUEUE_SIZE = 4;
+    /**
+     * marker queued by a segment reader once it has read all its data
+     */
+    private static final ChunkPool.Chunk END = ChunkPool.marker();
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private Segment[] segments;
+    private volatile boolean aborted;
+
+    /**
+     * create a source which reads a file as a number of line-aligned segments
+     * @param file the file to be read
+     * @param segmentCount the desired number of segments. fewer segments may be used if the
+     * file is too small or contains too few lines to be split this many ways
+     * @throws IOException if the file cannot be opened or read
+     */
+    public SplitFileSource(String file, int segmentCount) throws IOException
+    {
+        super();
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segment count must be positive");
+        }
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        aborted = false;
+        computeSegments(segmentCount);
+    }
+
+    /**
+     * @return the number of segments the file has been split into
+     */
+    public int getSegmentCount()
+    {
+        return segments.length;
+    }
+
+    /**
+     * obtain a source which feeds the data in one segment of the file to its own sink
+     * @param index the segment index counting from 0
+     * @return the source for the segment
+     */
+    public Source getSegment(int index)
+    {
+        return segments[index];
+    }
+
+    public void feed(Sink sink) throws IOException
+    {
+        if (isSegmented()) {
+            throw new IOException("segment output already connected");
+        }
+        super.feed(sink);
+    }
+
+    /**
+     * the parent implementation only runs when the merged output is connected so
+     * we need to override it to handle segmented output
+     */
+    public void run()
+    {
+        if (!isSegmented()) {
+            super.run();
+            return;
+        }
+        try {
+            produce();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            ChunkPool.releaseThreadCaches();
+        }
+    }
+
+    @Override
+    public void produce() throws IOException
+    {
+        try {
+            if (isSegmented()) {
+                produceSegments();
+            } else {
+                produceMerged();
+            }
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * start a reader for each segment and then copy their queued output to our output in order
+     */
+    private void produceMerged() throws IOException
+    {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].startReader(true);
+        }
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                Segment segment = segments[i];
+                ChunkPool.Chunk chunk = segment.take();
+                while (chunk != END) {
+                    try {
+                        output.write(chunk.chars(), 0, chunk.length());
+                    } finally {
+                        chunk.release();
+                    }
+                    chunk = segment.take();
+                }
+            }
+        } finally {
+            // if we failed make sure the readers do not stay blocked on a full queue
+            aborted = true;
+            joinReaders();
+            for (int i = 0; i < segments.length; i++) {
+                segments[i].releaseQueued();
+            }
+        }
+    }
+
+    /**
+     * start a reader for each segment which writes directly to the segment's output
+     */
+    private void produceSegments() throws IOException
+    {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].output == null) {
+                // the sinks of the connected segments would otherwise wait for input forever
+                closeSegmentOutputs();
+                throw new IOException("unconnected segment " + i);
+            }
+        }
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].startReader(false);
+        }
+        joinReaders();
+    }
+
+    private void closeSegmentOutputs()
+    {
+        for (int i = 0; i < segments.length; i++) {
+            PipedWriter output = segments[i].output;
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ioe) {
+                    // nothing more can be done
+                }
+            }
+        }
+    }
+
+    private void joinReaders()
+    {
+        for (int i = 0; i < segments.length; i++) {
+            Thread reader = segments[i].reader;
+            while (reader != null && reader.isAlive()) {
+                try {
+                    reader.join();
+                } catch (InterruptedException ie) {
+                    // keep waiting
+                }
+            }
+        }
+    }
+
+    private boolean isSegmented()
+    {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].output != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * split the file into roughly equal byte ranges and then move each split point forward
+     * so that it falls just after a line feed
+     */
+    private void computeSegments(int segmentCount) throws IOException
+    {
+        long size = channel.size();
+        long[] starts = new long[segmentCount + 1];
+        int count = 0;
+        starts[count++] = 0;
+        for (int i = 1; i < segmentCount; i++) {
+            long split = nextLineStart(size * i / segmentCount, size);
+            if (split > starts[count - 1] && split < size) {
+                starts[count++] = split;
+            }
+        }
+        starts[count] = size;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(i, starts[i], starts[i + 1]);
+        }
+    }
+
+    /**
+     * find the offset of the first line which starts at or after a given position
+     */
+    private long nextLineStart(long position, long size) throws IOException
+    {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        // the line starts at position if the preceding byte is a line feed
+        long current = position - 1;
+        while (current < size) {
+            buffer.clear();
+            int count = channel.read(buffer, current);
+            if (count <= 0) {
+                break;
+            }
+            for (int i = 0; i < count; i++) {
+                if (buffer.get(i) == '\n') {
+                    return current + i + 1;
+                }
+            }
+            current += count;
+        }
+        return size;
+    }
+
+    /**
+     * a contiguous line-aligned range of the file along with the thread which reads it
+     */
+    private class Segment implements Source
+    {
+        private int index;
+        private long start;
+        private long end;
+        private PipedWriter output;
+        private BlockingQueue<ChunkPool.Chunk> queue;
+        private Thread reader;
+        private IOException failure;
+
+        Segment(int index, long start, long end)
+        {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.output = null;
+            this.queue = null;
+            this.reader = null;
+            this.failure = null;
+        }
+
+        public void feed(Sink sink) throws IOException
+        {
+            if (SplitFileSource.this.output != null) {
+                throw new IOException("merged output already connected");
+            }
+            if (output != null) {
+                throw new IOException("output already connected");
+            }
+            output = Link.connect(sink);
+        }
+
+        void startReader(final boolean merged)
+        {
+            if (merged) {
+                queue = new ArrayBlockingQueue<ChunkPool.Chunk>(QUEUE_SIZE);
+            }
+            reader = new Thread(SplitFileSource.this.getName() + "-segment-" + index) {
+                public void run()
+                {
+                    try {
+                        if (merged) {
+                            readQueued();
+                        } else {
+                            readDirect();
+                        }
+                    } finally {
+                        ChunkPool.releaseThreadCaches();
+                    }
+                }
+            };
+            reader.start();
+        }
+
+        /**
+         * decode the segment into blocks which are queued for the merge
+         */
+        private void readQueued()
+        {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                ChunkPool pool = ChunkPool.charPool(CHUNK_SIZE);
+                long position = start;
+                while (position < end && !aborted) {
+                    ChunkPool.Chunk chunk = pool.allocate();
+                    try {
+                        read(buffer, position, chunk);
+                    } catch (IOException ioe) {
+                        chunk.release();
+                        throw ioe;
+                    }
+                    position += chunk.length();
+                    if (!put(chunk)) {
+                        chunk.release();
+                    }
+                }
+            } catch (IOException ioe) {
+                failure = ioe;
+            } finally {
+                put(END);
+            }
+        }
+
+        /**
+         * decode the segment straight into the segment's own output
+         */
+        private void readDirect()
+        {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                // one chunk is enough since each block is written before the next is read
+                ChunkPool.Chunk chunk = ChunkPool.charPool(CHUNK_SIZE).allocate();
+                try {
+                    long position = start;
+                    while (position < end) {
+                        read(buffer, position, chunk);
+                        position += chunk.length();
+                        output.write(chunk.chars(), 0, chunk.length());
+                    }
+                } finally {
+                    chunk.release();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            } finally {
+                try {
+                    output.close();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * read and decode the next block of the segment into a chunk
+         */
+        private void read(ByteBuffer buffer, long position, ChunkPool.Chunk chunk) throws IOException
+        {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end - position));
+            int count = channel.read(buffer, position);
+            if (count <= 0) {
+                throw new IOException("unexpected end of file in segment " + index);
+            }
+            char[] chars = chunk.chars();
+            for (int i = 0; i < count; i++) {
+                chars[i] = (char)(buffer.get(i) & 0xff);
+            }
+            chunk.setLength(count);
+        }
+
+        /**
+         * queue a chunk for the merge
+         * @return true if the chunk was queued or false if the merge has been abandoned
+         */
+        private boolean put(ChunkPool.Chunk chunk)
+        {
+            try {
+                while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    if (aborted) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException ie) {
+                // the merge has been abandoned
+                return false;
+            }
+        }
+
+        /**
+         * return any chunks left in the queue by an abandoned merge to the pool
+         */
+        void releaseQueued()
+        {
+            if (queue == null) {
+                return;
+            }
+            ChunkPool.Chunk chunk = queue.poll();
+            while (chunk != null) {
+                chunk.release();
+                chunk = queue.poll();
+            }
+        }
+
+        ChunkPool.Chunk take() throws IOException
+        {
+            ChunkPool.Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException ie) {
+                throw new IOException("interrupted reading segment " + index);
+            }
+            if (chunk == END && failure != null) {
+                throw failure;
+            }
+            return chunk;
+        }
+    }
+}
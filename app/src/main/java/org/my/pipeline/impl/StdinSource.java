@@ -0,0 +1,194 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.SourceProcessor;
+import org.my.pipeline.util.ChunkPool;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * StdinSource is a data Source which populates its output stream with characters decoded from
+ * the process's standard input, allowing a pipeline to sit in a shell pipeline. It reads file
+ * descriptor 0 through a FileChannel into a large direct buffer, so each read system call moves
+ * as much data as the upstream process has supplied, and decodes the bytes using a configurable
+ * charset, by default the platform's default charset. Malformed or unmappable input is replaced
+ * rather than rejected, as it would be by an InputStreamReader.<p/>
+ *
+ * The output is flushed after each read so that data trickling in from an interactive command
+ * is passed on straight away. When standard input reaches EOF any bytes held by the decoder are
+ * flushed and the pipeline sees EOF. If the downstream stages close the pipeline before EOF, e.g.
+ * because a StdoutSink has found its reader gone, the source simply stops reading. Standard input
+ * itself is left open, although note that interrupting the source while it is reading closes the
+ * channel, as for any interruptible channel.
+ */
+public class StdinSource extends SourceProcessor
+{
+    /**
+     * the default size of the read buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private FileChannel channel;
+    private Charset charset;
+    private int bufferSize;
+    private volatile long byteCount;
+
+    /**
+     * create a source reading standard input
+     * @throws IOException
+     */
+    public StdinSource() throws IOException
+    {
+        this(new FileInputStream(FileDescriptor.in).getChannel());
+    }
+
+    /**
+     * create a source reading some other channel, such as a channel for an inherited file descriptor
+     * @param channel the channel to read
+     * @throws IOException
+     */
+    public StdinSource(FileChannel channel) throws IOException
+    {
+        super();
+        this.channel = channel;
+        this.charset = Charset.defaultCharset();
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.byteCount = 0;
+    }
+
+    /**
+     * configure the charset used to decode the input. this must be called before the source is started.
+     * @param charset the charset
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    /**
+     * configure the size of the read buffer. this must be called before the source is started.
+     * @param bufferSize the buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("buffer size too small " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    @Override
+    public void produce() throws IOException
+    {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(bufferSize);
+        // a decoded char never needs more than one byte so this never overflows for long
+        ChunkPool.Chunk charChunk = ChunkPool.charPool(bufferSize).allocate();
+        try {
+            CharBuffer chars = CharBuffer.wrap(charChunk.chars());
+            int count = channel.read(bytes);
+            while (count >= 0) {
+                byteCount += count;
+                bytes.flip();
+                decode(decoder, bytes, chars, false);
+                // keep any partial character for the next read
+                bytes.compact();
+                flush();
+                count = channel.read(bytes);
+            }
+            bytes.flip();
+            decode(decoder, bytes, chars, true);
+            CoderResult result = decoder.flush(chars);
+            while (result.isOverflow()) {
+                drain(chars);
+                result = decoder.flush(chars);
+            }
+            drain(chars);
+        } catch (OutputClosedException oce) {
+            // downstream has gone away so there is no point reading any more
+        } finally {
+            charChunk.release();
+        }
+    }
+
+    private void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars, boolean endOfInput) throws IOException
+    {
+        CoderResult result = decoder.decode(bytes, chars, endOfInput);
+        while (result.isOverflow()) {
+            drain(chars);
+            result = decoder.decode(bytes, chars, endOfInput);
+        }
+        drain(chars);
+    }
+
+    private void drain(CharBuffer chars) throws IOException
+    {
+        if (chars.position() > 0) {
+            try {
+                output.write(chars.array(), chars.arrayOffset(), chars.position());
+            } catch (IOException ioe) {
+                throw new OutputClosedException();
+            }
+            chars.clear();
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        try {
+            output.flush();
+        } catch (IOException ioe) {
+            throw new OutputClosedException();
+        }
+    }
+
+    /**
+     * thrown internally when a write to the output fails because the pipeline has been closed downstream
+     */
+    private static class OutputClosedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
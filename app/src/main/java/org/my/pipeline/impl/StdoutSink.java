@@ -0,0 +1,211 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.my.pipeline.core.SinkProcessor;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.util.ChunkPool;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * StdoutSink is a data Sink which encodes the characters from its input stream and writes them to
+ * the process's standard output, allowing a pipeline to feed a shell pipeline. It writes file
+ * descriptor 1 through a FileChannel from a large direct buffer, encoding the characters using a
+ * configurable charset, by default the platform's default charset. The buffer is written whenever
+ * it fills or whenever no more input is immediately available, so output is not held back while
+ * the pipeline waits for more input.<p/>
+ *
+ * If the downstream process exits before the pipeline has finished, e.g. when the output is piped
+ * into head, the write fails with a broken pipe. The sink treats this as a normal end of output.
+ * It stops consuming and closes its input so that the upstream stages see a closed pipe and stop
+ * too. {@link #isBrokenPipe()} can be used to find out whether this happened. A broken pipe is
+ * recognised by the "Broken pipe" text of the error, which is what Linux and macOS report in an
+ * English locale. Elsewhere the failure is reported as an ordinary write error. Standard output
+ * itself is not closed and data is written directly to the file descriptor, so it is not
+ * interleaved with text printed via System.out in any predictable order.
+ */
+public class StdoutSink extends SinkProcessor
+{
+    /**
+     * the default size of the write buffer
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private FileChannel channel;
+    private Charset charset;
+    private int bufferSize;
+    private volatile long byteCount;
+    private volatile boolean brokenPipe;
+
+    /**
+     * create a sink writing standard output
+     * @param source the source which feeds the sink
+     * @throws IOException
+     */
+    public StdoutSink(Source source) throws IOException
+    {
+        this(new FileOutputStream(FileDescriptor.out).getChannel(), source);
+    }
+
+    /**
+     * create a sink writing some other channel, such as a channel for an inherited file descriptor
+     * @param channel the channel to write
+     * @param source the source which feeds the sink
+     * @throws IOException
+     */
+    public StdoutSink(FileChannel channel, Source source) throws IOException
+    {
+        super(source);
+        this.channel = channel;
+        this.charset = Charset.defaultCharset();
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.byteCount = 0;
+        this.brokenPipe = false;
+    }
+
+    /**
+     * configure the charset used to encode the output. this must be called before the sink is started.
+     * @param charset the charset
+     */
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    /**
+     * configure the size of the write buffer. this must be called before the sink is started.
+     * @param bufferSize the buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("buffer size too small " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * @return true if the output was abandoned because the reader of standard output went away
+     */
+    public boolean isBrokenPipe()
+    {
+        return brokenPipe;
+    }
+
+    public void consume() throws IOException
+    {
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(bufferSize);
+        ChunkPool.Chunk charChunk = ChunkPool.charPool(4096).allocate();
+        try {
+            CharBuffer chars = CharBuffer.wrap(charChunk.chars());
+            char[] array = chars.array();
+            int count = input.read(array, chars.position(), chars.remaining());
+            while (count >= 0) {
+                chars.position(chars.position() + count);
+                chars.flip();
+                encode(encoder, chars, bytes, false);
+                // keep any unpaired surrogate for the next read
+                chars.compact();
+                if (!input.ready()) {
+                    // we are about to wait for more input so send what we have
+                    write(bytes);
+                }
+                count = input.read(array, chars.position(), chars.remaining());
+            }
+            chars.flip();
+            encode(encoder, chars, bytes, true);
+            CoderResult result = encoder.flush(bytes);
+            while (result.isOverflow()) {
+                write(bytes);
+                result = encoder.flush(bytes);
+            }
+            write(bytes);
+        } catch (BrokenPipeException bpe) {
+            // the reader has gone so just stop. closing our input
+            // in the run method lets the upstream stages stop too
+            brokenPipe = true;
+        } finally {
+            charChunk.release();
+        }
+    }
+
+    private void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer bytes, boolean endOfInput) throws IOException
+    {
+        CoderResult result = encoder.encode(chars, bytes, endOfInput);
+        while (result.isOverflow()) {
+            write(bytes);
+            result = encoder.encode(chars, bytes, endOfInput);
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException
+    {
+        bytes.flip();
+        try {
+            while (bytes.hasRemaining()) {
+                byteCount += channel.write(bytes);
+            }
+        } catch (IOException ioe) {
+            // java reports EPIPE with no subclass of its own, only the platform's error text, so
+            // this relies on that text being the usual English "Broken pipe". on another platform
+            // or in another locale the failure is passed on as an ordinary write error
+            String message = ioe.getMessage();
+            if (message != null && message.contains("Broken pipe")) {
+                throw new BrokenPipeException();
+            }
+            throw ioe;
+        }
+        bytes.clear();
+    }
+
+    /**
+     * thrown internally when the reader of the channel has gone away
+     */
+    private static class BrokenPipeException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -26,17 +26,27 @@ package org.my.pipeline.impl;
 
 import org.my.pipeline.core.Source;
 import org.my.pipeline.core.TextLineProcessor;
+import org.my.pipeline.util.TraceWriter;
 
 import java.io.IOException;
 
 /**
  * A TraceProcessor is a text line processor used to trace flow of data
  * through a pipeline. It dumps its input to System.out a line at a time,
- * labelling each output line with a prefix supplied at create time.
+ * labelling each output line with a prefix supplied at create time.<p/>
+ *
+ * A TraceProcessor may instead be given a {@link TraceWriter} which writes
+ * the traced lines asynchronously from a background thread. This avoids the
+ * cost of writing and flushing System.out in the pipeline thread. The
+ * processor may also be configured to sample its input, tracing only one
+ * line in every N, so that tracing can be left enabled on busy pipelines.
  */
 
 public class TraceProcessor extends TextLineProcessor {
     private String prefix;
+    private TraceWriter writer;
+    private int sampleRate;
+    private int count;
 
     /**
      * create a trace processor with a specific prefix
@@ -45,8 +55,27 @@ public class TraceProcessor extends TextLineProcessor {
      * @throws IOException
      */
     public TraceProcessor(String prefix, Source source) throws IOException {
+        this(prefix, null, 1, source);
+    }
+
+    /**
+     * create a trace processor which writes sampled lines to a trace writer
+     * @param prefix
+     * @param writer the trace writer used to write traced lines or null to
+     * write them directly to System.out
+     * @param sampleRate the processor traces one line in every sampleRate lines
+     * @param source
+     * @throws IOException
+     */
+    public TraceProcessor(String prefix, TraceWriter writer, int sampleRate, Source source) throws IOException {
         super(source);
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sample rate must be positive");
+        }
         this.prefix = prefix;
+        this.writer = writer;
+        this.sampleRate = sampleRate;
+        this.count = 0;
     }
 
     /**
@@ -56,8 +85,16 @@ public class TraceProcessor extends TextLineProcessor {
      */
     @Override
     public String transform(String line) {
-        System.out.print(prefix);
-        System.out.println(line);
+        if (++count < sampleRate) {
+            return line;
+        }
+        count = 0;
+        if (writer != null) {
+            writer.trace(getName(), prefix, line);
+        } else {
+            // print the whole line in one call so that it cannot be split by output from another stage
+            System.out.println(prefix + line);
+        }
         return line;
     }
 }
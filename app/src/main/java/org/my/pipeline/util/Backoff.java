@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Backoff implements a spin-then-park wait for conditions which are expected to become true
+ * very soon. A waiting thread first spins, then yields and finally parks for increasing
+ * periods of up to a millisecond, so a short wait costs only a few nanoseconds of latency
+ * while a long one costs very little CPU.
+ */
+public class Backoff
+{
+    private static final int SPINS = 100;
+    private static final int YIELDS = 10;
+    private static final long MAX_PARK_NANOS = 1000 * 1000L;
+
+    private Backoff()
+    {
+    }
+
+    /**
+     * pause before retrying a check for some condition
+     * @param attempt the number of times the condition has already been checked, counting from 0
+     */
+    public static void pause(int attempt)
+    {
+        if (attempt < SPINS) {
+            // busy wait
+        } else if (attempt < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            int shift = Math.min(attempt - SPINS - YIELDS, 20);
+            LockSupport.parkNanos(Math.min(1000L << shift, MAX_PARK_NANOS));
+        }
+    }
+}
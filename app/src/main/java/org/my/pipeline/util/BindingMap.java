@@ -24,29 +24,242 @@
 
 package org.my.pipeline.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A BindingMap is used to store bindings established by instances of class Binder
  * or BindingInserter. It is also used by instances of class BindingReplacer to
  * lookup bound values which are to be substituted in place of binding identifiers.
  * n.b. bindings are maintained 1:1 i.e. the same identifier cannot be bound to two
- * different values.
+ * different values.<p/>
+ *
+ * Bindings are stored in namespaces, one for each identifier prefix i.e. the identifier
+ * with any trailing digits removed. Each namespace has its own table and lock so stages
+ * binding identifiers with different prefixes do not contend with each other, and
+ * iteration visits the namespaces in prefix order and the identifiers in each namespace in
+ * numeric order. By default all namespaces share a single inverse table so a value can
+ * only be bound under one prefix, which allows a stage to reuse an identifier bound by an
+ * earlier stage. If namespaces are isolated then each has its own inverse table and the
+ * same value may be bound once under every prefix. New identifiers are allocated by the map
+ * itself from a per-namespace counter which only ever increases, so any number of stages may
+ * create bindings with the same prefix.<p/>
+ *
+ * The bindings can be exported in the same order, one namespace at a time, either as text
+ * with one tab separated binding per line or in a compact binary format which stores each
+ * prefix once and each index as a delta from its predecessor. Either format can be imported
+ * in bulk to preload a map.<p/>
+ *
+ * The map also maintains a Bloom filter recording which identifiers are bound. This allows
+ * a BindingReplacer to check whether a reference can possibly be bound without extracting
+ * the identifier as a String or performing a hash table lookup, making references which are
+ * deliberately left unbound almost free to skip.<p/>
+ *
+ * By default a BindingReplacer may see a binding made by an upstream stage while it was
+ * processing a later line than the one being replaced, which means the output can depend
+ * on thread scheduling. A map can be put into ordered mode to avoid this. In ordered mode
+ * each Binder and BindingInserter records in an {@link EpochLog} the highest identifier
+ * index it has used by the end of each line and each namespace tracks the highest index
+ * it has published. A BindingReplacer follows its chain of upstream stages to find their logs
+ * and then only substitutes a reference to a binding which was made while processing the same
+ * or an earlier line, waiting for it to be published if necessary. Stages in other pipelines
+ * sharing the map, or on other branches of a tee, are not waited for. Ordered mode must be
+ * selected before any stages using the map are created.<p/>
+ *
+ * A map created with an {@link EvictionPolicy} holds at most the number of bindings allowed
+ * by the policy's capacity, evicting the bindings chosen by the policy to make room for new
+ * ones. This keeps memory use predictable when processing unbounded input such as a tailed
+ * log. Identifiers are allocated from the namespace's counter so an evicted identifier is never
+ * reused, and if its value is bound again it acquires a new identifier. Lookups are recorded in
+ * striped buffers which are drained into the policy in batches so that readers rarely contend
+ * with each other or with writers. Evicted identifiers are not removed from the Bloom filter so
+ * its false positive rate rises gradually over a long run.<p/>
+ *
+ * A binding must not be evicted while a reference to it is on its way to a BindingReplacer. So
+ * a bounded map stamps a binding from a reference clock each time a Binder or BindingInserter
+ * binds or reuses it, and those stages record the clock at the end of each line in their
+ * {@link EpochLog}. Each BindingReplacer downstream of them opens a {@link Watermark} which it
+ * advances as it finishes each line to the lowest stamp recorded for that line by its upstream
+ * stages. A binding stamped after the lowest open watermark is passed over by eviction, so the
+ * map may hold more bindings than its capacity while replacers are lagging. A replacer which is
+ * created but never run holds back eviction indefinitely.
  */
 public class BindingMap
 {
-    HashMap<String, String> bindings;
+    /**
+     * the number of filter bits allocated for each expected binding
+     */
+    private static final int BITS_PER_BINDING = 16;
+    /**
+     * the number of lookups each access buffer can hold before further lookups are dropped
+     */
+    private static final int ACCESS_BUFFER_SIZE = 64;
+    /**
+     * spacing between access buffer write counters to keep them on separate cache lines
+     */
+    private static final int COUNTER_PADDING = 8;
+    /**
+     * up to this many namespaces are located by comparing prefixes rather than by hashing
+     */
+    private static final int SCANNED_NAMESPACES = 16;
+    /**
+     * the first four bytes of a binary export, "BND1"
+     */
+    private static final int EXPORT_MAGIC = 0x424e4431;
+    /**
+     * the number of imported bindings added to a namespace under one lock acquisition
+     */
+    private static final int IMPORT_BATCH = 1024;
+    /**
+     * the number of still referenced victims an insertion will pass over before giving up on
+     * getting back within capacity
+     */
+    private static final int HELD_VICTIMS = 16;
+
     ConcurrentHashMap<String, String> inverseBindings;
+    private ConcurrentHashMap<String, Namespace> namespaces;
+    private volatile Namespace[] namespaceList;
+    private boolean isolated;
+    private AtomicLongArray filter;
+    private int filterMask;
+    private volatile boolean ordered;
+    private EvictionPolicy policy;
+    private ReentrantLock evictionLock;
+    private int accessStripes;
+    private AtomicReferenceArray<String> accessBuffers;
+    private AtomicLongArray accessTails;
+    private AtomicLongArray accessHeads;
+    private int evictableCount;
+    private long evictions;
+    private AtomicLong droppedAccesses;
+    private AtomicLong referenceClock;
+    private CopyOnWriteArrayList<Watermark> watermarks;
 
     /**
-     * create an empty bindings map
+     * create an empty bindings map sized for a few thousand bindings
      */
     public BindingMap()
     {
-        bindings = new HashMap<String, String>();
+        this(4096);
+    }
+
+    /**
+     * create an empty bindings map
+     * @param expectedBindings the number of bindings the map is expected to hold. this only
+     * affects the size of the Bloom filter. more bindings may be added but the filter will
+     * then report more false positives.
+     */
+    public BindingMap(int expectedBindings)
+    {
+        this(expectedBindings, null);
+    }
+
+    /**
+     * create an empty bindings map which evicts bindings once it reaches a maximum size
+     * @param policy the policy which determines the maximum size and selects bindings for eviction
+     */
+    public BindingMap(EvictionPolicy policy)
+    {
+        this(policy.getCapacity(), policy);
+    }
+
+    private BindingMap(int expectedBindings, EvictionPolicy policy)
+    {
+        if (policy != null) {
+            evictionLock = new ReentrantLock();
+            accessStripes = 1;
+            while (accessStripes < Runtime.getRuntime().availableProcessors() && accessStripes < 64) {
+                accessStripes <<= 1;
+            }
+            accessBuffers = new AtomicReferenceArray<String>(accessStripes * ACCESS_BUFFER_SIZE);
+            accessTails = new AtomicLongArray(accessStripes * COUNTER_PADDING);
+            accessHeads = new AtomicLongArray(accessStripes * COUNTER_PADDING);
+            evictableCount = 0;
+            evictions = 0;
+            droppedAccesses = new AtomicLong(0);
+            referenceClock = new AtomicLong(0);
+            watermarks = new CopyOnWriteArrayList<Watermark>();
+        }
+        this.policy = policy;
         inverseBindings = new ConcurrentHashMap<String, String>();
+        namespaces = new ConcurrentHashMap<String, Namespace>();
+        namespaceList = new Namespace[0];
+        isolated = false;
+        int bits = 1024;
+        while (bits < expectedBindings * BITS_PER_BINDING && bits < (1 << 30)) {
+            bits <<= 1;
+        }
+        filter = new AtomicLongArray(bits >> 6);
+        filterMask = bits - 1;
+        ordered = false;
+    }
+
+    /**
+     * select whether replacement respects the stream order in which bindings were made
+     * @param ordered true if the map should operate in ordered mode otherwise false
+     */
+    public void setOrdered(boolean ordered)
+    {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @return true if the map is in ordered mode otherwise false
+     */
+    public boolean isOrdered()
+    {
+        return ordered;
+    }
+
+    /**
+     * select whether each namespace has its own inverse table, allowing a value to be bound
+     * once under each prefix, or whether all namespaces share one inverse table
+     * @param isolated true if namespaces should be isolated otherwise false
+     * @throws IllegalStateException if bindings have already been added to the map
+     */
+    public void setIsolatedNamespaces(boolean isolated)
+    {
+        synchronized (namespaces) {
+            if (!namespaces.isEmpty()) {
+                throw new IllegalStateException("namespace isolation must be selected before any bindings are added");
+            }
+            this.isolated = isolated;
+        }
+    }
+
+    /**
+     * @return true if each namespace has its own inverse table otherwise false
+     */
+    public boolean isIsolatedNamespaces()
+    {
+        synchronized (namespaces) {
+            return isolated;
+        }
     }
 
     /**
@@ -58,15 +271,105 @@ public class BindingMap
      */
     public String putIfAbsent(String identifier, String value)
     {
-        String existing = inverseBindings.putIfAbsent(value, identifier);
-        if (existing == null) {
-            // first insertion
-            synchronized (bindings) {
-                bindings.put(identifier, value);
-                return null;
+        Namespace namespace = namespaceFor(identifier);
+        String existing;
+        if (policy == null) {
+            existing = namespace.inverseBindings.putIfAbsent(value, identifier);
+            if (existing == null) {
+                // first insertion
+                addToFilter(identifier.hashCode());
+                synchronized (namespace) {
+                    namespace.put(identifier, value);
+                }
             }
         } else {
-            return existing;
+            synchronized (namespace) {
+                // update both tables together so eviction never sees one without the other
+                existing = namespace.inverseBindings.putIfAbsent(value, identifier);
+                if (existing == null) {
+                    addToFilter(identifier.hashCode());
+                    namespace.put(identifier, value);
+                }
+            }
+            if (existing == null) {
+                admit(identifier);
+            } else {
+                // reusing a binding counts as a use
+                recordAccess(existing);
+            }
+        }
+        if (existing == null && ordered) {
+            publish(namespace, identifier);
+        }
+        return existing;
+    }
+
+    /**
+     * bind a value to a new identifier unless it is already bound, in which case the existing
+     * identifier is returned. a new identifier is formed by appending the next index to the prefix.
+     * the index is claimed while holding the namespace lock from a counter which only ever increases,
+     * so stages sharing the map never allocate the same identifier and an identifier is not handed
+     * out again after its binding has been evicted or after bindings have been restored from a
+     * checkpoint. in a bounded map the binding is stamped from the reference clock whether it is
+     * new or reused
+     * @param prefix the prefix used to generate identifiers. it must be non-empty and must not end
+     * with a digit.
+     * @param value the value whose binding is to be established
+     * @return the identifier bound to the value
+     * @throws IllegalArgumentException if the prefix is empty or ends with a digit
+     */
+    public String bind(String prefix, String value)
+    {
+        Namespace namespace = findNamespace(prefix);
+        if (namespace == null) {
+            if (prefix.length() == 0 || prefixLength(prefix) != prefix.length()) {
+                throw new IllegalArgumentException("invalid identifier prefix " + prefix);
+            }
+            namespace = namespaceForPrefix(prefix);
+        }
+        while (true) {
+            String existing = namespace.inverseBindings.get(value);
+            if (existing != null) {
+                if (policy == null) {
+                    return existing;
+                }
+                if (reference(existing)) {
+                    // reusing a binding counts as a use
+                    recordAccess(existing);
+                    return existing;
+                }
+                // evicted since we looked it up so bind the value afresh
+                continue;
+            }
+            String identifier;
+            synchronized (namespace) {
+                int index = namespace.highestIndex + 1;
+                identifier = prefix + index;
+                // set the filter bits and add the binding before the inverse table can
+                // hand the identifier to another stage
+                addToFilter(identifier.hashCode());
+                namespace.bindings.put(identifier, value);
+                existing = namespace.inverseBindings.putIfAbsent(value, identifier);
+                if (existing == null) {
+                    namespace.highestIndex = index;
+                    if (policy != null) {
+                        namespace.stamps.put(identifier, referenceClock.incrementAndGet());
+                    }
+                } else {
+                    // nobody can have seen the identifier so withdraw it
+                    namespace.bindings.remove(identifier);
+                }
+            }
+            if (existing == null) {
+                if (policy != null) {
+                    admit(identifier);
+                }
+                if (ordered) {
+                    publish(namespace, identifier);
+                }
+                return identifier;
+            }
+            // another stage bound the value first so go round again and reuse its binding
         }
     }
 
@@ -77,15 +380,995 @@ public class BindingMap
      */
     public String get(String identifier)
     {
-        return bindings.get(identifier);
+        Namespace namespace = findNamespace(identifier);
+        if (namespace == null) {
+            return null;
+        }
+        String value = namespace.bindings.get(identifier);
+        if (value != null && policy != null) {
+            recordAccess(identifier);
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of bindings currently in the map
+     */
+    public int size()
+    {
+        int size = 0;
+        Namespace[] list = namespaceList;
+        for (int i = 0; i < list.length; i++) {
+            size += list[i].bindings.size();
+        }
+        return size;
+    }
+
+    /**
+     * @param prefix an identifier prefix
+     * @return the number of bindings currently in the namespace for the prefix
+     */
+    public int size(String prefix)
+    {
+        Namespace namespace = namespaces.get(prefix);
+        return (namespace == null ? 0 : namespace.bindings.size());
+    }
+
+    /**
+     * @return the prefixes of all namespaces in the map in sorted order
+     */
+    public List<String> getPrefixes()
+    {
+        List<String> prefixes = new ArrayList<String>(namespaces.keySet());
+        Collections.sort(prefixes);
+        return prefixes;
     }
 
     /**
-     * obtain an iterator over the identifiers for all current bindings
+     * @return the maximum number of bindings the map will hold or -1 if it is unbounded
+     */
+    public int getCapacity()
+    {
+        return (policy == null ? -1 : policy.getCapacity());
+    }
+
+    /**
+     * @return the number of bindings evicted so far
+     */
+    public long getEvictionCount()
+    {
+        if (policy == null) {
+            return 0;
+        }
+        evictionLock.lock();
+        try {
+            return evictions;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups which were not reported to the eviction policy because the
+     * access buffers were full
+     */
+    public long getDroppedAccessCount()
+    {
+        return (policy == null ? 0 : droppedAccesses.get());
+    }
+
+    /**
+     * check whether an identifier might be bound. a false result means the identifier is definitely
+     * not bound. a true result means it is probably bound and should be looked up with {@link #get}.
+     * @param text text containing the identifier
+     * @param start the start of the identifier in the text
+     * @param end the end of the identifier in the text
+     * @return false if the identifier is not bound otherwise true
+     */
+    public boolean mightBeBound(CharSequence text, int start, int end)
+    {
+        // compute the same hash as String.hashCode without creating a String
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int h2 = mix(hash);
+        for (int i = 0; i < 3; i++) {
+            int bit = (hash + i * h2) & filterMask;
+            if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * obtain an iterator over the identifiers for all current bindings. identifiers are returned
+     * in prefix order and then in numeric order of their index
      * @return the iterator
      */
     public Iterator<String> iterator()
     {
-        return bindings.keySet().iterator();
+        List<String> identifiers = new ArrayList<String>();
+        Iterator<String> prefixes = getPrefixes().iterator();
+        while (prefixes.hasNext()) {
+            namespaces.get(prefixes.next()).addIdentifiers(identifiers);
+        }
+        return identifiers.iterator();
+    }
+
+    /**
+     * obtain an iterator over all current bindings in the same order as {@link #iterator}. each
+     * namespace is copied atomically when the iterator reaches it so bindings added to a namespace
+     * after that will not be seen
+     * @return the iterator
+     */
+    public Iterator<Map.Entry<String, String>> entries()
+    {
+        return new EntryIterator(getPrefixes().iterator());
+    }
+
+    /**
+     * write all current bindings as text in the order returned by {@link #entries}. each binding
+     * is written on its own line as the identifier and value separated by a tab. backslash, tab,
+     * newline and carriage return characters are escaped as \\, \t, \n and \r
+     * @param writer the destination for the bindings. it is flushed but not closed.
+     * @return the number of bindings written
+     * @throws IOException if the bindings cannot be written
+     */
+    public int exportBindings(Writer writer) throws IOException
+    {
+        BufferedWriter out = new BufferedWriter(writer);
+        StringBuilder builder = new StringBuilder(256);
+        int count = 0;
+        Iterator<Map.Entry<String, String>> iterator = entries();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            builder.setLength(0);
+            escape(entry.getKey(), builder);
+            builder.append('\t');
+            escape(entry.getValue(), builder);
+            builder.append('\n');
+            out.append(builder);
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * write all current bindings in binary format in the order returned by {@link #entries}
+     * @param stream the destination for the bindings. it is flushed but not closed.
+     * @return the number of bindings written
+     * @throws IOException if the bindings cannot be written
+     */
+    public int exportBindings(OutputStream stream) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        out.writeInt(EXPORT_MAGIC);
+        int count = 0;
+        Iterator<String> prefixes = getPrefixes().iterator();
+        while (prefixes.hasNext()) {
+            Namespace namespace = namespaces.get(prefixes.next());
+            List<Map.Entry<String, String>> entries = namespace.entries();
+            if (entries.isEmpty()) {
+                continue;
+            }
+            // a namespace is written as its prefix and size followed by its bindings
+            out.writeByte(1);
+            writeString(out, namespace.prefix);
+            writeVarInt(out, entries.size());
+            int previous = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Map.Entry<String, String> entry = entries.get(i);
+                int index = indexOf(entry.getKey(), namespace.prefix.length());
+                if (index < 0) {
+                    // a zero delta flags an unnumbered identifier which is written in full
+                    writeVarInt(out, 0);
+                    writeString(out, entry.getKey().substring(namespace.prefix.length()));
+                } else {
+                    writeVarInt(out, index - previous);
+                    previous = index;
+                }
+                writeString(out, entry.getValue());
+            }
+            count += entries.size();
+        }
+        out.writeByte(0);
+        out.flush();
+        return count;
+    }
+
+    /**
+     * add bindings written by {@link #exportBindings(Writer)}. a binding is skipped if its
+     * identifier or its value is already bound. blank lines and lines starting with # are ignored.
+     * @param reader the source of the bindings. it is not closed.
+     * @return the number of bindings added
+     * @throws IOException if the bindings cannot be read or a line is not a valid binding
+     */
+    public int importBindings(Reader reader) throws IOException
+    {
+        BufferedReader in = new BufferedReader(reader);
+        Namespace namespace = null;
+        String[] identifiers = new String[IMPORT_BATCH];
+        String[] values = new String[IMPORT_BATCH];
+        int pending = 0;
+        int count = 0;
+        StringBuilder builder = new StringBuilder(256);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            if (tab <= 0) {
+                throw new IOException("invalid binding " + line);
+            }
+            String identifier = unescape(line, 0, tab, builder);
+            String value = unescape(line, tab + 1, line.length(), builder);
+            Namespace next = namespaceFor(identifier);
+            if (next != namespace || pending == IMPORT_BATCH) {
+                count += addAll(namespace, identifiers, values, pending);
+                namespace = next;
+                pending = 0;
+            }
+            identifiers[pending] = identifier;
+            values[pending] = value;
+            pending++;
+        }
+        count += addAll(namespace, identifiers, values, pending);
+        return count;
+    }
+
+    /**
+     * add bindings written by {@link #exportBindings(OutputStream)}. a binding is skipped if
+     * its identifier or its value is already bound.
+     * @param stream the source of the bindings. it is not closed.
+     * @return the number of bindings added
+     * @throws IOException if the bindings cannot be read or are not in binary export format
+     */
+    public int importBindings(InputStream stream) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536));
+        if (in.readInt() != EXPORT_MAGIC) {
+            throw new IOException("invalid binding export format");
+        }
+        String[] identifiers = new String[IMPORT_BATCH];
+        String[] values = new String[IMPORT_BATCH];
+        int count = 0;
+        while (in.readByte() != 0) {
+            String prefix = readString(in);
+            if (prefixLength(prefix) != prefix.length()) {
+                throw new IOException("invalid binding prefix " + prefix);
+            }
+            Namespace namespace = namespaceForPrefix(prefix);
+            int size = readVarInt(in);
+            int index = 0;
+            int pending = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = readVarInt(in);
+                if (delta == 0) {
+                    identifiers[pending] = prefix + readString(in);
+                } else {
+                    index += delta;
+                    identifiers[pending] = prefix + index;
+                }
+                values[pending] = readString(in);
+                if (++pending == IMPORT_BATCH) {
+                    count += addAll(namespace, identifiers, values, pending);
+                    pending = 0;
+                }
+            }
+            count += addAll(namespace, identifiers, values, pending);
+        }
+        return count;
+    }
+
+    /**
+     * obtain a copy of all current bindings. the copy of each namespace is taken atomically with
+     * respect to insertion of new bindings so it can safely be saved as part of a checkpoint
+     * @return a map from identifier to bound value
+     */
+    public Map<String, String> snapshot()
+    {
+        HashMap<String, String> copy = new HashMap<String, String>();
+        Namespace[] list = namespaceList;
+        for (int i = 0; i < list.length; i++) {
+            synchronized (list[i]) {
+                copy.putAll(list[i].bindings);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * wait until the binding for an identifier with a given prefix and index has been published,
+     * spinning and then parking. this should only be called for an identifier which is known to
+     * have been created. it gives up after a second in case the creating stage has failed.
+     * @param prefix the identifier prefix
+     * @param index the identifier index
+     */
+    public void awaitPublished(String prefix, int index)
+    {
+        long deadline = 0;
+        int attempt = 0;
+        while (getPublished(prefix) < index) {
+            if (deadline == 0) {
+                deadline = System.nanoTime() + 1000 * 1000 * 1000L;
+            } else if (System.nanoTime() - deadline > 0) {
+                return;
+            }
+            Backoff.pause(attempt++);
+        }
+    }
+
+    /**
+     * @param prefix an identifier prefix
+     * @return the highest index of any published binding for the prefix or 0 if there are none
+     */
+    public int getPublished(String prefix)
+    {
+        Namespace namespace = namespaces.get(prefix);
+        return (namespace == null ? 0 : namespace.published.get());
+    }
+
+    /**
+     * @return the current value of the reference clock of a bounded map or 0 if the map is
+     * unbounded. every binding or reuse of a binding by {@link #bind} advances the clock
+     */
+    public long getReferenceStamp()
+    {
+        return (policy == null ? 0 : referenceClock.get());
+    }
+
+    /**
+     * create a watermark for a BindingReplacer which resolves references created by stages
+     * using this map. bindings referenced after the watermark's position will not be evicted
+     * until it has been advanced past them or closed
+     * @return the watermark, positioned at the current reference stamp
+     * @throws IllegalStateException if the map is not bounded
+     */
+    public Watermark openWatermark()
+    {
+        if (policy == null) {
+            throw new IllegalStateException("watermarks are only needed by a bounded map");
+        }
+        Watermark watermark = new Watermark(referenceClock.get());
+        watermarks.add(watermark);
+        return watermark;
+    }
+
+    /**
+     * @param prefix an identifier prefix
+     * @return the highest index which has been allocated by {@link #bind} or used by any other
+     * binding for the prefix or 0 if there is none. this never decreases, even when bindings are
+     * evicted
+     */
+    public int getHighestIndex(String prefix)
+    {
+        Namespace namespace = findNamespace(prefix);
+        return (namespace == null ? 0 : namespace.highestIndex);
+    }
+
+    /**
+     * ensure that {@link #bind} never allocates an index up to and including a given index for a
+     * prefix. this is used when restoring a checkpoint so that identifiers which were allocated
+     * before the checkpoint was saved are not reused, even if their bindings were not saved.
+     * @param prefix an identifier prefix
+     * @param index the highest index which must not be allocated
+     * @throws IllegalArgumentException if the prefix is empty or ends with a digit
+     */
+    public void reserveIndex(String prefix, int index)
+    {
+        if (prefix.length() == 0 || prefixLength(prefix) != prefix.length()) {
+            throw new IllegalArgumentException("invalid identifier prefix " + prefix);
+        }
+        Namespace namespace = namespaceForPrefix(prefix);
+        synchronized (namespace) {
+            if (index > namespace.highestIndex) {
+                namespace.highestIndex = index;
+            }
+        }
+    }
+
+    /**
+     * locate the namespace for an identifier
+     * @return the namespace or null if no binding with the identifier's prefix has been added
+     */
+    private Namespace findNamespace(String identifier)
+    {
+        int length = prefixLength(identifier);
+        Namespace[] list = namespaceList;
+        if (list.length <= SCANNED_NAMESPACES) {
+            // cheaper than creating a prefix String to hash
+            for (int i = 0; i < list.length; i++) {
+                String prefix = list[i].prefix;
+                if (prefix.length() == length && identifier.startsWith(prefix)) {
+                    return list[i];
+                }
+            }
+            return null;
+        }
+        return namespaces.get(identifier.substring(0, length));
+    }
+
+    /**
+     * locate the namespace for an identifier, creating it if necessary
+     */
+    private Namespace namespaceFor(String identifier)
+    {
+        Namespace namespace = findNamespace(identifier);
+        if (namespace != null) {
+            return namespace;
+        }
+        return namespaceForPrefix(identifier.substring(0, prefixLength(identifier)));
+    }
+
+    /**
+     * locate the namespace for a prefix, creating it if necessary
+     */
+    private Namespace namespaceForPrefix(String prefix)
+    {
+        Namespace namespace;
+        synchronized (namespaces) {
+            namespace = namespaces.get(prefix);
+            if (namespace == null) {
+                ConcurrentHashMap<String, String> inverse = (isolated ? new ConcurrentHashMap<String, String>() : inverseBindings);
+                namespace = new Namespace(prefix, policy != null, inverse);
+                namespaces.put(prefix, namespace);
+                Namespace[] list = Arrays.copyOf(namespaceList, namespaceList.length + 1);
+                list[list.length - 1] = namespace;
+                namespaceList = list;
+            }
+            return namespace;
+        }
+    }
+
+    /**
+     * add a batch of imported bindings to a namespace, skipping any whose identifier or value
+     * is already bound
+     * @return the number of bindings added
+     */
+    private int addAll(Namespace namespace, String[] identifiers, String[] values, int size)
+    {
+        if (size == 0) {
+            return 0;
+        }
+        int added = 0;
+        for (int i = 0; i < size; i++) {
+            String identifier = identifiers[i];
+            if (namespace.bindings.containsKey(identifier) ||
+                    namespace.inverseBindings.putIfAbsent(values[i], identifier) != null) {
+                continue;
+            }
+            addToFilter(identifier.hashCode());
+            // compact the accepted bindings to the front of the batch
+            identifiers[added] = identifier;
+            values[added] = values[i];
+            added++;
+        }
+        if (policy == null) {
+            synchronized (namespace) {
+                for (int i = 0; i < added; i++) {
+                    namespace.put(identifiers[i], values[i]);
+                }
+            }
+        } else {
+            for (int i = 0; i < added; i++) {
+                synchronized (namespace) {
+                    namespace.put(identifiers[i], values[i]);
+                }
+                admit(identifiers[i]);
+            }
+        }
+        if (ordered) {
+            for (int i = 0; i < added; i++) {
+                publish(namespace, identifiers[i]);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * advance the published version for the namespace of a newly bound identifier
+     */
+    private void publish(Namespace namespace, String identifier)
+    {
+        int index = indexOf(identifier, namespace.prefix.length());
+        if (index < 0) {
+            // not a numbered identifier so no stage will wait for it
+            return;
+        }
+        AtomicInteger version = namespace.published;
+        int current = version.get();
+        while (current < index && !version.compareAndSet(current, index)) {
+            current = version.get();
+        }
+    }
+
+    /**
+     * stamp a binding which is being reused by a Binder or BindingInserter so that it is not
+     * evicted before the reference has been resolved
+     * @return false if the binding has been evicted otherwise true
+     */
+    private boolean reference(String identifier)
+    {
+        Namespace namespace = findNamespace(identifier);
+        if (namespace == null) {
+            return false;
+        }
+        synchronized (namespace) {
+            if (!namespace.bindings.containsKey(identifier)) {
+                return false;
+            }
+            namespace.stamps.put(identifier, referenceClock.incrementAndGet());
+            return true;
+        }
+    }
+
+    /**
+     * tell the policy about a binding just added to a bounded map then evict bindings until the
+     * map is back within capacity, passing over bindings which may still be referenced downstream
+     */
+    private void admit(String identifier)
+    {
+        evictionLock.lock();
+        try {
+            evictableCount++;
+            // let the policy see earlier lookups before it picks a victim
+            drainAccesses();
+            policy.inserted(identifier);
+            int capacity = policy.getCapacity();
+            if (evictableCount <= capacity) {
+                return;
+            }
+            long lowWater = getLowWater();
+            List<String> held = null;
+            while (evictableCount > capacity) {
+                String victim = policy.victim();
+                if (victim == null) {
+                    break;
+                }
+                Namespace victimNamespace = findNamespace(victim);
+                if (victimNamespace == null) {
+                    continue;
+                }
+                String evicted = null;
+                boolean referenced = false;
+                synchronized (victimNamespace) {
+                    Long stamp = victimNamespace.stamps.get(victim);
+                    if (stamp != null && stamp > lowWater) {
+                        referenced = true;
+                    } else {
+                        evicted = victimNamespace.bindings.remove(victim);
+                        if (evicted != null) {
+                            victimNamespace.stamps.remove(victim);
+                            // only drop the inverse binding if it still refers to the victim
+                            victimNamespace.inverseBindings.remove(evicted, victim);
+                        }
+                    }
+                }
+                if (referenced) {
+                    if (held == null) {
+                        held = new ArrayList<String>();
+                    }
+                    held.add(victim);
+                    if (held.size() == HELD_VICTIMS) {
+                        // stay over capacity until the replacers catch up
+                        break;
+                    }
+                } else if (evicted != null) {
+                    evictableCount--;
+                    evictions++;
+                }
+            }
+            if (held != null) {
+                // the policy forgot these when it offered them so hand them back
+                for (int i = 0; i < held.size(); i++) {
+                    policy.inserted(held.get(i));
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the lowest position of any open watermark or Long.MAX_VALUE if there are none
+     */
+    private long getLowWater()
+    {
+        long lowWater = Long.MAX_VALUE;
+        Iterator<Watermark> iterator = watermarks.iterator();
+        while (iterator.hasNext()) {
+            long resolved = iterator.next().resolved;
+            if (resolved < lowWater) {
+                lowWater = resolved;
+            }
+        }
+        return lowWater;
+    }
+
+    /**
+     * note a lookup in the calling thread's access buffer, draining the buffers if they are
+     * filling up and nobody else is updating the policy. the lookup is dropped if the buffer
+     * is full.
+     */
+    private void recordAccess(String identifier)
+    {
+        int stripe = (int)Thread.currentThread().getId() & (accessStripes - 1);
+        int counter = stripe * COUNTER_PADDING;
+        long head = accessHeads.get(counter);
+        long tail = accessTails.get(counter);
+        if (tail - head >= ACCESS_BUFFER_SIZE || !accessTails.compareAndSet(counter, tail, tail + 1)) {
+            // full or contended so the policy will have to do without this one
+            droppedAccesses.incrementAndGet();
+            return;
+        }
+        accessBuffers.lazySet(stripe * ACCESS_BUFFER_SIZE + (int)(tail & (ACCESS_BUFFER_SIZE - 1)), identifier);
+        if (tail + 1 - head >= ACCESS_BUFFER_SIZE / 2 && evictionLock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * pass all buffered lookups to the policy. must be called with the eviction lock held
+     */
+    private void drainAccesses()
+    {
+        for (int stripe = 0; stripe < accessStripes; stripe++) {
+            int counter = stripe * COUNTER_PADDING;
+            long head = accessHeads.get(counter);
+            long tail = accessTails.get(counter);
+            while (head < tail) {
+                int slot = stripe * ACCESS_BUFFER_SIZE + (int)(head & (ACCESS_BUFFER_SIZE - 1));
+                String identifier = accessBuffers.get(slot);
+                if (identifier == null) {
+                    // the writer has claimed the slot but not yet filled it
+                    break;
+                }
+                accessBuffers.lazySet(slot, null);
+                policy.accessed(identifier);
+                head++;
+            }
+            accessHeads.lazySet(counter, head);
+        }
+    }
+
+    /**
+     * set the filter bits for an identifier with a given hash code
+     */
+    private void addToFilter(int hash)
+    {
+        int h2 = mix(hash);
+        for (int i = 0; i < 3; i++) {
+            int bit = (hash + i * h2) & filterMask;
+            int index = bit >>> 6;
+            long mask = 1L << bit;
+            long word = filter.get(index);
+            while ((word & mask) == 0 && !filter.compareAndSet(index, word, word | mask)) {
+                word = filter.get(index);
+            }
+        }
+    }
+
+    /**
+     * derive a second well distributed hash from a String hash code. the result is forced to be
+     * odd so successive probes visit distinct bits.
+     */
+    private static int mix(int hash)
+    {
+        int h = hash * 0x9E3779B9;
+        h ^= (h >>> 16);
+        return h | 1;
+    }
+
+    private static void escape(String text, StringBuilder builder)
+    {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String line, int start, int end, StringBuilder builder) throws IOException
+    {
+        int escape = line.indexOf('\\', start);
+        if (escape < 0 || escape >= end) {
+            return line.substring(start, end);
+        }
+        builder.setLength(0);
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                if (++i == end) {
+                    throw new IOException("invalid escape in binding " + line);
+                }
+                c = line.charAt(i);
+                switch (c) {
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case '\\':
+                        break;
+                    default:
+                        throw new IOException("invalid escape in binding " + line);
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("invalid binding export format");
+    }
+
+    /**
+     * write a string as a byte count followed by its UTF-8 encoding
+     */
+    private static void writeString(DataOutputStream out, String text) throws IOException
+    {
+        byte[] bytes = text.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("invalid binding export format");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * @return the length of an identifier once any trailing digits have been removed
+     */
+    private static int prefixLength(String identifier)
+    {
+        int length = identifier.length();
+        while (length > 0 && Character.isDigit(identifier.charAt(length - 1))) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * parse the index which follows the prefix of an identifier
+     * @return the index or -1 if the identifier has no index, if the index has a leading zero or
+     * if it is too large to be an int
+     */
+    private static int indexOf(String identifier, int start)
+    {
+        int length = identifier.length() - start;
+        if (length == 0 || length > 9 || identifier.charAt(start) == '0') {
+            return -1;
+        }
+        return Integer.parseInt(identifier.substring(start));
+    }
+
+    /**
+     * the bindings for all identifiers which share a prefix. updates are made holding the
+     * namespace's monitor
+     */
+    private static class Namespace
+    {
+        final String prefix;
+        final Map<String, String> bindings;
+        final ConcurrentHashMap<String, String> inverseBindings;
+        final AtomicInteger published;
+        /**
+         * the reference stamp of each binding in a bounded map or null if the map is unbounded
+         */
+        final Map<String, Long> stamps;
+        /**
+         * the highest index allocated or used by any binding added to the namespace. this is
+         * only updated while holding the namespace's monitor and never decreases
+         */
+        volatile int highestIndex;
+
+        Namespace(String prefix, boolean bounded, ConcurrentHashMap<String, String> inverseBindings)
+        {
+            this.prefix = prefix;
+            // lookups are made without the lock so readers must never see a partially updated table
+            this.bindings = new ConcurrentHashMap<String, String>();
+            this.stamps = (bounded ? new HashMap<String, Long>() : null);
+            this.inverseBindings = inverseBindings;
+            this.published = new AtomicInteger(0);
+            this.highestIndex = 0;
+        }
+
+        void put(String identifier, String value)
+        {
+            bindings.put(identifier, value);
+            int index = indexOf(identifier, prefix.length());
+            if (index > highestIndex) {
+                highestIndex = index;
+            }
+        }
+
+        /**
+         * @return a copy of the bindings in the namespace in the order used by addIdentifiers
+         */
+        synchronized List<Map.Entry<String, String>> entries()
+        {
+            List<String> identifiers = new ArrayList<String>(bindings.size());
+            addIdentifiers(identifiers);
+            List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(identifiers.size());
+            for (int i = 0; i < identifiers.size(); i++) {
+                String identifier = identifiers.get(i);
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, String>(identifier, bindings.get(identifier)));
+            }
+            return entries;
+        }
+
+        /**
+         * append the identifiers in the namespace to a list in numeric order of their index
+         * followed by any identifiers without a valid index in string order
+         */
+        synchronized void addIdentifiers(List<String> identifiers)
+        {
+            int count = bindings.size();
+            List<String> unnumbered = new ArrayList<String>();
+            if (highestIndex <= 2 * count) {
+                // densely numbered so walk the indices rather than sorting
+                for (int i = 1; i <= highestIndex; i++) {
+                    String identifier = prefix + i;
+                    if (bindings.containsKey(identifier)) {
+                        identifiers.add(identifier);
+                        count--;
+                    }
+                }
+                if (count > 0) {
+                    Iterator<String> iterator = bindings.keySet().iterator();
+                    while (iterator.hasNext()) {
+                        String identifier = iterator.next();
+                        if (indexOf(identifier, prefix.length()) < 0) {
+                            unnumbered.add(identifier);
+                        }
+                    }
+                }
+            } else {
+                int[] indices = new int[count];
+                int numbered = 0;
+                Iterator<String> iterator = bindings.keySet().iterator();
+                while (iterator.hasNext()) {
+                    String identifier = iterator.next();
+                    int index = indexOf(identifier, prefix.length());
+                    if (index < 0) {
+                        unnumbered.add(identifier);
+                    } else {
+                        indices[numbered++] = index;
+                    }
+                }
+                Arrays.sort(indices, 0, numbered);
+                for (int i = 0; i < numbered; i++) {
+                    identifiers.add(prefix + indices[i]);
+                }
+            }
+            Collections.sort(unnumbered);
+            identifiers.addAll(unnumbered);
+        }
+    }
+
+    /**
+     * the position reached by a BindingReplacer in resolving references to the bindings of a
+     * bounded map. it is advanced by the replacer's thread and read by the thread evicting bindings
+     */
+    public class Watermark
+    {
+        private volatile long resolved;
+
+        private Watermark(long resolved)
+        {
+            this.resolved = resolved;
+        }
+
+        /**
+         * note that every reference made up to and including a given reference stamp has been
+         * resolved
+         * @param stamp the reference stamp
+         */
+        public void advance(long stamp)
+        {
+            if (stamp > resolved) {
+                resolved = stamp;
+            }
+        }
+
+        /**
+         * stop holding back eviction. this is called when the replacer reaches the end of its input
+         */
+        public void close()
+        {
+            watermarks.remove(this);
+        }
+    }
+
+    /**
+     * iterates over the bindings of each namespace in turn, copying a namespace when it is reached
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, String>>
+    {
+        private Iterator<String> prefixes;
+        private Iterator<Map.Entry<String, String>> current;
+
+        EntryIterator(Iterator<String> prefixes)
+        {
+            this.prefixes = prefixes;
+            this.current = Collections.<Map.Entry<String, String>>emptyList().iterator();
+        }
+
+        public boolean hasNext()
+        {
+            while (!current.hasNext()) {
+                if (!prefixes.hasNext()) {
+                    return false;
+                }
+                current = namespaces.get(prefixes.next()).entries().iterator();
+            }
+            return true;
+        }
+
+        public Map.Entry<String, String> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * A Checkpoint allows a long running FileSource to FileSink pipeline to be restarted from the
+ * point it had reached when it last recorded a consistent state rather than reprocessing its whole
+ * input.<p/>
+ *
+ * The FileSource records the offset of the end of every Nth input line and the FileSink records
+ * the offset of the end of every Nth output line once that output has been synced to disk. When
+ * both offsets are known for the same line count the checkpoint is saved to disk along with a
+ * snapshot of the BindingMap (if any) used by the pipeline and the highest index allocated for
+ * each identifier prefix. A restarted pipeline skips the input up to the saved input offset and
+ * truncates the output to the saved output offset. Identifiers allocated before the checkpoint was
+ * saved are never allocated again after a restart, even if their bindings were not saved.<p/>
+ *
+ * This relies on every stage between the source and the sink writing exactly one output line for
+ * each input line, which is true of all the TextLineProcessor and TeeProcessor implementations. A
+ * checkpoint should only be shared by one FileSource and one FileSink.<p/>
+ *
+ * Any saved state is loaded when the checkpoint is created. Restored bindings are installed into the
+ * binding map at that point so the checkpoint must be created before the pipeline stages which use
+ * the map are constructed. The checkpoint file is deleted once the sink has written every line
+ * supplied by the source.
+ */
+public class Checkpoint
+{
+    private File file;
+    private int interval;
+    private BindingMap bindings;
+    private long lineCount;
+    private long inputOffset;
+    private long outputOffset;
+    private TreeMap<Long, Long> pendingInput;
+    private long inputLines;
+    private boolean inputComplete;
+
+    /**
+     * create a checkpoint which saves its state to a file, restoring any state previously saved there
+     * @param file the file used to save the checkpoint state
+     * @param interval the number of lines which must be processed between successive checkpoints
+     * @param bindings a binding map whose bindings are to be saved with the checkpoint or null
+     * if the pipeline does not use a binding map
+     * @throws IOException if the checkpoint file exists but cannot be read
+     */
+    public Checkpoint(String file, int interval, BindingMap bindings) throws IOException
+    {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        }
+        this.file = new File(file);
+        this.interval = interval;
+        this.bindings = bindings;
+        this.lineCount = 0;
+        this.inputOffset = 0;
+        this.outputOffset = 0;
+        this.pendingInput = new TreeMap<Long, Long>();
+        this.inputLines = -1;
+        this.inputComplete = false;
+        restore();
+    }
+
+    /**
+     * the number of lines processed when the restored checkpoint was saved or 0 if there was no
+     * saved checkpoint
+     * @return the line count
+     */
+    public long getLineCount()
+    {
+        return lineCount;
+    }
+
+    /**
+     * the offset in the input file from which a restarted source should resume reading
+     * @return the input offset
+     */
+    public long getInputOffset()
+    {
+        return inputOffset;
+    }
+
+    /**
+     * the length to which a restarted sink should truncate its output file before resuming writing
+     * @return the output offset
+     */
+    public long getOutputOffset()
+    {
+        return outputOffset;
+    }
+
+    /**
+     * test whether a line count is one at which a checkpoint should be recorded
+     * @param lines the number of lines processed so far
+     * @return true if a checkpoint is due otherwise false
+     */
+    public boolean isDue(long lines)
+    {
+        return lines % interval == 0;
+    }
+
+    /**
+     * called by a FileSource to record the input offset just after a given line
+     * @param lines the number of lines read so far
+     * @param offset the offset of the first byte following the last line
+     */
+    public synchronized void markInput(long lines, long offset)
+    {
+        pendingInput.put(lines, offset);
+    }
+
+    /**
+     * called by a FileSource when it has read all its input
+     * @param lines the total number of lines read including any final unterminated line
+     */
+    public synchronized void markInputComplete(long lines)
+    {
+        inputLines = lines;
+        inputComplete = true;
+    }
+
+    /**
+     * called by a FileSink once the output up to and including a given line has been synced
+     * to disk. if the matching input offset is known then the checkpoint is saved.
+     * @param lines the number of lines written so far
+     * @param offset the length of the durable output
+     * @throws IOException if the checkpoint cannot be saved
+     */
+    public synchronized void commit(long lines, long offset) throws IOException
+    {
+        Long input = pendingInput.get(lines);
+        if (input == null) {
+            // the source cannot be behind the sink so this can only happen if
+            // the line was already committed
+            return;
+        }
+        // discard this and any earlier input offsets, they will never be needed again
+        pendingInput.headMap(lines, true).clear();
+        lineCount = lines;
+        inputOffset = input;
+        outputOffset = offset;
+        save();
+    }
+
+    /**
+     * called by a FileSink when its input has been exhausted. if the sink has received a line for
+     * every line read by the source then the job is finished and the checkpoint file is deleted.
+     * otherwise some upstream stage failed and the last saved checkpoint is retained.
+     * @param lines the total number of lines written including any final unterminated line
+     * @return true if the checkpoint was completed otherwise false
+     */
+    public synchronized boolean complete(long lines)
+    {
+        if (!inputComplete || lines != inputLines) {
+            return false;
+        }
+        file.delete();
+        return true;
+    }
+
+    private void restore() throws IOException
+    {
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            properties.load(fin);
+        } finally {
+            fin.close();
+        }
+        try {
+            lineCount = Long.parseLong(properties.getProperty("lines", "0"));
+            inputOffset = Long.parseLong(properties.getProperty("input.offset", "0"));
+            outputOffset = Long.parseLong(properties.getProperty("output.offset", "0"));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("invalid checkpoint file " + file);
+        }
+        if (bindings != null) {
+            Iterator<String> names = properties.stringPropertyNames().iterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (name.startsWith("binding.")) {
+                    bindings.putIfAbsent(name.substring(8), properties.getProperty(name));
+                } else if (name.startsWith("index.")) {
+                    try {
+                        bindings.reserveIndex(name.substring(6), Integer.parseInt(properties.getProperty(name)));
+                    } catch (IllegalArgumentException iae) {
+                        // a malformed index or prefix
+                        throw new IOException("invalid checkpoint file " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty("lines", Long.toString(lineCount));
+        properties.setProperty("input.offset", Long.toString(inputOffset));
+        properties.setProperty("output.offset", Long.toString(outputOffset));
+        if (bindings != null) {
+            Iterator<Map.Entry<String, String>> entries = bindings.snapshot().entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                properties.setProperty("binding." + entry.getKey(), entry.getValue());
+            }
+            // read after the snapshot so no saved binding can have a higher index
+            Iterator<String> prefixes = bindings.getPrefixes().iterator();
+            while (prefixes.hasNext()) {
+                String prefix = prefixes.next();
+                properties.setProperty("index." + prefix, Integer.toString(bindings.getHighestIndex(prefix)));
+            }
+        }
+        // write a new copy and then rename it so that a crash never leaves a partial checkpoint
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try {
+            properties.store(fout, "pipeline checkpoint");
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // some platforms will not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("unable to save checkpoint " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ChunkPool recycles the fixed size char or byte arrays used to move blocks of data between
+ * threads so that a pipeline running at a steady rate allocates no new buffers. Pools are shared
+ * process-wide, one for each kind and size of chunk, and are obtained using {@link #charPool(int)}
+ * or {@link #bytePool(int)}.<p/>
+ *
+ * Each thread keeps a small cache of free chunks so most allocations and releases touch no shared
+ * state. A thread whose cache is empty takes chunks from a global pool which is split into stripes
+ * to limit contention, and a thread whose cache is full returns chunks to it. The global pool is
+ * bounded and chunks released when it is full are left for the garbage collector. A thread which
+ * is about to exit should call {@link #releaseThreadCaches()} so that the chunks in its caches
+ * are not lost. The pipeline stage threads and helper threads all do so.<p/>
+ *
+ * Chunks are reference counted. A chunk is allocated with one reference, a holder which passes a
+ * chunk on to several consumers retains an extra reference for each of them and every holder
+ * releases its reference when it has finished with the chunk. The chunk returns to the pool when
+ * the last reference is released. Releasing or retaining a chunk which has no references left
+ * throws an IllegalStateException. Normally this only catches a holder which releases too often
+ * before the chunk has been reused, since a reused chunk has references again.<p/>
+ *
+ * When leak detection is enabled, either by calling {@link #setLeakDetection(boolean)} or by
+ * setting system property org.my.pipeline.chunk.leakDetection to true, the pool records where
+ * each chunk was allocated until it is released. {@link #reportLeaks(PrintStream)} prints the
+ * allocation stack of every chunk still outstanding. Released chunks are also retired rather
+ * than reused, so a stale holder which releases or retains a chunk after its last reference has
+ * gone is always caught and can never corrupt the data of a later holder. This makes leak
+ * detection a debugging aid, as every allocation then creates a new chunk.
+ */
+public class ChunkPool
+{
+    /**
+     * the number of free chunks each thread may cache
+     */
+    private static final int THREAD_CACHE_SIZE = 8;
+    /**
+     * the number of free chunks each global stripe may hold
+     */
+    private static final int STRIPE_CAPACITY = 32;
+
+    private static final ConcurrentHashMap<Integer, ChunkPool> charPools = new ConcurrentHashMap<Integer, ChunkPool>();
+    private static final ConcurrentHashMap<Integer, ChunkPool> bytePools = new ConcurrentHashMap<Integer, ChunkPool>();
+    /**
+     * the pools in which the current thread has a cache
+     */
+    private static final ThreadLocal<List<ChunkPool>> cachedPools = new ThreadLocal<List<ChunkPool>>() {
+        protected List<ChunkPool> initialValue()
+        {
+            return new ArrayList<ChunkPool>();
+        }
+    };
+
+    private boolean holdsChars;
+    private int chunkSize;
+    private ThreadLocal<ArrayDeque<Chunk>> cache;
+    private Stripe[] stripes;
+    private volatile boolean leakDetection;
+    private ConcurrentHashMap<Chunk, Throwable> outstanding;
+    private AtomicLong created;
+    private AtomicLong discarded;
+
+    private ChunkPool(boolean holdsChars, int chunkSize)
+    {
+        this.holdsChars = holdsChars;
+        this.chunkSize = chunkSize;
+        this.cache = new ThreadLocal<ArrayDeque<Chunk>>() {
+            protected ArrayDeque<Chunk> initialValue()
+            {
+                cachedPools.get().add(ChunkPool.this);
+                return new ArrayDeque<Chunk>(THREAD_CACHE_SIZE + 1);
+            }
+        };
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() && count < 64) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.leakDetection = Boolean.getBoolean("org.my.pipeline.chunk.leakDetection");
+        this.outstanding = new ConcurrentHashMap<Chunk, Throwable>();
+        this.created = new AtomicLong(0);
+        this.discarded = new AtomicLong(0);
+    }
+
+    /**
+     * obtain the shared pool of char chunks of a given size
+     * @param chunkSize the length of the chunks
+     * @return the pool
+     */
+    public static ChunkPool charPool(int chunkSize)
+    {
+        return pool(charPools, true, chunkSize);
+    }
+
+    /**
+     * obtain the shared pool of byte chunks of a given size
+     * @param chunkSize the length of the chunks
+     * @return the pool
+     */
+    public static ChunkPool bytePool(int chunkSize)
+    {
+        return pool(bytePools, false, chunkSize);
+    }
+
+    private static ChunkPool pool(ConcurrentHashMap<Integer, ChunkPool> pools, boolean holdsChars, int chunkSize)
+    {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("invalid chunk size " + chunkSize);
+        }
+        ChunkPool pool = pools.get(chunkSize);
+        if (pool == null) {
+            ChunkPool existing = pools.putIfAbsent(chunkSize, pool = new ChunkPool(holdsChars, chunkSize));
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * move any free chunks cached by the current thread to the global pools so that other threads
+     * can use them. this should be called by a thread which has used chunks before it exits.
+     */
+    public static void releaseThreadCaches()
+    {
+        List<ChunkPool> pools = cachedPools.get();
+        for (int i = 0; i < pools.size(); i++) {
+            ChunkPool pool = pools.get(i);
+            ArrayDeque<Chunk> local = pool.cache.get();
+            Chunk chunk = local.pollFirst();
+            while (chunk != null) {
+                pool.offerGlobal(chunk);
+                chunk = local.pollFirst();
+            }
+            pool.cache.remove();
+        }
+        cachedPools.remove();
+    }
+
+    /**
+     * create a zero length chunk which belongs to no pool. this is useful as an end of data marker
+     * in a queue of chunks. retaining or releasing it does nothing.
+     * @return the chunk
+     */
+    public static Chunk marker()
+    {
+        return new Chunk(null, null, null);
+    }
+
+    /**
+     * obtain a chunk holding one reference. the chunk's length is set to the pool's chunk size.
+     * @return the chunk
+     */
+    public Chunk allocate()
+    {
+        Chunk chunk = cache.get().pollLast();
+        if (chunk == null) {
+            Stripe stripe = stripe();
+            chunk = stripe.free.poll();
+            if (chunk != null) {
+                stripe.size.decrementAndGet();
+            } else {
+                chunk = stealOrCreate();
+            }
+        }
+        chunk.references.set(1);
+        chunk.length = chunkSize;
+        if (leakDetection) {
+            outstanding.put(chunk, new Throwable("chunk allocated by thread " + Thread.currentThread().getName()));
+        }
+        return chunk;
+    }
+
+    /**
+     * @return the length of the chunks in this pool
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * enable or disable recording of allocation sites for chunks which have not been released
+     * @param enabled true if leak detection should be enabled otherwise false
+     */
+    public void setLeakDetection(boolean enabled)
+    {
+        leakDetection = enabled;
+        if (!enabled) {
+            outstanding.clear();
+        }
+    }
+
+    /**
+     * @return true if leak detection is enabled otherwise false
+     */
+    public boolean isLeakDetection()
+    {
+        return leakDetection;
+    }
+
+    /**
+     * @return the number of chunks allocated since leak detection was enabled which have not been released
+     */
+    public int getOutstandingCount()
+    {
+        return outstanding.size();
+    }
+
+    /**
+     * print the allocation stack of every chunk allocated since leak detection was enabled which
+     * has not been released
+     * @param out the stream to print to
+     * @return the number of chunks reported
+     */
+    public int reportLeaks(PrintStream out)
+    {
+        int count = 0;
+        Iterator<Map.Entry<Chunk, Throwable>> iterator = outstanding.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Chunk, Throwable> entry = iterator.next();
+            out.println("unreleased " + (holdsChars ? "char" : "byte") + " chunk of size " + chunkSize);
+            entry.getValue().printStackTrace(out);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of chunks the pool has had to create because none were free
+     */
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    /**
+     * @return the number of released chunks dropped because the pool was full or retired because
+     * leak detection was enabled
+     */
+    public long getDiscardedCount()
+    {
+        return discarded.get();
+    }
+
+    private Stripe stripe()
+    {
+        return stripes[(int)Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    private Chunk stealOrCreate()
+    {
+        // our own stripe is empty so try the others before allocating
+        for (int i = 0; i < stripes.length; i++) {
+            Chunk chunk = stripes[i].free.poll();
+            if (chunk != null) {
+                stripes[i].size.decrementAndGet();
+                return chunk;
+            }
+        }
+        created.incrementAndGet();
+        if (holdsChars) {
+            return new Chunk(this, new char[chunkSize], null);
+        } else {
+            return new Chunk(this, null, new byte[chunkSize]);
+        }
+    }
+
+    private void recycle(Chunk chunk)
+    {
+        if (leakDetection) {
+            outstanding.remove(chunk);
+            // keep the reference count at zero for good so late releases are still detected
+            discarded.incrementAndGet();
+            return;
+        }
+        ArrayDeque<Chunk> local = cache.get();
+        if (local.size() < THREAD_CACHE_SIZE) {
+            local.addLast(chunk);
+            return;
+        }
+        // move half the local cache to the global pool so we do not bounce on the limit
+        local.addLast(chunk);
+        for (int i = 0; i <= THREAD_CACHE_SIZE / 2; i++) {
+            offerGlobal(local.pollFirst());
+        }
+    }
+
+    private void offerGlobal(Chunk chunk)
+    {
+        Stripe stripe = stripe();
+        if (stripe.size.incrementAndGet() <= STRIPE_CAPACITY) {
+            stripe.free.offer(chunk);
+        } else {
+            stripe.size.decrementAndGet();
+            discarded.incrementAndGet();
+        }
+    }
+
+    private static class Stripe
+    {
+        final ConcurrentLinkedQueue<Chunk> free = new ConcurrentLinkedQueue<Chunk>();
+        final AtomicInteger size = new AtomicInteger(0);
+    }
+
+    /**
+     * a reference counted block of chars or bytes belonging to a ChunkPool
+     */
+    public static class Chunk
+    {
+        private ChunkPool pool;
+        private char[] chars;
+        private byte[] bytes;
+        private int length;
+        private AtomicInteger references;
+
+        private Chunk(ChunkPool pool, char[] chars, byte[] bytes)
+        {
+            this.pool = pool;
+            this.chars = chars;
+            this.bytes = bytes;
+            this.length = 0;
+            this.references = new AtomicInteger(1);
+        }
+
+        /**
+         * @return the chunk's data if it belongs to a char pool otherwise null
+         */
+        public char[] chars()
+        {
+            return chars;
+        }
+
+        /**
+         * @return the chunk's data if it belongs to a byte pool otherwise null
+         */
+        public byte[] bytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return the number of valid chars or bytes in the chunk
+         */
+        public int length()
+        {
+            return length;
+        }
+
+        /**
+         * record the number of valid chars or bytes in the chunk
+         * @param length the length
+         */
+        public void setLength(int length)
+        {
+            this.length = length;
+        }
+
+        /**
+         * add a reference for a further holder of the chunk
+         * @return the chunk
+         * @throws IllegalStateException if the chunk has already been released
+         */
+        public Chunk retain()
+        {
+            if (pool == null) {
+                return this;
+            }
+            int count;
+            do {
+                // reread the count on every attempt since a failed CAS means another holder
+                // retained or released the chunk in the meantime
+                count = references.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("chunk retained after release");
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * drop a reference to the chunk, returning it to its pool if this was the last one. the
+         * caller must not use the chunk after releasing it
+         * @throws IllegalStateException if the chunk has already been released
+         */
+        public void release()
+        {
+            if (pool == null) {
+                return;
+            }
+            int count = references.decrementAndGet();
+            if (count == 0) {
+                pool.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("chunk released too many times");
+            }
+        }
+    }
+}
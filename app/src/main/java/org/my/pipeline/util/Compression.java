@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression identifies the streaming codec used to read or write a file. Files may be stored
+ * uncompressed, in gzip format or in zlib (deflate) format. AUTO selects a codec by inspecting
+ * the file, either by checking for the gzip magic number when reading or by checking the
+ * file name suffix (".gz", ".zz" or ".zlib") when reading or writing.<p/>
+ *
+ * Compressed streams are pipelined so that decompression or compression runs on a helper thread
+ * in parallel with the thread which reads or writes the uncompressed data.
+ */
+public enum Compression
+{
+    NONE,
+    GZIP,
+    DEFLATE,
+    AUTO;
+
+    /**
+     * the size of the blocks passed between the helper thread and the pipeline
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /**
+     * the number of blocks which may be queued between the helper thread and the pipeline
+     */
+    private static final int DEPTH = 4;
+
+    /**
+     * identify the codec to use when writing a file
+     * @param file the name of the file
+     * @return this codec or, for AUTO, the codec indicated by the file suffix
+     */
+    public Compression resolve(String file)
+    {
+        if (this != AUTO) {
+            return this;
+        }
+        if (file.endsWith(".gz")) {
+            return GZIP;
+        } else if (file.endsWith(".zz") || file.endsWith(".zlib")) {
+            return DEFLATE;
+        }
+        return NONE;
+    }
+
+    /**
+     * identify the codec to use when reading a file
+     * @param file the name of the file
+     * @param channel a channel open on the file. its position is not changed.
+     * @return this codec or, for AUTO, the codec indicated by the file contents or suffix
+     * @throws IOException if the file cannot be read
+     */
+    public Compression resolve(String file, FileChannel channel) throws IOException
+    {
+        if (this != AUTO) {
+            return this;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            // keep reading
+        }
+        if (magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+            return GZIP;
+        }
+        // a zlib header is too easily confused with text so rely on the name
+        return resolve(file);
+    }
+
+    /**
+     * wrap a stream of compressed data so that it can be read in uncompressed form
+     * @param in the compressed stream
+     * @param name a name for the helper thread which performs decompression
+     * @return a stream supplying the uncompressed data
+     * @throws IOException if the stream header is invalid
+     */
+    public InputStream decompress(InputStream in, String name) throws IOException
+    {
+        switch (this) {
+            case GZIP:
+                return new PipelinedInputStream(new GZIPInputStream(in, BLOCK_SIZE), BLOCK_SIZE, DEPTH, name);
+            case DEFLATE:
+                return new PipelinedInputStream(new InflaterInputStream(in), BLOCK_SIZE, DEPTH, name);
+            case NONE:
+                return in;
+            default:
+                throw new IOException("compression must be resolved before use");
+        }
+    }
+
+    /**
+     * wrap a stream so that data written to it is compressed
+     * @param out the stream to receive the compressed data
+     * @param name a name for the helper thread which performs compression
+     * @return a stream accepting uncompressed data
+     * @throws IOException if the stream header cannot be written
+     */
+    public OutputStream compress(OutputStream out, String name) throws IOException
+    {
+        switch (this) {
+            case GZIP:
+                return new PipelinedOutputStream(new GZIPOutputStream(out, BLOCK_SIZE), BLOCK_SIZE, DEPTH, name);
+            case DEFLATE:
+                return new PipelinedOutputStream(new DeflaterOutputStream(out), BLOCK_SIZE, DEPTH, name);
+            case NONE:
+                return out;
+            default:
+                throw new IOException("compression must be resolved before use");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+/**
+ * An EpochLog records, for each line processed by a Binder or BindingInserter, the binding epoch
+ * reached once the line had been processed, i.e. the highest index used to create an identifier
+ * with the stage's prefix. It allows a downstream BindingReplacer to tell whether a binding was
+ * made while processing the same or an earlier line of the stream or whether it was made for a
+ * later line by a stage running ahead. For a capacity bounded {@link BindingMap} it also records
+ * the map's reference stamp at the end of each line, which allows the replacer to tell the map
+ * which references it has resolved.<p/>
+ *
+ * The log is written by a single thread and may be read by any number of cursors, each owned by
+ * a single thread. Epochs are stored in chunks which are discarded once all cursors have passed
+ * them. Cursors must be created before the writer starts recording epochs.
+ */
+public class EpochLog
+{
+    private static final int CHUNK_SIZE = 1024;
+    /**
+     * how long a cursor waits for an epoch which has not been recorded
+     */
+    private static final long TIMEOUT_NANOS = 1000 * 1000 * 1000L;
+
+    private String prefix;
+    private Chunk tail;
+    private int tailIndex;
+    private volatile long count;
+
+    /**
+     * create a log for the stage which creates identifiers with a given prefix
+     * @param prefix the prefix
+     */
+    public EpochLog(String prefix)
+    {
+        this.prefix = prefix;
+        this.tail = new Chunk();
+        this.tailIndex = 0;
+        this.count = 0;
+    }
+
+    /**
+     * @return the prefix of the identifiers whose epochs are recorded in this log
+     */
+    public String getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * record the epoch reached after processing the next line. this must only be called by
+     * the thread which owns the log
+     * @param epoch the highest index used so far to create an identifier
+     * @param stamp the binding map's reference stamp once the line has been processed
+     */
+    public void record(int epoch, long stamp)
+    {
+        if (tailIndex == CHUNK_SIZE) {
+            Chunk chunk = new Chunk();
+            tail.next = chunk;
+            tail = chunk;
+            tailIndex = 0;
+        }
+        tail.stamps[tailIndex] = stamp;
+        tail.epochs[tailIndex++] = epoch;
+        // the volatile write publishes the epoch and any new chunk to readers
+        count = count + 1;
+    }
+
+    /**
+     * create a cursor which reads epochs starting with the next line to be recorded
+     * @return the cursor
+     */
+    public Cursor newCursor()
+    {
+        return new Cursor(tail, tailIndex, count);
+    }
+
+    private static class Chunk
+    {
+        private int[] epochs = new int[CHUNK_SIZE];
+        private long[] stamps = new long[CHUNK_SIZE];
+        private volatile Chunk next;
+    }
+
+    /**
+     * a reader's position in the log
+     */
+    public class Cursor
+    {
+        private Chunk chunk;
+        private int index;
+        private long read;
+        private long stamp;
+
+        private Cursor(Chunk chunk, int index, long read)
+        {
+            this.chunk = chunk;
+            this.index = index;
+            this.read = read;
+            this.stamp = 0;
+        }
+
+        /**
+         * return the epoch for the next line. the epoch for a line is always recorded before the line
+         * is passed downstream so this should not need to wait. however, if the epoch is unaccountably
+         * missing then the cursor waits briefly and, failing that, returns Integer.MAX_VALUE to indicate
+         * that all bindings should be treated as visible.
+         * @return the epoch
+         */
+        public int next()
+        {
+            if (read == count) {
+                long deadline = System.nanoTime() + TIMEOUT_NANOS;
+                int attempt = 0;
+                while (read == count) {
+                    if (System.nanoTime() - deadline > 0) {
+                        return Integer.MAX_VALUE;
+                    }
+                    Backoff.pause(attempt++);
+                }
+            }
+            if (index == CHUNK_SIZE) {
+                chunk = chunk.next;
+                index = 0;
+            }
+            read++;
+            stamp = chunk.stamps[index];
+            return chunk.epochs[index++];
+        }
+
+        /**
+         * @return the reference stamp recorded for the line whose epoch was last returned by
+         * {@link #next}. if the epoch was missing this is the stamp of the line before
+         */
+        public long getStamp()
+        {
+            return stamp;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+/**
+ * interface implemented by policies which select bindings to be evicted from a capacity
+ * bounded {@link BindingMap}<p/>
+ *
+ * a policy is only ever called while the map holds its eviction lock so implementations
+ * need not be thread safe. lookups are reported in batches some time after they happen and
+ * some may be dropped when the map is busy so a policy should treat them as hints.
+ */
+public interface EvictionPolicy
+{
+    /**
+     * @return the maximum number of bindings the map should hold
+     */
+    public int getCapacity();
+
+    /**
+     * notify the policy that a new binding has been established
+     * @param identifier the identifier of the new binding
+     */
+    public void inserted(String identifier);
+
+    /**
+     * notify the policy that a binding has been used. this may be called for an identifier
+     * which has already been evicted in which case it should be ignored
+     * @param identifier the identifier of the binding
+     */
+    public void accessed(String identifier);
+
+    /**
+     * select a binding to be evicted and forget about it
+     * @return the identifier of the binding to evict or null if the policy holds no bindings
+     */
+    public String victim();
+}
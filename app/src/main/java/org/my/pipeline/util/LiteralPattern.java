@@ -0,0 +1,251 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+/**
+ * A LiteralPattern is a hand-specialized matcher for the simple regular expressions most commonly
+ * supplied to a Binder or BindingInserter. It handles patterns which consist of a literal prefix,
+ * a single character class repeated one or more times and an optional literal suffix, with the
+ * character class run optionally enclosed in a match group. For example, "the ([A-Za-z0-9]+)" or
+ * "a \\$\\{[X0-9]+\\}".<p/>
+ *
+ * A match is found by locating the prefix using String.indexOf, which the JIT compiles to a fast
+ * vectorized search, and then scanning the run of class characters using a lookup table. This avoids
+ * the overhead of driving a general purpose java.util.regex.Matcher over every line.<p/>
+ *
+ * {@link #compile(String)} returns null for any pattern it cannot handle with exactly the same
+ * results as java.util.regex.Pattern, in which case the caller should fall back to using a regular
+ * expression. In particular, the class may only contain ASCII characters and ranges and, when there
+ * is a suffix, its first character must not belong to the class. This guarantees that the greedy
+ * class run never needs to backtrack.
+ */
+public class LiteralPattern
+{
+    /**
+     * regular expression metacharacters which may not appear unescaped in a literal
+     */
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    private String prefix;
+    private boolean[] members;
+    private String suffix;
+    private boolean grouped;
+
+    private LiteralPattern(String prefix, boolean[] members, String suffix, boolean grouped)
+    {
+        this.prefix = prefix;
+        this.members = members;
+        this.suffix = suffix;
+        this.grouped = grouped;
+    }
+
+    /**
+     * analyze a regular expression to see if it can be matched by a LiteralPattern
+     * @param regex the regular expression
+     * @return a LiteralPattern which matches the same text as the regular expression or null
+     * if the expression does not have a suitable form
+     */
+    public static LiteralPattern compile(String regex)
+    {
+        int[] position = new int[] { 0 };
+        String prefix = parseLiteral(regex, position);
+        if (prefix == null) {
+            return null;
+        }
+        boolean grouped = false;
+        if (position[0] < regex.length() && regex.charAt(position[0]) == '(') {
+            grouped = true;
+            position[0]++;
+        }
+        boolean[] members = parseClass(regex, position);
+        if (members == null) {
+            return null;
+        }
+        if (position[0] >= regex.length() || regex.charAt(position[0]) != '+') {
+            return null;
+        }
+        position[0]++;
+        if (grouped) {
+            if (position[0] >= regex.length() || regex.charAt(position[0]) != ')') {
+                return null;
+            }
+            position[0]++;
+        }
+        String suffix = parseLiteral(regex, position);
+        if (suffix == null || position[0] != regex.length()) {
+            return null;
+        }
+        if (suffix.length() > 0 && isMember(members, suffix.charAt(0))) {
+            // the class run might need to backtrack to match the suffix
+            return null;
+        }
+        return new LiteralPattern(prefix, members, suffix, grouped);
+    }
+
+    /**
+     * @return 1 if the character class run is enclosed in a match group otherwise 0
+     */
+    public int groupCount()
+    {
+        return (grouped ? 1 : 0);
+    }
+
+    /**
+     * search for the next match in a line of text. if a match is found its location is returned in
+     * the supplied array as follows: match[0] and match[1] are the start and end of the whole match,
+     * match[2] and match[3] are the start and end of the match group or, if there is no match group,
+     * of the whole match.
+     * @param text the text to search
+     * @param from the index at which to start searching
+     * @param match an array of at least 4 ints used to return the match location
+     * @return true if a match was found otherwise false
+     */
+    public boolean find(String text, int from, int[] match)
+    {
+        int length = text.length();
+        int prefixLength = prefix.length();
+        int start = from;
+        while (start < length) {
+            int runStart;
+            if (prefixLength > 0) {
+                start = text.indexOf(prefix, start);
+                if (start < 0) {
+                    return false;
+                }
+                runStart = start + prefixLength;
+            } else {
+                // skip to the next class member
+                while (start < length && !isMember(members, text.charAt(start))) {
+                    start++;
+                }
+                runStart = start;
+            }
+            int runEnd = runStart;
+            while (runEnd < length && isMember(members, text.charAt(runEnd))) {
+                runEnd++;
+            }
+            if (runEnd > runStart && text.startsWith(suffix, runEnd)) {
+                match[0] = start;
+                match[1] = runEnd + suffix.length();
+                match[2] = (grouped ? runStart : start);
+                match[3] = (grouped ? runEnd : match[1]);
+                return true;
+            }
+            // with no prefix any match starting inside this run would fail in the same way
+            start = (prefixLength > 0 ? start + 1 : Math.max(runEnd, start + 1));
+        }
+        return false;
+    }
+
+    private static boolean isMember(boolean[] members, char c)
+    {
+        return c < members.length && members[c];
+    }
+
+    /**
+     * parse a sequence of plain or escaped literal characters
+     * @return the literal text or null if an unsupported construct was found
+     */
+    private static String parseLiteral(String regex, int[] position)
+    {
+        StringBuilder builder = new StringBuilder();
+        int i = position[0];
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // escapes like \d or \1 have special meanings
+                    return null;
+                }
+                builder.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (c == '(' || c == '[') {
+                // start of the class run
+                break;
+            } else if (META.indexOf(c) >= 0) {
+                return null;
+            } else {
+                builder.append(c);
+                i++;
+            }
+        }
+        position[0] = i;
+        return builder.toString();
+    }
+
+    /**
+     * parse a character class containing plain or escaped characters and ranges
+     * @return a table of member characters or null if an unsupported construct was found
+     */
+    private static boolean[] parseClass(String regex, int[] position)
+    {
+        int i = position[0];
+        if (i >= regex.length() || regex.charAt(i) != '[') {
+            return null;
+        }
+        i++;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            return null;
+        }
+        boolean[] members = new boolean[128];
+        boolean empty = true;
+        while (i < regex.length() && regex.charAt(i) != ']') {
+            char c = regex.charAt(i);
+            if (c == '[' || c == '&') {
+                // nested classes and intersections are not supported
+                return null;
+            }
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                c = regex.charAt(i + 1);
+                i += 2;
+            } else {
+                i++;
+            }
+            char last = c;
+            if (i + 1 < regex.length() && regex.charAt(i) == '-' && regex.charAt(i + 1) != ']') {
+                last = regex.charAt(i + 1);
+                if (last == '\\' || last == '[' || last < c) {
+                    return null;
+                }
+                i += 2;
+            }
+            if (last >= members.length) {
+                return null;
+            }
+            for (char m = c; m <= last; m++) {
+                members[m] = true;
+            }
+            empty = false;
+        }
+        if (i >= regex.length() || empty) {
+            return null;
+        }
+        position[0] = i + 1;
+        return members;
+    }
+}
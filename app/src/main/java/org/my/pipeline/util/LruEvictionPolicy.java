@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * An eviction policy which evicts the least recently bound or used binding.
+ */
+public class LruEvictionPolicy implements EvictionPolicy
+{
+    private int capacity;
+    private LinkedHashMap<String, Boolean> entries;
+
+    /**
+     * create an LRU policy
+     * @param capacity the maximum number of bindings the map should hold
+     */
+    public LruEvictionPolicy(int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        // access ordered so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public void inserted(String identifier)
+    {
+        entries.put(identifier, Boolean.TRUE);
+    }
+
+    public void accessed(String identifier)
+    {
+        // a get moves a known entry to the most recently used end
+        entries.get(identifier);
+    }
+
+    public String victim()
+    {
+        Iterator<String> iterator = entries.keySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        String identifier = iterator.next();
+        iterator.remove();
+        return identifier;
+    }
+}
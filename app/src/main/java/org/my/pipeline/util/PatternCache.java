@@ -0,0 +1,299 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A PatternCache holds compiled regular expressions, LiteralPatterns and ReplacementTemplates
+ * keyed by their source text and flags so that pipeline stages created repeatedly with the same
+ * configuration do not have to compile them again. Stages use the process-wide instance returned
+ * by {@link #getInstance()}.<p/>
+ *
+ * The cache is bounded. Lookups which hit the cache only read a ConcurrentHashMap and mark the
+ * entry as referenced. When an insertion takes the cache over capacity entries are evicted using
+ * the clock algorithm: the clock hand sweeps the table clearing reference marks and evicts the
+ * first entry it finds which has not been referenced since the previous sweep.
+ */
+public class PatternCache
+{
+    /**
+     * the capacity of the process-wide cache
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final PatternCache INSTANCE = new PatternCache(DEFAULT_CAPACITY);
+
+    private static final int PATTERN = 0;
+    private static final int LITERAL = 1;
+    private static final int TEMPLATE = 2;
+
+    /**
+     * cached in place of null when a regular expression cannot be handled by a LiteralPattern
+     */
+    private static final Object NO_LITERAL = new Object();
+
+    private int capacity;
+    private ConcurrentHashMap<Key, Entry> entries;
+    private Iterator<Map.Entry<Key, Entry>> hand;
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong evictions;
+
+    /**
+     * create a private cache. most callers should use the process-wide cache
+     * @param capacity the maximum number of entries the cache will hold
+     */
+    public PatternCache(int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<Key, Entry>();
+        this.hand = null;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+    }
+
+    /**
+     * @return the process-wide cache
+     */
+    public static PatternCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * obtain a compiled regular expression
+     * @param regex the regular expression
+     * @return the compiled pattern
+     * @throws java.util.regex.PatternSyntaxException if the expression is invalid
+     */
+    public Pattern pattern(String regex)
+    {
+        return pattern(regex, 0);
+    }
+
+    /**
+     * obtain a compiled regular expression
+     * @param regex the regular expression
+     * @param flags the match flags to be passed to Pattern.compile
+     * @return the compiled pattern
+     * @throws java.util.regex.PatternSyntaxException if the expression is invalid
+     */
+    public Pattern pattern(String regex, int flags)
+    {
+        Key key = new Key(PATTERN, regex, flags);
+        Object value = lookup(key);
+        if (value == null) {
+            long start = System.nanoTime();
+            Pattern pattern = Pattern.compile(regex, flags);
+            Startup.compiled(System.nanoTime() - start);
+            value = insert(key, pattern);
+        }
+        return (Pattern)value;
+    }
+
+    /**
+     * obtain the LiteralPattern for a regular expression
+     * @param regex the regular expression
+     * @return the LiteralPattern or null if the expression cannot be matched by a LiteralPattern
+     */
+    public LiteralPattern literal(String regex)
+    {
+        Key key = new Key(LITERAL, regex, 0);
+        Object value = lookup(key);
+        if (value == null) {
+            LiteralPattern literal = LiteralPattern.compile(regex);
+            value = insert(key, (literal == null ? NO_LITERAL : literal));
+        }
+        return (value == NO_LITERAL ? null : (LiteralPattern)value);
+    }
+
+    /**
+     * obtain the parsed form of PatternReplacer replacement text
+     * @param replacement the replacement text
+     * @return the template
+     */
+    public ReplacementTemplate template(String replacement)
+    {
+        Key key = new Key(TEMPLATE, replacement, 0);
+        Object value = lookup(key);
+        if (value == null) {
+            value = insert(key, ReplacementTemplate.parse(replacement));
+        }
+        return (ReplacementTemplate)value;
+    }
+
+    /**
+     * @return the maximum number of entries the cache will hold
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return the number of entries currently in the cache
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups which found an entry in the cache
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which had to compile or parse their source text
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to keep the cache within capacity
+     */
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * remove all entries from the cache. the metrics are not reset.
+     */
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    private Object lookup(Key key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * add a newly compiled value unless another thread got there first
+     * @return the value now in the cache
+     */
+    private Object insert(Key key, Object value)
+    {
+        Entry entry = new Entry(value);
+        Entry existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            return existing.value;
+        }
+        if (entries.size() > capacity) {
+            evict();
+        }
+        return value;
+    }
+
+    private synchronized void evict()
+    {
+        // each entry gets at most one second chance so two sweeps always find a victim
+        int limit = 2 * (entries.size() + 1);
+        while (entries.size() > capacity && limit-- > 0) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Map.Entry<Key, Entry> next = hand.next();
+            Entry entry = next.getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entries.remove(next.getKey(), entry)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Key
+    {
+        private int kind;
+        private String source;
+        private int flags;
+        private int hash;
+
+        Key(int kind, String source, int flags)
+        {
+            this.kind = kind;
+            this.source = source;
+            this.flags = flags;
+            this.hash = (source.hashCode() * 31 + flags) * 31 + kind;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key)other;
+            return key.kind == kind && key.flags == flags && key.source.equals(source);
+        }
+    }
+
+    private static class Entry
+    {
+        final Object value;
+        volatile boolean referenced;
+
+        Entry(Object value)
+        {
+            this.value = value;
+            this.referenced = false;
+        }
+    }
+}
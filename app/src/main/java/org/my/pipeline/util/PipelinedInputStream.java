@@ -0,0 +1,237 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A PipelinedInputStream reads ahead from another input stream using a dedicated helper thread.
+ * The helper reads the wrapped stream into blocks which are queued for the thread reading this
+ * stream. This allows expensive work done by the wrapped stream, such as decompression, to
+ * proceed in parallel with processing of the data it has already delivered.<p/>
+ *
+ * The helper thread closes the wrapped stream when it reaches EOF, when it fails or when this
+ * stream is closed. An IOException thrown by the wrapped stream is rethrown to the reader once
+ * it has consumed all the data read before the failure. Blocks are taken from the shared
+ * {@link ChunkPool} for the block size and returned to it once they have been consumed.
+ */
+public class PipelinedInputStream extends InputStream
+{
+    /**
+     * marker queued by the helper once it has read all the data
+     */
+    private static final ChunkPool.Chunk END = ChunkPool.marker();
+
+    private InputStream in;
+    private ChunkPool pool;
+    private BlockingQueue<ChunkPool.Chunk> queue;
+    private Thread helper;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private ChunkPool.Chunk current;
+    private int position;
+
+    /**
+     * create a stream which reads ahead from another stream
+     * @param in the stream to read from
+     * @param blockSize the size of the blocks read by the helper
+     * @param depth the maximum number of blocks the helper may read ahead
+     * @param name a name for the helper thread
+     */
+    public PipelinedInputStream(InputStream in, int blockSize, int depth, String name)
+    {
+        this.in = in;
+        this.pool = ChunkPool.bytePool(blockSize);
+        this.queue = new ArrayBlockingQueue<ChunkPool.Chunk>(depth);
+        this.closed = false;
+        this.failure = null;
+        this.current = null;
+        this.position = 0;
+        this.helper = new Thread(name) {
+            public void run()
+            {
+                try {
+                    readAhead();
+                } finally {
+                    ChunkPool.releaseThreadCaches();
+                }
+            }
+        };
+        this.helper.setDaemon(true);
+        this.helper.start();
+    }
+
+    public int read() throws IOException
+    {
+        if (!fill()) {
+            return -1;
+        }
+        return current.bytes()[position++] & 0xff;
+    }
+
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length() - position);
+        System.arraycopy(current.bytes(), position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    public int available() throws IOException
+    {
+        return (current == null || current == END ? 0 : current.length() - position);
+    }
+
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        // make sure the helper is not stuck waiting to queue a block
+        releaseQueued();
+        while (helper.isAlive()) {
+            try {
+                helper.join();
+            } catch (InterruptedException ie) {
+                // keep waiting
+            }
+        }
+        // the helper may have queued one more block before it saw we were closed
+        releaseQueued();
+    }
+
+    private void releaseQueued()
+    {
+        ChunkPool.Chunk chunk = queue.poll();
+        while (chunk != null) {
+            chunk.release();
+            chunk = queue.poll();
+        }
+    }
+
+    /**
+     * ensure there is unread data in the current block
+     * @return true if there is data to read or false at EOF
+     */
+    private boolean fill() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || (current != END && position == current.length())) {
+            if (current != null) {
+                // hand the consumed block back for reuse
+                current.release();
+                current = null;
+            }
+            try {
+                current = queue.take();
+            } catch (InterruptedException ie) {
+                throw new IOException("interrupted waiting for data");
+            }
+            position = 0;
+        }
+        if (current == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * the helper thread body which reads blocks from the wrapped stream until EOF
+     */
+    private void readAhead()
+    {
+        try {
+            while (!closed) {
+                ChunkPool.Chunk block = pool.allocate();
+                int count;
+                try {
+                    count = in.read(block.bytes());
+                } catch (IOException ioe) {
+                    block.release();
+                    throw ioe;
+                }
+                if (count <= 0) {
+                    block.release();
+                    if (count < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                block.setLength(count);
+                if (!put(block)) {
+                    block.release();
+                }
+            }
+        } catch (IOException ioe) {
+            failure = ioe;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                // nothing to do
+            }
+            put(END);
+        }
+    }
+
+    /**
+     * queue a block for the reader
+     * @return true if the block was queued or false if the stream was closed first
+     */
+    private boolean put(ChunkPool.Chunk block)
+    {
+        try {
+            while (!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ie) {
+            // give up
+            return false;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A PipelinedOutputStream hands data written to it on to another output stream using a dedicated
+ * helper thread. Data is collected into blocks which are queued for the helper to write. This allows
+ * expensive work done by the wrapped stream, such as compression, to proceed in parallel with the
+ * production of further output.<p/>
+ *
+ * Closing this stream waits for the helper to write all queued data and then closes the wrapped
+ * stream. An IOException thrown by the wrapped stream is rethrown to the writer by the next write,
+ * flush or close. Blocks are taken from the shared {@link ChunkPool} for the block size and
+ * returned to it once the helper has written them.
+ */
+public class PipelinedOutputStream extends OutputStream
+{
+    /**
+     * marker queued to ask the helper to flush the wrapped stream
+     */
+    private static final ChunkPool.Chunk FLUSH = ChunkPool.marker();
+    /**
+     * marker queued to ask the helper to close the wrapped stream and exit
+     */
+    private static final ChunkPool.Chunk END = ChunkPool.marker();
+
+    private OutputStream out;
+    private ChunkPool pool;
+    private BlockingQueue<ChunkPool.Chunk> queue;
+    private Thread helper;
+    private volatile IOException failure;
+    private volatile boolean finished;
+    private ChunkPool.Chunk current;
+    private byte[] bytes;
+    private int count;
+    private boolean closed;
+
+    /**
+     * create a stream which writes to another stream from a helper thread
+     * @param out the stream to write to
+     * @param blockSize the size of the blocks passed to the helper
+     * @param depth the maximum number of blocks which may be queued for the helper
+     * @param name a name for the helper thread
+     */
+    public PipelinedOutputStream(OutputStream out, int blockSize, int depth, String name)
+    {
+        this.out = out;
+        this.pool = ChunkPool.bytePool(blockSize);
+        this.queue = new ArrayBlockingQueue<ChunkPool.Chunk>(depth);
+        this.failure = null;
+        this.finished = false;
+        this.current = pool.allocate();
+        this.bytes = current.bytes();
+        this.count = 0;
+        this.closed = false;
+        this.helper = new Thread(name) {
+            public void run()
+            {
+                try {
+                    writeBehind();
+                } finally {
+                    ChunkPool.releaseThreadCaches();
+                }
+            }
+        };
+        this.helper.setDaemon(true);
+        this.helper.start();
+    }
+
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        if (count == this.bytes.length) {
+            handOff();
+        }
+        this.bytes[count++] = (byte)b;
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        ensureOpen();
+        while (length > 0) {
+            if (count == this.bytes.length) {
+                handOff();
+            }
+            int n = Math.min(length, this.bytes.length - count);
+            System.arraycopy(bytes, offset, this.bytes, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        if (count > 0) {
+            handOff();
+        }
+        put(FLUSH);
+    }
+
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0 && failure == null) {
+                handOff();
+            }
+            put(END);
+        } finally {
+            current.release();
+            while (helper.isAlive()) {
+                try {
+                    helper.join();
+                } catch (InterruptedException ie) {
+                    // keep waiting
+                }
+            }
+            releaseQueued();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * pass the current block to the helper and start a new one
+     */
+    private void handOff() throws IOException
+    {
+        ChunkPool.Chunk block = current;
+        block.setLength(count);
+        current = pool.allocate();
+        bytes = current.bytes();
+        count = 0;
+        put(block);
+    }
+
+    private void put(ChunkPool.Chunk block) throws IOException
+    {
+        try {
+            while (!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                if (finished) {
+                    // the helper has gone so nobody else will release the block
+                    block.release();
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            block.release();
+            throw new IOException("interrupted writing data");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * the helper thread body which writes queued blocks to the wrapped stream until closed
+     */
+    private void writeBehind()
+    {
+        try {
+            ChunkPool.Chunk block = queue.take();
+            while (block != END) {
+                if (block == FLUSH) {
+                    out.flush();
+                } else {
+                    try {
+                        out.write(block.bytes(), 0, block.length());
+                    } finally {
+                        block.release();
+                    }
+                }
+                block = queue.take();
+            }
+        } catch (IOException ioe) {
+            failure = ioe;
+        } catch (InterruptedException ie) {
+            failure = new IOException("interrupted writing data");
+        } finally {
+            finished = true;
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                if (failure == null) {
+                    failure = ioe;
+                }
+            }
+        }
+    }
+
+    private void releaseQueued()
+    {
+        ChunkPool.Chunk chunk = queue.poll();
+        while (chunk != null) {
+            chunk.release();
+            chunk = queue.poll();
+        }
+    }
+}
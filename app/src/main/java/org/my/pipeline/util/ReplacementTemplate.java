@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.MatchResult;
+
+/**
+ * A ReplacementTemplate is the parsed form of the replacement text supplied to a PatternReplacer.
+ * Elements of the form \nn are references to match groups. All other text is copied literally.<p/>
+ *
+ * Parsing the text once means that expanding the template for a match only appends the literal
+ * segments and the referenced groups to a builder rather than searching the replacement text for
+ * each group reference in turn.
+ */
+public class ReplacementTemplate
+{
+    private String[] literals;
+    private int[] groups;
+    private int maxGroupIndex;
+
+    private ReplacementTemplate(String[] literals, int[] groups, int maxGroupIndex)
+    {
+        this.literals = literals;
+        this.groups = groups;
+        this.maxGroupIndex = maxGroupIndex;
+    }
+
+    /**
+     * parse replacement text into a template
+     * @param replacement the replacement text
+     * @return the template
+     */
+    public static ReplacementTemplate parse(String replacement)
+    {
+        List<String> literals = new ArrayList<String>();
+        List<Integer> groups = new ArrayList<Integer>();
+        int maxGroupIndex = 0;
+        int length = replacement.length();
+        int current = 0;
+        int index = replacement.indexOf('\\');
+        while (index >= 0 && index + 1 < length) {
+            char c = replacement.charAt(index + 1);
+            if (c < '1' || c > '9') {
+                // not a group reference so the backslash is literal text
+                index = replacement.indexOf('\\', index + 1);
+                continue;
+            }
+            int end = index + 2;
+            while (end < length && (c = replacement.charAt(end)) >= '0' && c <= '9') {
+                end++;
+            }
+            int group = Integer.parseInt(replacement.substring(index + 1, end));
+            if (group > maxGroupIndex) {
+                maxGroupIndex = group;
+            }
+            literals.add(replacement.substring(current, index));
+            groups.add(group);
+            current = end;
+            index = replacement.indexOf('\\', end);
+        }
+        literals.add(replacement.substring(current));
+        int[] groupArray = new int[groups.size()];
+        for (int i = 0; i < groupArray.length; i++) {
+            groupArray[i] = groups.get(i);
+        }
+        return new ReplacementTemplate(literals.toArray(new String[literals.size()]), groupArray, maxGroupIndex);
+    }
+
+    /**
+     * @return the highest match group index referenced by the template or 0 if it has no references
+     */
+    public int getMaxGroupIndex()
+    {
+        return maxGroupIndex;
+    }
+
+    /**
+     * append the replacement text for a match to a builder. a group which did not take part in
+     * the match is replaced with empty text.
+     * @param match the match whose groups are to be substituted
+     * @param text the text in which the match was found
+     * @param builder the builder to append to
+     */
+    public void expand(MatchResult match, CharSequence text, StringBuilder builder)
+    {
+        builder.append(literals[0]);
+        for (int i = 0; i < groups.length; i++) {
+            int start = match.start(groups[i]);
+            if (start >= 0) {
+                // copy the group directly rather than creating a String for it
+                builder.append(text, start, match.end(groups[i]));
+            }
+            builder.append(literals[i + 1]);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Startup controls and measures how quickly a pipeline gets going, which matters most for short
+ * command line runs where starting the JVM, compiling patterns and creating stage threads can
+ * take longer than processing the data.<p/>
+ *
+ * When lazy startup is enabled, by calling {@link #setLazy(boolean)} or by setting system property
+ * org.my.pipeline.startup.lazy to true, stages compile their patterns when they transform their
+ * first line rather than when they are created and the buffers of the {@link org.my.pipeline.core.Link}s
+ * between stages are only allocated when data is first written to them. This lets a pipeline start
+ * streaming data sooner and means work is never done for stages which see no input. The cost is
+ * that an invalid pattern is only reported when the stage which uses it processes its first line,
+ * rather than by the stage's constructor. The stage then fails as if it had hit an I/O error. It
+ * prints the PatternSyntaxException, closes its input so that the upstream stages stop and closes
+ * its output, so downstream stages see the end of their input after whatever output, if any, was
+ * produced before the failure.<p/>
+ *
+ * When reporting is enabled, by calling {@link #setReporting(boolean)} or by setting system
+ * property org.my.pipeline.startup.report to true, the pipeline classes record when the first
+ * stage was created, when the first stage was started, when data first started flowing and when
+ * the last sink finished, along with the total time spent compiling patterns. The breakdown is
+ * printed to System.err when the JVM exits if the property was set, or can be printed at any
+ * time by calling {@link #report(PrintStream)}.
+ */
+public class Startup
+{
+    public static final String STAGE_CREATED = "first stage created";
+    public static final String STAGE_STARTED = "first stage started";
+    public static final String SOURCE_RUNNING = "first source running";
+    public static final String SINK_RUNNING = "first sink running";
+    public static final String SINK_FINISHED = "last sink finished";
+
+    private static volatile boolean lazy = Boolean.getBoolean("org.my.pipeline.startup.lazy");
+    private static volatile boolean reporting = Boolean.getBoolean("org.my.pipeline.startup.report");
+
+    /**
+     * the times at which this class was initialized, taken as the moment the application
+     * first used the pipeline classes
+     */
+    private static final long initNanos = System.nanoTime();
+    private static final long initMillis = System.currentTimeMillis();
+
+    private static final List<Milestone> milestones = new ArrayList<Milestone>();
+    private static final AtomicLong compileNanos = new AtomicLong();
+    private static final AtomicLong compileCount = new AtomicLong();
+
+    static {
+        if (reporting) {
+            Runtime.getRuntime().addShutdownHook(new Thread("startup report") {
+                public void run()
+                {
+                    report(System.err);
+                }
+            });
+        }
+    }
+
+    private Startup()
+    {
+    }
+
+    /**
+     * select whether stages defer compiling patterns and allocating link buffers
+     * @param lazy true if work should be deferred until data arrives otherwise false
+     */
+    public static void setLazy(boolean lazy)
+    {
+        Startup.lazy = lazy;
+    }
+
+    /**
+     * @return true if stages defer compiling patterns and allocating link buffers otherwise false
+     */
+    public static boolean isLazy()
+    {
+        return lazy;
+    }
+
+    /**
+     * select whether startup milestones and costs are recorded
+     * @param reporting true if they should be recorded otherwise false
+     */
+    public static void setReporting(boolean reporting)
+    {
+        Startup.reporting = reporting;
+    }
+
+    /**
+     * @return true if startup milestones and costs are recorded otherwise false
+     */
+    public static boolean isReporting()
+    {
+        return reporting;
+    }
+
+    /**
+     * record the first time a milestone is reached
+     * @param name the name of the milestone
+     */
+    public static void mark(String name)
+    {
+        if (reporting) {
+            record(name, false);
+        }
+    }
+
+    /**
+     * record the latest time a milestone is reached
+     * @param name the name of the milestone
+     */
+    public static void markLast(String name)
+    {
+        if (reporting) {
+            record(name, true);
+        }
+    }
+
+    /**
+     * add the time taken to compile a pattern
+     * @param nanos the elapsed time in nanoseconds
+     */
+    public static void compiled(long nanos)
+    {
+        compileNanos.addAndGet(nanos);
+        compileCount.incrementAndGet();
+    }
+
+    /**
+     * print the time taken to start the JVM and to reach each milestone since the previous one
+     * @param out the stream to print to
+     */
+    public static void report(PrintStream out)
+    {
+        out.println("startup timing:");
+        long jvmMillis = initMillis - ManagementFactory.getRuntimeMXBean().getStartTime();
+        out.println(format("jvm start to first pipeline use", jvmMillis * 1000000L, false));
+        long previous = initNanos;
+        synchronized (milestones) {
+            for (Milestone milestone : milestones) {
+                out.println(format(milestone.name, milestone.nanos - previous, true));
+                previous = milestone.nanos;
+            }
+        }
+        out.println(format("pattern compilation", compileNanos.get(), false) + " for " + compileCount.get() + " pattern(s)");
+    }
+
+    private static void record(String name, boolean replace)
+    {
+        long now = System.nanoTime();
+        synchronized (milestones) {
+            for (int i = 0; i < milestones.size(); i++) {
+                Milestone milestone = milestones.get(i);
+                if (milestone.name.equals(name)) {
+                    if (replace) {
+                        // keep the list in time order
+                        milestones.remove(i);
+                        milestones.add(new Milestone(name, now));
+                    }
+                    return;
+                }
+            }
+            milestones.add(new Milestone(name, now));
+        }
+    }
+
+    private static String format(String name, long nanos, boolean relative)
+    {
+        StringBuilder builder = new StringBuilder("  ");
+        builder.append(name);
+        while (builder.length() < 36) {
+            builder.append(' ');
+        }
+        builder.append(relative ? "+" : " ");
+        builder.append(String.format("%.3fms", nanos / 1000000.0));
+        return builder.toString();
+    }
+
+    private static class Milestone
+    {
+        private String name;
+        private long nanos;
+
+        Milestone(String name, long nanos)
+        {
+            this.name = name;
+            this.nanos = nanos;
+        }
+    }
+}
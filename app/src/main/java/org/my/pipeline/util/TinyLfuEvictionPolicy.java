@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * An eviction policy modelled on W-TinyLFU. New bindings enter a small LRU window. Bindings
+ * leaving the window join the probation segment of a segmented LRU main space but when the
+ * map is full they only displace the eldest probationary binding if they have been used more
+ * often. Bindings used while on probation are promoted to the protected segment.<p/>
+ *
+ * Use counts are kept approximately in a count-min sketch of 4 bit counters which is halved
+ * periodically so that bindings which were popular a long time ago eventually age out. This
+ * makes the policy resistant to scans, such as a long run of values which are bound once and
+ * never referenced again, which would flush the frequently used bindings out of a plain LRU.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy
+{
+    private int capacity;
+    private int windowMax;
+    private int protectedMax;
+    private LinkedHashMap<String, Boolean> window;
+    private LinkedHashMap<String, Boolean> probation;
+    private LinkedHashMap<String, Boolean> protectedSegment;
+    private FrequencySketch sketch;
+    /**
+     * the binding most recently moved from the window to probation. this competes for
+     * admission with the eldest probationary binding when an eviction is needed
+     */
+    private String candidate;
+
+    /**
+     * create a W-TinyLFU policy with 1% of the capacity allocated to the window
+     * @param capacity the maximum number of bindings the map should hold
+     */
+    public TinyLfuEvictionPolicy(int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.windowMax = Math.max(1, capacity / 100);
+        // 80% of the main space is protected
+        this.protectedMax = (int)((capacity - windowMax) * 8L / 10);
+        this.window = new LinkedHashMap<String, Boolean>();
+        this.probation = new LinkedHashMap<String, Boolean>();
+        this.protectedSegment = new LinkedHashMap<String, Boolean>();
+        this.sketch = new FrequencySketch(capacity);
+        this.candidate = null;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public void inserted(String identifier)
+    {
+        sketch.increment(identifier);
+        window.put(identifier, Boolean.TRUE);
+        if (window.size() > windowMax) {
+            // move the eldest window entry into the main space
+            candidate = removeEldest(window);
+            probation.put(candidate, Boolean.TRUE);
+        }
+    }
+
+    public void accessed(String identifier)
+    {
+        sketch.increment(identifier);
+        if (window.remove(identifier) != null) {
+            window.put(identifier, Boolean.TRUE);
+        } else if (probation.remove(identifier) != null) {
+            if (identifier.equals(candidate)) {
+                candidate = null;
+            }
+            protectedSegment.put(identifier, Boolean.TRUE);
+            if (protectedSegment.size() > protectedMax) {
+                // demote the eldest protected entry
+                probation.put(removeEldest(protectedSegment), Boolean.TRUE);
+            }
+        } else if (protectedSegment.remove(identifier) != null) {
+            protectedSegment.put(identifier, Boolean.TRUE);
+        }
+    }
+
+    public String victim()
+    {
+        String victim;
+        if (candidate != null) {
+            // the new arrival competes with the eldest probationary entry
+            probation.remove(candidate);
+            String eldest = removeEldest(probation);
+            if (eldest == null) {
+                victim = candidate;
+            } else if (sketch.frequency(candidate) > sketch.frequency(eldest)) {
+                probation.put(candidate, Boolean.TRUE);
+                victim = eldest;
+            } else {
+                probation.put(eldest, Boolean.TRUE);
+                victim = candidate;
+            }
+            candidate = null;
+            return victim;
+        }
+        victim = removeEldest(probation);
+        if (victim == null) {
+            victim = removeEldest(protectedSegment);
+        }
+        if (victim == null) {
+            victim = removeEldest(window);
+        }
+        return victim;
+    }
+
+    private static String removeEldest(LinkedHashMap<String, Boolean> segment)
+    {
+        Iterator<String> iterator = segment.keySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        String identifier = iterator.next();
+        iterator.remove();
+        return identifier;
+    }
+
+    /**
+     * a count-min sketch with four 4 bit counters per identifier packed sixteen to a long
+     */
+    private static class FrequencySketch
+    {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private long[] table;
+        private int tableMask;
+        private int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity)
+        {
+            int size = 16;
+            while (size < capacity && size < (1 << 26)) {
+                size <<= 1;
+            }
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = (int)Math.min(10L * capacity, Integer.MAX_VALUE);
+            additions = 0;
+        }
+
+        int frequency(String identifier)
+        {
+            int hash = identifier.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                long hashed = hash(hash, i);
+                int shift = counterShift(hashed);
+                frequency = Math.min(frequency, (int)((table[index(hashed)] >>> shift) & 15));
+            }
+            return frequency;
+        }
+
+        void increment(String identifier)
+        {
+            int hash = identifier.hashCode();
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long hashed = hash(hash, i);
+                int index = index(hashed);
+                int shift = counterShift(hashed);
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        /**
+         * halve all the counters so that old use counts decay
+         */
+        private void reset()
+        {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions >>>= 1;
+        }
+
+        private static long hash(int hash, int i)
+        {
+            long hashed = (hash + SEEDS[i]) * SEEDS[i];
+            return hashed + (hashed >>> 32);
+        }
+
+        private int index(long hashed)
+        {
+            return (int)hashed & tableMask;
+        }
+
+        private static int counterShift(long hashed)
+        {
+            return (int)((hashed >>> 40) & 15) << 2;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TraceWriter collects trace records from any number of pipeline stages and writes them to a
+ * target from a single background thread. Stages add records to a lock-free queue so they never
+ * contend for the target and never wait for it to be written. The background thread drains the
+ * queue in batches, handing each batch to the target as a unit. So, lines from different stages
+ * are never interleaved and a stream target is flushed once per batch rather than once per line.<p/>
+ *
+ * The queue is bounded. If the target cannot keep up then new records are dropped rather than
+ * stalling the pipeline and the number of dropped records is counted.<p/>
+ *
+ * Two targets are provided: a {@link StreamTarget} which writes to a stream or file, and a
+ * {@link RingBuffer} which retains the most recent records in memory for later inspection.
+ */
+public class TraceWriter
+{
+    /**
+     * the maximum number of records written to the target in one batch
+     */
+    private static final int BATCH_SIZE = 256;
+    /**
+     * the longest time the background thread parks before rechecking the queue
+     */
+    private static final long PARK_NANOS = 10 * 1000 * 1000L;
+
+    private Target target;
+    private int capacity;
+    private ConcurrentLinkedQueue<Record> queue;
+    private AtomicInteger size;
+    private AtomicLong written;
+    private AtomicLong dropped;
+    private volatile boolean parked;
+    private volatile boolean closed;
+    private Thread writer;
+
+    /**
+     * create a trace writer which may queue up to 64K records
+     * @param target the target to which records are written
+     */
+    public TraceWriter(Target target)
+    {
+        this(target, 64 * 1024);
+    }
+
+    /**
+     * create a trace writer
+     * @param target the target to which records are written
+     * @param capacity the maximum number of records which may be queued before records are dropped
+     */
+    public TraceWriter(Target target, int capacity)
+    {
+        this.target = target;
+        this.capacity = capacity;
+        this.queue = new ConcurrentLinkedQueue<Record>();
+        this.size = new AtomicInteger(0);
+        this.written = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+        this.parked = false;
+        this.closed = false;
+        this.writer = new Thread("trace-writer") {
+            public void run()
+            {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * queue a trace record for writing
+     * @param stage the name of the stage which produced the record
+     * @param prefix the prefix used to label the line
+     * @param line the line of text being traced
+     * @return true if the record was queued or false if it was dropped
+     */
+    public boolean trace(String stage, String prefix, String line)
+    {
+        if (closed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        Record record = new Record(stage, prefix, line);
+        queue.offer(record);
+        if (closed && queue.remove(record)) {
+            // close() was called while we were queueing and the background thread may
+            // already have found the queue empty, so the record would never be written
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (parked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of records written to the target so far
+     */
+    public long getWritten()
+    {
+        return written.get();
+    }
+
+    /**
+     * @return the number of records dropped because the queue was full, the writer was closed
+     * or the target failed to write them
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * stop accepting records, wait for all queued records to be written and then close the target
+     */
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(writer);
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException ie) {
+                // keep waiting
+            }
+        }
+    }
+
+    /**
+     * the background thread body which writes queued records to the target in batches
+     */
+    private void drain()
+    {
+        List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+        try {
+            while (true) {
+                Record record = queue.poll();
+                while (record != null && batch.size() < BATCH_SIZE) {
+                    batch.add(record);
+                    record = (batch.size() < BATCH_SIZE ? queue.poll() : null);
+                }
+                if (!batch.isEmpty()) {
+                    size.addAndGet(-batch.size());
+                    write(batch);
+                    batch.clear();
+                } else if (closed) {
+                    // recheck the queue now that closed has been seen. a record offered
+                    // before this check gets written and a trace call which offers one after
+                    // it is bound to see closed and will remove the record again
+                    if (queue.isEmpty()) {
+                        break;
+                    }
+                } else {
+                    // advertise that we need waking before the final check of the queue
+                    // so that a record added concurrently is never missed for long
+                    parked = true;
+                    if (queue.isEmpty() && !closed) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    parked = false;
+                }
+            }
+        } finally {
+            try {
+                target.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private void write(List<Record> batch)
+    {
+        try {
+            target.write(batch);
+            written.addAndGet(batch.size());
+        } catch (IOException ioe) {
+            // tracing must not disturb the pipeline so just count the loss
+            dropped.addAndGet(batch.size());
+        } catch (RuntimeException re) {
+            // nor must a faulty target stop the background thread
+            dropped.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * a single traced line
+     */
+    public static class Record
+    {
+        private String stage;
+        private String prefix;
+        private String line;
+
+        Record(String stage, String prefix, String line)
+        {
+            this.stage = stage;
+            this.prefix = prefix;
+            this.line = line;
+        }
+
+        public String getStage()
+        {
+            return stage;
+        }
+
+        public String getPrefix()
+        {
+            return prefix;
+        }
+
+        public String getLine()
+        {
+            return line;
+        }
+
+        public String toString()
+        {
+            return prefix + line;
+        }
+    }
+
+    /**
+     * interface implemented by the destinations to which a TraceWriter writes its records.
+     * methods are only ever called from the writer's background thread.
+     */
+    public interface Target
+    {
+        /**
+         * write a batch of records
+         * @param batch the records in the order they were queued
+         * @throws IOException
+         */
+        public void write(List<Record> batch) throws IOException;
+
+        /**
+         * release any resources held by the target
+         * @throws IOException
+         */
+        public void close() throws IOException;
+    }
+
+    /**
+     * a target which writes each record as a line of text to a stream, flushing once per batch
+     */
+    public static class StreamTarget implements Target
+    {
+        private Writer writer;
+        private boolean closeStream;
+
+        /**
+         * create a target which writes to a stream such as System.out. the stream is
+         * flushed but not closed when the trace writer is closed.
+         * @param out the stream to write to
+         */
+        public StreamTarget(OutputStream out)
+        {
+            this.writer = new BufferedWriter(new OutputStreamWriter(out));
+            this.closeStream = false;
+        }
+
+        /**
+         * create a target which appends to a file
+         * @param file the name of the file
+         * @throws IOException if the file cannot be opened
+         */
+        public StreamTarget(String file) throws IOException
+        {
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true)));
+            this.closeStream = true;
+        }
+
+        public void write(List<Record> batch) throws IOException
+        {
+            for (int i = 0; i < batch.size(); i++) {
+                Record record = batch.get(i);
+                writer.write(record.prefix);
+                writer.write(record.line);
+                writer.write('\n');
+            }
+            writer.flush();
+        }
+
+        public void close() throws IOException
+        {
+            if (closeStream) {
+                writer.close();
+            } else {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * a target which retains the most recently written records in memory
+     */
+    public static class RingBuffer implements Target
+    {
+        private Record[] records;
+        private long count;
+
+        /**
+         * create a ring buffer
+         * @param size the number of records to retain
+         */
+        public RingBuffer(int size)
+        {
+            this.records = new Record[size];
+            this.count = 0;
+        }
+
+        public synchronized void write(List<Record> batch)
+        {
+            for (int i = 0; i < batch.size(); i++) {
+                records[(int)(count++ % records.length)] = batch.get(i);
+            }
+        }
+
+        public void close()
+        {
+            // nothing to do
+        }
+
+        /**
+         * obtain the retained records
+         * @return the records, oldest first
+         */
+        public synchronized List<Record> getRecords()
+        {
+            List<Record> result = new ArrayList<Record>(records.length);
+            long first = Math.max(0, count - records.length);
+            for (long i = first; i < count; i++) {
+                result.add(records[(int)(i % records.length)]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import org.junit.Test;
+import org.my.pipeline.impl.CharSequenceSink;
+import org.my.pipeline.impl.CharSequenceSource;
+import org.my.pipeline.impl.PatternReplacer;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for CooperativeScheduler running many small pipelines
+ */
+public class CooperativeSchedulerTests
+{
+    private static final int PIPELINES = 1000;
+    private static final int THREADED_BATCH = 50;
+    private static final String ALPHABET = "abxy \r\n\n";
+
+    /**
+     * run 1000 four stage pipelines cooperatively, with a quantum small enough that steps
+     * regularly stop part way through a chunk of input, and check that every pipeline produces
+     * exactly the same output as when its stages are run as threads
+     * @throws Exception
+     */
+    @Test
+    public void testCooperativeMatchesThreaded() throws Exception
+    {
+        Random random = new Random(0);
+        String[] inputs = new String[PIPELINES];
+        for (int p = 0; p < PIPELINES; p++) {
+            int length = random.nextInt(3000);
+            StringBuilder builder = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            inputs[p] = builder.toString();
+        }
+
+        boolean enabled = Link.isEnabled();
+        try {
+            // threaded stages connected by plain pipes are the reference
+            Link.setEnabled(false);
+            String[] expected = new String[PIPELINES];
+            for (int p = 0; p < PIPELINES; p += THREADED_BATCH) {
+                CharSequenceSink[] sinks = new CharSequenceSink[THREADED_BATCH];
+                Thread[][] stages = new Thread[THREADED_BATCH][];
+                for (int b = 0; b < THREADED_BATCH; b++) {
+                    CharSequenceSource source = new CharSequenceSource(inputs[p + b]);
+                    PatternReplacer first = new PatternReplacer("x+", "<X>", source);
+                    PatternReplacer second = new PatternReplacer("^.", "[", first);
+                    sinks[b] = new CharSequenceSink(second);
+                    stages[b] = new Thread[] { source, first, second, sinks[b] };
+                    for (int s = 0; s < stages[b].length; s++) {
+                        stages[b][s].start();
+                    }
+                }
+                for (int b = 0; b < THREADED_BATCH; b++) {
+                    for (int s = 0; s < stages[b].length; s++) {
+                        stages[b][s].join();
+                    }
+                    expected[p + b] = sinks[b].toString();
+                }
+            }
+
+            Link.setEnabled(true);
+            CooperativeScheduler scheduler = new CooperativeScheduler(4);
+            scheduler.setQuantum(3, 100);
+            CharSequenceSink[] sinks = new CharSequenceSink[PIPELINES];
+            CooperativeScheduler.Task[] tasks = new CooperativeScheduler.Task[PIPELINES * 4];
+            for (int p = 0; p < PIPELINES; p++) {
+                CharSequenceSource source = new CharSequenceSource(inputs[p]);
+                PatternReplacer first = new PatternReplacer("x+", "<X>", source);
+                PatternReplacer second = new PatternReplacer("^.", "[", first);
+                sinks[p] = new CharSequenceSink(second);
+                tasks[p * 4] = scheduler.schedule(source);
+                tasks[p * 4 + 1] = scheduler.schedule(first);
+                tasks[p * 4 + 2] = scheduler.schedule(second);
+                tasks[p * 4 + 3] = scheduler.schedule(sinks[p]);
+            }
+            for (int t = 0; t < tasks.length; t++) {
+                tasks[t].join();
+                assertNull(tasks[t].getFailure());
+            }
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10000));
+            assertTrue(scheduler.getYieldCount() > 0);
+            for (int p = 0; p < PIPELINES; p++) {
+                assertEquals("pipeline " + p, expected[p], sinks[p].toString());
+            }
+        } finally {
+            Link.setEnabled(enabled);
+        }
+    }
+}
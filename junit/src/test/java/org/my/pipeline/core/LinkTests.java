@@ -0,0 +1,266 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests for Link covering resizing, closing either end and waking waiting threads
+ */
+public class LinkTests
+{
+    private static final int SLOW_CHARS = 100000;
+    private static final int FAST_CHARS = 400000;
+    private static final int ROUND_TRIPS = 5000;
+    private static final int BUSY_SPIN_ROUND_TRIPS = 100;
+    private static final int MESSAGE_SIZE = 65;
+
+    /**
+     * write with a reader which at first lags behind, so the writer stalls and the buffer grows,
+     * and then keeps up, so the buffer shrinks again. the reader takes odd sized reads so the
+     * unread data usually wraps around the end of the buffer when it is resized. every character
+     * must still arrive in the order it was written
+     * @throws Exception
+     */
+    @Test
+    public void testResizeDuringWrapAround() throws Exception
+    {
+        final Link link = new Link(64, 4096);
+        final IOException[] failure = new IOException[1];
+        Thread writer = new Thread() {
+            public void run()
+            {
+                PipedWriter output = link.getWriter();
+                try {
+                    char[] chars = new char[7];
+                    int next = 0;
+                    while (next < SLOW_CHARS + FAST_CHARS) {
+                        for (int i = 0; i < chars.length; i++) {
+                            chars[i] = charAt(next + i);
+                        }
+                        output.write(chars, 0, chars.length);
+                        next += chars.length;
+                        if (next > SLOW_CHARS && next % 700 == 0) {
+                            // trickle the rest so the buffer is mostly empty
+                            output.flush();
+                            Thread.sleep(1);
+                        }
+                    }
+                    output.close();
+                } catch (IOException ioe) {
+                    failure[0] = ioe;
+                } catch (InterruptedException ie) {
+                    failure[0] = new IOException(ie);
+                }
+            }
+        };
+        writer.start();
+        PipedReader input = link.getReader();
+        char[] chars = new char[5];
+        int total = 0;
+        int reads = 0;
+        int count = input.read(chars, 0, chars.length);
+        while (count >= 0) {
+            for (int i = 0; i < count; i++) {
+                assertEquals("character " + total, charAt(total), chars[i]);
+                total++;
+            }
+            if (total < SLOW_CHARS && ++reads % 100 == 0) {
+                Thread.sleep(1);
+            }
+            count = input.read(chars, 0, chars.length);
+        }
+        writer.join();
+        assertNull(failure[0]);
+        assertTrue(total >= SLOW_CHARS + FAST_CHARS);
+        assertTrue(link.getResizeCount() > 0);
+    }
+
+    /**
+     * closing the writer before anything has been written must give the reader EOF even
+     * though no buffer was ever allocated
+     * @throws Exception
+     */
+    @Test
+    public void testWriterCloseWithoutBuffer() throws Exception
+    {
+        Link link = new Link(64, 1024);
+        assertEquals(0, link.getCapacity());
+        link.getWriter().close();
+        assertEquals(-1, link.poll());
+        assertEquals(-1, link.poll(new char[8], 0, 8));
+        assertEquals(-1, link.getReader().read());
+        assertEquals(-1, link.getReader().read(new char[8], 0, 8));
+        assertFalse(link.getReader().ready());
+        link.getReader().close();
+        assertEquals(0, link.getCapacity());
+
+        // the reader going first must also be safe
+        link = new Link(64, 1024);
+        link.getReader().close();
+        try {
+            link.getWriter().write('x');
+            fail("write to a closed link");
+        } catch (IOException ioe) {
+            // expected
+        }
+        link.getWriter().close();
+    }
+
+    /**
+     * closing the reader while the writer is waiting for space must fail the write rather
+     * than leave the writer waiting, whichever strategy the writer uses to wait
+     * @throws Exception
+     */
+    @Test
+    public void testReaderCloseWhileWriterBlocked() throws Exception
+    {
+        WaitStrategy[] strategies = WaitStrategy.values();
+        for (int s = 0; s < strategies.length; s++) {
+            Link link = new Link(64, 64, strategies[s]);
+            IOException[] failure = new IOException[1];
+            Thread writer = startBlockedWriter(link, failure);
+            link.getReader().close();
+            writer.join(5000);
+            assertFalse(strategies[s] + " writer still blocked", writer.isAlive());
+            assertTrue(strategies[s] + " write did not fail", failure[0] != null);
+            assertEquals(0, link.getCapacity());
+        }
+    }
+
+    /**
+     * start a thread which writes more than a link can hold and wait until it has filled the
+     * link and has had time to start waiting for space
+     */
+    private static Thread startBlockedWriter(final Link link, final IOException[] failure) throws Exception
+    {
+        Thread writer = new Thread() {
+            public void run()
+            {
+                try {
+                    link.getWriter().write(new char[1000], 0, 1000);
+                } catch (IOException ioe) {
+                    failure[0] = ioe;
+                }
+            }
+        };
+        writer.start();
+        // wait until the writer has started filling the buffer
+        while (!link.getReader().ready()) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertTrue(writer.isAlive());
+        return writer;
+    }
+
+    /**
+     * bounce messages back and forth over a pair of links whose capacity is one less than the
+     * message size, so that every round trip makes each reader wait for data and each writer wait
+     * for space. a parked thread rechecks its link after at most a millisecond, so a lost wakeup
+     * shows up as a round trip which takes that long rather than as a hang. BUSY_SPIN never parks
+     * so it is only checked for completing with the right data, and with fewer round trips, since its
+     * spinning can hold up the other thread for a whole time slice on a machine with few cores
+     * @throws Exception
+     */
+    @Test
+    public void testNoLostWakeups() throws Exception
+    {
+        WaitStrategy[] strategies = { WaitStrategy.BUSY_SPIN, WaitStrategy.SPIN_YIELD_PARK, WaitStrategy.PARK };
+        for (int s = 0; s < strategies.length; s++) {
+            final Link ping = new Link(MESSAGE_SIZE - 1, MESSAGE_SIZE - 1, strategies[s]);
+            final Link pong = new Link(MESSAGE_SIZE - 1, MESSAGE_SIZE - 1, strategies[s]);
+            final int roundTrips = (strategies[s] == WaitStrategy.BUSY_SPIN ? BUSY_SPIN_ROUND_TRIPS : ROUND_TRIPS);
+            final IOException[] failure = new IOException[1];
+            Thread echo = new Thread() {
+                public void run()
+                {
+                    try {
+                        char[] message = new char[MESSAGE_SIZE];
+                        for (int i = 0; i < roundTrips; i++) {
+                            readFully(ping.getReader(), message);
+                            pong.getWriter().write(message, 0, message.length);
+                            pong.getWriter().flush();
+                        }
+                        pong.getWriter().close();
+                    } catch (IOException ioe) {
+                        failure[0] = ioe;
+                    }
+                }
+            };
+            echo.start();
+            long[] nanos = new long[roundTrips];
+            char[] message = new char[MESSAGE_SIZE];
+            char[] reply = new char[MESSAGE_SIZE];
+            for (int i = 0; i < roundTrips; i++) {
+                Arrays.fill(message, charAt(i));
+                long start = System.nanoTime();
+                ping.getWriter().write(message, 0, message.length);
+                ping.getWriter().flush();
+                readFully(pong.getReader(), reply);
+                nanos[i] = System.nanoTime() - start;
+                assertEquals(strategies[s] + " round trip " + i, new String(message), new String(reply));
+            }
+            ping.getWriter().close();
+            echo.join(30000);
+            assertFalse(strategies[s] + " echo still running", echo.isAlive());
+            assertNull(failure[0]);
+            assertEquals(-1, pong.getReader().read());
+            if (strategies[s] != WaitStrategy.BUSY_SPIN) {
+                Arrays.sort(nanos);
+                long median = nanos[roundTrips / 2];
+                assertTrue(strategies[s] + " median round trip " + median + "ns", median < 1000 * 1000L);
+            }
+        }
+    }
+
+    private static void readFully(PipedReader input, char[] chars) throws IOException
+    {
+        int total = 0;
+        while (total < chars.length) {
+            int count = input.read(chars, total, chars.length - total);
+            if (count < 0) {
+                throw new IOException("unexpected EOF");
+            }
+            total += count;
+        }
+    }
+
+    private static char charAt(int index)
+    {
+        return (char)('0' + index % 75);
+    }
+}
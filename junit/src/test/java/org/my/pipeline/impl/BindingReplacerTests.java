@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.junit.Test;
+import org.my.pipeline.util.BindingMap;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for BindingReplacer
+ */
+public class BindingReplacerTests
+{
+    private static final String[] PREFIXES = { "A", "Bc", "x" };
+    private static final String[] NOISE = { "${", "}", "$", "{", "${A0}", "${A01}", "${1}", "${}", "${A", "$A1}", "${A-1}", " ", "ab", "9" };
+    private static final Pattern REFERENCE = Pattern.compile("\\$\\{([A-Za-z]+[1-9][0-9]*)\\}");
+
+    /**
+     * compare the hand-written reference scanner with the original regular expression based
+     * replacer for random lines mixing bound, unbound and malformed references
+     * @throws Exception
+     */
+    @Test
+    public void testMatchesRegexReplacer() throws Exception
+    {
+        Random random = new Random(0);
+        BindingMap bindings = new BindingMap();
+        for (int p = 0; p < PREFIXES.length; p++) {
+            for (int i = 1; i <= 30; i++) {
+                if (random.nextBoolean()) {
+                    bindings.putIfAbsent(PREFIXES[p] + i, PatternReplacerTests.randomText(random, "ab ${}\\", random.nextInt(6)));
+                }
+            }
+        }
+        BindingReplacer replacer = new BindingReplacer(bindings, new CharSequenceSource(""));
+        for (int line = 0; line < 10000; line++) {
+            StringBuilder builder = new StringBuilder();
+            int pieces = random.nextInt(8);
+            for (int i = 0; i < pieces; i++) {
+                if (random.nextBoolean()) {
+                    builder.append("${").append(PREFIXES[random.nextInt(PREFIXES.length)]);
+                    builder.append(1 + random.nextInt(40)).append('}');
+                } else {
+                    builder.append(NOISE[random.nextInt(NOISE.length)]);
+                }
+            }
+            String text = builder.toString();
+            assertEquals("\"" + text + "\"", replaceAll(bindings, text), replacer.transform(text));
+        }
+    }
+
+    /**
+     * the original BindingReplacer transform
+     */
+    private static String replaceAll(BindingMap bindings, String line)
+    {
+        StringBuilder builder = new StringBuilder();
+        Matcher matcher = REFERENCE.matcher(line);
+        int current = 0;
+        while (matcher.find(current)) {
+            String value = bindings.get(matcher.group(1));
+            builder.append(line, current, matcher.start());
+            builder.append(value != null ? value : matcher.group());
+            current = matcher.end();
+        }
+        builder.append(line, current, line.length());
+        return builder.toString();
+    }
+
+    /**
+     * a replacer must only wait for the epochs of the stages upstream of it. a binder in another
+     * pipeline which shares the map and the prefix but has not been started must not hold it up
+     * @throws Exception
+     */
+    @Test
+    public void testOrderedReplacerOnlyWaitsForUpstream() throws Exception
+    {
+        BindingMap bindings = new BindingMap();
+        bindings.setOrdered(true);
+        // an idle pipeline created first using the same prefix
+        CharSequenceSource idleSource = new CharSequenceSource("the cat\n");
+        Binder idleBinder = new Binder("the ([a-z]+)", "X", bindings, idleSource);
+        CharSequenceSink idleSink = new CharSequenceSink(idleBinder);
+
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        // X2 is bound by the next line so it must not be replaced here
+        input.append("the boy met ${X2}\n");
+        expected.append("the boy met ${X2}\n");
+        input.append("${X1} met the girl\n");
+        expected.append("boy met the girl\n");
+        for (int i = 0; i < 20; i++) {
+            input.append("${X1} and ${X2} line ").append(i).append('\n');
+            expected.append("boy and girl line ").append(i).append('\n');
+        }
+        CharSequenceSource source = new CharSequenceSource(input);
+        Binder binder = new Binder("the ([a-z]+)", "X", bindings, source);
+        BindingReplacer replacer = new BindingReplacer(bindings, binder);
+        CharSequenceSink sink = new CharSequenceSink(replacer);
+        long start = System.currentTimeMillis();
+        source.start();
+        binder.start();
+        replacer.start();
+        sink.start();
+        source.join();
+        binder.join();
+        replacer.join();
+        sink.join();
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(expected.toString(), sink.toString());
+        // waiting on the idle binder would cost a second per line
+        assertTrue("replacer took " + elapsed + "ms", elapsed < 5000);
+
+        idleSource.start();
+        idleBinder.start();
+        idleSink.start();
+        idleSource.join();
+        idleBinder.join();
+        idleSink.join();
+        assertEquals("X3", bindings.bind("X", "cat"));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.junit.Test;
+import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.LruEvictionPolicy;
+import org.my.pipeline.util.TinyLfuEvictionPolicy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * tests for DirectorySource running several per-file pipelines at once
+ */
+public class DirectorySourceTests
+{
+    private static final int FILES = 8;
+    private static final int LINES = 3000;
+
+    /**
+     * process several files concurrently through a binder, inserter and binding replacer which
+     * share one map. every value is replaced with a reference and the reference is replaced again
+     * so each output file must match its input file exactly
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentBindingPipelines() throws Exception
+    {
+        BindingMap[] maps = {
+                new BindingMap(),
+                new BindingMap(new LruEvictionPolicy(100)),
+                new BindingMap(new TinyLfuEvictionPolicy(100))
+        };
+        File root = createTempDirectory();
+        try {
+            File in = new File(root, "in");
+            in.mkdir();
+            Random random = new Random(0);
+            for (int f = 0; f < FILES; f++) {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < LINES; i++) {
+                    builder.append("user").append(random.nextInt(2000)).append(" logged in from host");
+                    builder.append(random.nextInt(3000)).append(" file ").append(f).append(" line ").append(i).append('\n');
+                }
+                write(new File(in, "file" + f + ".log"), builder.toString().getBytes("UTF-8"));
+            }
+            PipelineTemplate template = new PipelineTemplate(
+                    PipelineTemplate.binder("user([0-9]+)", "U"),
+                    PipelineTemplate.inserter("host([0-9]+)", "H"),
+                    PipelineTemplate.bindingReplacer());
+            for (int m = 0; m < maps.length; m++) {
+                File out = new File(root, "out" + m);
+                DirectorySource directory = new DirectorySource(in.getPath(), "*.log", template, maps[m]);
+                directory.setConcurrency(4);
+                directory.setOutputDirectory(out.getPath());
+                directory.start();
+                directory.join();
+                assertEquals(FILES, directory.getCompletedCount());
+                assertEquals(0, directory.getFailedCount());
+                for (int f = 0; f < FILES; f++) {
+                    String name = "file" + f + ".log";
+                    assertArrayEquals(name, read(new File(in, name)), read(new File(out, name)));
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static File createTempDirectory() throws IOException
+    {
+        File dir = File.createTempFile("directory", "");
+        dir.delete();
+        if (!dir.mkdir()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int count = 0;
+            while (count < bytes.length) {
+                int n = in.read(bytes, count, bytes.length - count);
+                if (n < 0) {
+                    break;
+                }
+                count += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for FileSource tailing a growing file
+ */
+public class FileSourceTests
+{
+    /**
+     * the longest time to wait for tailed data to reach the sink
+     */
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * data appended to a tailed file must be forwarded without the source stopping at EOF
+     * @throws Exception
+     */
+    @Test
+    public void testTailAppend() throws Exception
+    {
+        File file = File.createTempFile("tail", ".log");
+        try {
+            write(file, "line 0\n", false);
+            FileSource source = new FileSource(file.getPath());
+            source.setTailing(true);
+            CharSequenceSink sink = new CharSequenceSink(source);
+            source.start();
+            sink.start();
+            awaitOutput(sink, "line 0\n");
+            write(file, "line 1\n", true);
+            awaitOutput(sink, "line 0\nline 1\n");
+            write(file, "line 2\nline 3\n", true);
+            awaitOutput(sink, "line 0\nline 1\nline 2\nline 3\n");
+            assertTrue(source.isAlive());
+            stop(source, sink);
+            assertEquals("line 0\nline 1\nline 2\nline 3\n", sink.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * a tailed file which is truncated must be reread from the start
+     * @throws Exception
+     */
+    @Test
+    public void testTailTruncate() throws Exception
+    {
+        File file = File.createTempFile("tail", ".log");
+        try {
+            write(file, "old line 0\nold line 1\n", false);
+            FileSource source = new FileSource(file.getPath());
+            source.setTailing(true);
+            CharSequenceSink sink = new CharSequenceSink(source);
+            source.start();
+            sink.start();
+            awaitOutput(sink, "old line 0\nold line 1\n");
+            // the new contents must be shorter than the old for truncation to be seen
+            write(file, "new 0\n", false);
+            awaitOutput(sink, "old line 0\nold line 1\nnew 0\n");
+            write(file, "new 1\n", true);
+            awaitOutput(sink, "old line 0\nold line 1\nnew 0\nnew 1\n");
+            stop(source, sink);
+            assertEquals("old line 0\nold line 1\nnew 0\nnew 1\n", sink.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * a tailed file which is rotated must be read to the end, including data written after it
+     * was renamed, before the file which replaces it is read
+     * @throws Exception
+     */
+    @Test
+    public void testTailRotate() throws Exception
+    {
+        File file = File.createTempFile("tail", ".log");
+        File rotated = new File(file.getPath() + ".1");
+        try {
+            write(file, "old 0\n", false);
+            FileSource source = new FileSource(file.getPath());
+            source.setTailing(true);
+            CharSequenceSink sink = new CharSequenceSink(source);
+            source.start();
+            sink.start();
+            awaitOutput(sink, "old 0\n");
+            assertTrue(file.renameTo(rotated));
+            write(rotated, "old 1\n", true);
+            awaitOutput(sink, "old 0\nold 1\n");
+            write(file, "new 0\n", false);
+            awaitOutput(sink, "old 0\nold 1\nnew 0\n");
+            write(file, "new 1\n", true);
+            awaitOutput(sink, "old 0\nold 1\nnew 0\nnew 1\n");
+            stop(source, sink);
+            assertEquals("old 0\nold 1\nnew 0\nnew 1\n", sink.toString());
+        } finally {
+            file.delete();
+            rotated.delete();
+        }
+    }
+
+    private static void write(File file, String text, boolean append) throws Exception
+    {
+        OutputStream stream = new FileOutputStream(file, append);
+        try {
+            stream.write(text.getBytes("UTF-8"));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * wait until the sink has received the expected text
+     */
+    private static void awaitOutput(CharSequenceSink sink, String expected) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!expected.equals(sink.toString()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, sink.toString());
+    }
+
+    private static void stop(FileSource source, CharSequenceSink sink) throws Exception
+    {
+        source.stopTailing();
+        source.join(TIMEOUT);
+        assertFalse("source still tailing", source.isAlive());
+        sink.join(TIMEOUT);
+        assertFalse("sink still running", sink.isAlive());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.junit.Test;
+import org.my.pipeline.core.Source;
+import org.my.pipeline.util.BindingMap;
+import org.my.pipeline.util.Startup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * tests for PatternReplacer and the other pattern matching stages
+ */
+public class PatternReplacerTests
+{
+    private static final String[] PATTERNS = {
+            "([a-c]+)",
+            "([a-c])([x-z]+)",
+            "(a)(b)(c)",
+            "x+",
+            "([0-9]+)-([a-z])",
+            "(ab|ba)",
+            " (\\w)"
+    };
+    private static final String TEXT = "abcxyz019- .";
+    private static final String LITERALS = "XY_-. ";
+
+    /**
+     * compare the template based replacer with the original implementation, which substituted
+     * each group into the replacement text using String.replaceAll, for random patterns,
+     * replacements and lines. replacements may refer to groups the pattern does not have, in
+     * which case matches are deleted
+     * @throws Exception
+     */
+    @Test
+    public void testMatchesReplaceAll() throws Exception
+    {
+        Random random = new Random(0);
+        for (int round = 0; round < 200; round++) {
+            String regex = PATTERNS[random.nextInt(PATTERNS.length)];
+            StringBuilder replacement = new StringBuilder();
+            int elements = random.nextInt(5);
+            for (int i = 0; i < elements; i++) {
+                if (random.nextBoolean()) {
+                    replacement.append('\\').append(1 + random.nextInt(3));
+                }
+                // never let a digit follow a group reference
+                replacement.append(LITERALS.charAt(random.nextInt(LITERALS.length())));
+            }
+            PatternReplacer replacer = new PatternReplacer(regex, replacement.toString(), new CharSequenceSource(""));
+            for (int line = 0; line < 50; line++) {
+                String text = randomText(random, TEXT, random.nextInt(40));
+                assertEquals(regex + " -> " + replacement + " on \"" + text + "\"",
+                        replaceAll(Pattern.compile(regex), replacement.toString(), text),
+                        replacer.transform(text));
+            }
+        }
+    }
+    /**
+     * with lazy startup an invalid pattern is only compiled when the first line arrives. the
+     * stage must then fail as if it had hit an I/O error, stopping its upstream stage as well
+     * as closing its output, rather than let the exception escape from run()
+     * @throws Exception
+     */
+    @Test
+    public void testLazyInvalidPattern() throws Exception
+    {
+        boolean lazy = Startup.isLazy();
+        Startup.setLazy(true);
+        try {
+            checkStageFails(new StageFactory() {
+                public Source create(CharSequenceSource source) throws IOException
+                {
+                    return new PatternReplacer("([a-", "x", source);
+                }
+            });
+            checkStageFails(new StageFactory() {
+                public Source create(CharSequenceSource source) throws IOException
+                {
+                    return new Binder("([a-", "X", new BindingMap(), source);
+                }
+            });
+            checkStageFails(new StageFactory() {
+                public Source create(CharSequenceSource source) throws IOException
+                {
+                    return new BindingInserter("([a-", "X", new BindingMap(), source);
+                }
+            });
+        } finally {
+            Startup.setLazy(lazy);
+        }
+    }
+
+    /**
+     * the original PatternReplacer transform
+     */
+    private static String replaceAll(Pattern pattern, String replacement, String text)
+    {
+        List<Integer> groups = new ArrayList<Integer>();
+        int maxGroupIndex = 0;
+        Matcher groupMatcher = Pattern.compile("\\\\[1-9][0-9]*").matcher(replacement);
+        while (groupMatcher.find()) {
+            int index = Integer.valueOf(groupMatcher.group().substring(1));
+            if (!groups.contains(index)) {
+                maxGroupIndex = Math.max(maxGroupIndex, index);
+                groups.add(index);
+            }
+        }
+        Matcher matcher = pattern.matcher(text);
+        StringBuilder builder = new StringBuilder();
+        int current = 0;
+        while (matcher.find(current)) {
+            builder.append(text, current, matcher.start());
+            if (matcher.groupCount() >= maxGroupIndex) {
+                String expanded = replacement;
+                for (int i : groups) {
+                    expanded = expanded.replaceAll("\\\\" + i, matcher.group(i));
+                }
+                builder.append(expanded);
+            }
+            current = matcher.end();
+        }
+        builder.append(text, current, text.length());
+        return builder.toString();
+    }
+
+    static String randomText(Random random, String alphabet, int length)
+    {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    private void checkStageFails(StageFactory factory) throws Exception
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        CharSequenceSource source = new CharSequenceSource(builder);
+        Source stage = factory.create(source);
+        CharSequenceSink sink = new CharSequenceSink(stage);
+        final Throwable[] uncaught = new Throwable[1];
+        ((Thread)stage).setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread thread, Throwable throwable)
+            {
+                uncaught[0] = throwable;
+            }
+        });
+        source.start();
+        ((Thread)stage).start();
+        sink.start();
+        ((Thread)stage).join(10000);
+        sink.join(10000);
+        source.join(10000);
+        assertFalse(((Thread)stage).isAlive());
+        assertFalse(sink.isAlive());
+        assertFalse("source still blocked", source.isAlive());
+        // the failure must end the stage like an I/O error rather than escape from run()
+        assertNull(uncaught[0]);
+    }
+
+    private interface StageFactory
+    {
+        public Source create(CharSequenceSource source) throws IOException;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests for SocketSource merging the lines sent by several clients
+ */
+public class SocketSourceTests
+{
+    private static final int CLIENTS = 8;
+    private static final int LINES = 20000;
+
+    /**
+     * send lines from several clients over loopback connections and check that every line is
+     * merged whole and that each client's lines arrive in the order they were sent
+     * @throws Exception
+     */
+    @Test
+    public void testLoopbackMerge() throws Exception
+    {
+        SocketSource source = new SocketSource(0);
+        source.setCharset(Charset.forName("UTF-8"));
+        source.setConnectionLimit(CLIENTS);
+        CharSequenceSink sink = new CharSequenceSink(source);
+        source.start();
+        sink.start();
+        Thread[] clients = new Thread[CLIENTS];
+        Exception[] failures = new Exception[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            clients[c] = new Client(source.getLocalPort(), c, LINES, failures);
+            clients[c].start();
+        }
+        for (int c = 0; c < CLIENTS; c++) {
+            clients[c].join();
+            assertNull(failures[c]);
+        }
+        source.join();
+        sink.join();
+        assertNull(source.getFailure());
+        assertEquals(CLIENTS, source.getConnectionCount());
+
+        String[] lines = sink.toString().split("\n", -1);
+        assertEquals(CLIENTS * LINES + 1, lines.length);
+        assertEquals("", lines[lines.length - 1]);
+        int[] next = new int[CLIENTS];
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split(" ");
+            assertEquals(lines[i], 5, fields.length);
+            assertEquals(lines[i], "client", fields[0]);
+            assertEquals(lines[i], "line", fields[2]);
+            assertEquals(lines[i], "\u65e5\u672c", fields[4]);
+            int client = Integer.parseInt(fields[1]);
+            assertEquals(lines[i], next[client]++, Integer.parseInt(fields[3]));
+        }
+        for (int c = 0; c < CLIENTS; c++) {
+            assertEquals(LINES, next[c]);
+        }
+    }
+
+    /**
+     * a RuntimeException thrown while the source is pumping input must fail the source rather
+     * than leave it waiting for input
+     * @throws Exception
+     */
+    @Test
+    public void testHandlerFailureFailsStage() throws Exception
+    {
+        SocketSource source = new SocketSource(new SocketSelector(), new InetSocketAddress("127.0.0.1", 0)) {
+            protected void pump() throws IOException
+            {
+                if (getConnectionCount() > 0) {
+                    throw new IllegalStateException("broken handler");
+                }
+                super.pump();
+            }
+        };
+        CharSequenceSink sink = new CharSequenceSink(source);
+        source.start();
+        sink.start();
+        Exception[] failures = new Exception[1];
+        Thread client = new Client(source.getLocalPort(), 0, 10, failures);
+        client.start();
+        client.join();
+        if (!source.join(10000)) {
+            fail("source did not finish");
+        }
+        sink.join();
+        assertNotNull(source.getFailure());
+        assertTrue(source.getFailure().getCause() instanceof IllegalStateException);
+    }
+
+    /**
+     * closing the selector must finish every stage which is still using it
+     * @throws Exception
+     */
+    @Test
+    public void testSelectorCloseFinishesStages() throws Exception
+    {
+        SocketSelector selector = new SocketSelector();
+        SocketSource source = new SocketSource(selector, new InetSocketAddress("127.0.0.1", 0));
+        CharSequenceSink sink = new CharSequenceSink(source);
+        source.start();
+        sink.start();
+        // hold a connection open so the source has no reason to finish
+        Socket socket = new Socket("127.0.0.1", source.getLocalPort());
+        try {
+            selector.close();
+            if (!source.join(10000)) {
+                fail("source did not finish");
+            }
+            sink.join();
+            assertNotNull(source.getFailure());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * a client which writes numbered lines to the source
+     */
+    private static class Client extends Thread
+    {
+        private int port;
+        private int id;
+        private int lines;
+        private Exception[] failures;
+
+        Client(int port, int id, int lines, Exception[] failures)
+        {
+            this.port = port;
+            this.id = id;
+            this.lines = lines;
+            this.failures = failures;
+        }
+
+        public void run()
+        {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                try {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                    for (int i = 0; i < lines; i++) {
+                        writer.write("client " + id + " line " + i + " \u65e5\u672c");
+                        // leave the last line of odd clients unterminated
+                        if (i < lines - 1 || id % 2 == 0) {
+                            writer.write('\n');
+                        }
+                    }
+                    writer.flush();
+                } finally {
+                    socket.close();
+                }
+            } catch (Exception e) {
+                failures[id] = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.impl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for SplitFileSource feeding per-segment pipelines
+ */
+public class SplitFileSourceTests
+{
+    /**
+     * leaving a segment unconnected must not leave the sinks of the connected segments
+     * waiting for input
+     * @throws Exception
+     */
+    @Test
+    public void testPartiallyConnectedSegments() throws Exception
+    {
+        File file = File.createTempFile("split", ".txt");
+        try {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 10000; i++) {
+                builder.append("line ").append(i).append('\n');
+            }
+            OutputStream stream = new FileOutputStream(file);
+            try {
+                stream.write(builder.toString().getBytes("UTF-8"));
+            } finally {
+                stream.close();
+            }
+            SplitFileSource source = new SplitFileSource(file.getPath(), 4);
+            assertTrue(source.getSegmentCount() > 1);
+            CharSequenceSink[] sinks = new CharSequenceSink[source.getSegmentCount() - 1];
+            for (int i = 0; i < sinks.length; i++) {
+                sinks[i] = new CharSequenceSink(source.getSegment(i));
+            }
+            source.start();
+            for (int i = 0; i < sinks.length; i++) {
+                sinks[i].start();
+            }
+            source.join(10000);
+            assertFalse(source.isAlive());
+            for (int i = 0; i < sinks.length; i++) {
+                sinks[i].join(10000);
+                assertFalse("sink " + i + " did not finish", sinks[i].isAlive());
+                assertEquals(0, sinks[i].length());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import org.junit.Test;
+import org.my.pipeline.impl.Binder;
+import org.my.pipeline.impl.BindingInserter;
+import org.my.pipeline.impl.BindingReplacer;
+import org.my.pipeline.impl.CharSequenceSink;
+import org.my.pipeline.impl.CharSequenceSource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for the identifier allocation performed by a BindingMap
+ */
+public class BindingMapTests
+{
+    /**
+     * several threads bind overlapping sets of values with the same prefix. every distinct value
+     * must end up with its own identifier and no identifier may be allocated twice
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentAllocation() throws Exception
+    {
+        final BindingMap bindings = new BindingMap();
+        final int threads = 8;
+        final int values = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        List<Thread> binders = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            final Map<String, String> result = new HashMap<String, String>();
+            results.add(result);
+            Thread binder = new Thread() {
+                public void run()
+                {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int i = 0; i < values; i++) {
+                        // half the values are bound by every thread and half by this one only
+                        String value = (i % 2 == 0 ? "shared" + i : "value" + id + "-" + i);
+                        result.put(value, bindings.bind("X", value));
+                    }
+                }
+            };
+            binders.add(binder);
+            binder.start();
+        }
+        start.countDown();
+        for (int t = 0; t < threads; t++) {
+            binders.get(t).join();
+        }
+        Map<String, String> identifiers = new HashMap<String, String>();
+        for (int t = 0; t < threads; t++) {
+            for (Map.Entry<String, String> entry : results.get(t).entrySet()) {
+                String previous = identifiers.put(entry.getKey(), entry.getValue());
+                assertTrue(previous == null || previous.equals(entry.getValue()));
+                assertEquals(entry.getKey(), bindings.get(entry.getValue()));
+            }
+        }
+        int distinct = values / 2 + threads * values / 2;
+        assertEquals(distinct, identifiers.size());
+        assertEquals(distinct, new HashSet<String>(identifiers.values()).size());
+        assertEquals(distinct, bindings.size());
+        assertEquals(distinct, bindings.getHighestIndex("X"));
+    }
+
+    /**
+     * an identifier missing from a preloaded map must not be handed out again since text produced
+     * before the map was saved may still refer to it
+     * @throws Exception
+     */
+    @Test
+    public void testHolesAreNotReused() throws Exception
+    {
+        BindingMap bindings = new BindingMap();
+        bindings.importBindings(new StringReader("X1\tboy\nX3\tstick\n"));
+        assertEquals("X1", bindings.bind("X", "boy"));
+        assertEquals("X4", bindings.bind("X", "dog"));
+        bindings.reserveIndex("X", 10);
+        assertEquals("X11", bindings.bind("X", "window"));
+        assertEquals(11, bindings.getHighestIndex("X"));
+        assertEquals(null, bindings.get("X2"));
+    }
+
+    /**
+     * pipelines sharing a map and a prefix run concurrently. each one replaces every value with a
+     * reference and then replaces the references again so the output must match the input
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentInsertersSharingPrefix() throws Exception
+    {
+        BindingMap bindings = new BindingMap();
+        int pipelines = 4;
+        List<String> inputs = new ArrayList<String>();
+        List<CharSequenceSink> sinks = new ArrayList<CharSequenceSink>();
+        List<Thread> stages = new ArrayList<Thread>();
+        for (int p = 0; p < pipelines; p++) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 5000; i++) {
+                // some words are common to every pipeline and some are unique to this one
+                builder.append("the cat").append(i % 300).append(" saw the dog").append(p).append('x').append(i).append('\n');
+            }
+            String input = builder.toString();
+            inputs.add(input);
+            CharSequenceSource source = new CharSequenceSource(input);
+            BindingInserter inserter = new BindingInserter("the ([a-z0-9]+)", "X", bindings, source);
+            BindingReplacer replacer = new BindingReplacer(bindings, inserter);
+            CharSequenceSink sink = new CharSequenceSink(replacer);
+            sinks.add(sink);
+            stages.add(source);
+            stages.add(inserter);
+            stages.add(replacer);
+            stages.add(sink);
+        }
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).start();
+        }
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).join();
+        }
+        for (int p = 0; p < pipelines; p++) {
+            assertEquals(inputs.get(p), sinks.get(p).toString());
+        }
+        assertEquals(bindings.size(), bindings.getHighestIndex("X"));
+    }
+
+    /**
+     * a binding referenced after the lowest watermark must not be evicted. once the watermark
+     * passes it the map returns to its capacity and a rebound value gets a new identifier
+     * @throws Exception
+     */
+    @Test
+    public void testWatermarkHoldsReferencedBindings() throws Exception
+    {
+        BindingMap bindings = new BindingMap(new LruEvictionPolicy(2));
+        BindingMap.Watermark watermark = bindings.openWatermark();
+        assertEquals("X1", bindings.bind("X", "a"));
+        assertEquals("X2", bindings.bind("X", "b"));
+        assertEquals("X3", bindings.bind("X", "c"));
+        assertEquals("X4", bindings.bind("X", "d"));
+        // nothing has been resolved yet so nothing can go
+        assertEquals(4, bindings.size());
+        assertEquals(0, bindings.getEvictionCount());
+        watermark.advance(bindings.getReferenceStamp());
+        assertEquals("X5", bindings.bind("X", "e"));
+        assertEquals(2, bindings.size());
+        assertEquals(3, bindings.getEvictionCount());
+        assertEquals("e", bindings.get("X5"));
+        assertEquals(null, bindings.get("X1"));
+        // an evicted value is bound afresh
+        assertEquals("X6", bindings.bind("X", "a"));
+        watermark.close();
+        assertEquals("X7", bindings.bind("X", "f"));
+        assertEquals(2, bindings.size());
+    }
+
+    /**
+     * run a pipeline which replaces values with references and then replaces the references
+     * again through a map which is much smaller than the number of values. eviction must never
+     * remove a binding before its references have been replaced
+     * @throws Exception
+     */
+    @Test
+    public void testBoundedRoundTrip() throws Exception
+    {
+        EvictionPolicy[] policies = { new LruEvictionPolicy(100), new TinyLfuEvictionPolicy(100) };
+        for (int p = 0; p < policies.length; p++) {
+            BindingMap bindings = new BindingMap(policies[p]);
+            StringBuilder builder = new StringBuilder();
+            Random random = new Random(p);
+            for (int i = 0; i < 20000; i++) {
+                builder.append("user").append(random.nextInt(3000)).append(" from host").append(random.nextInt(5000));
+                builder.append(" session ").append(i).append('\n');
+            }
+            String input = builder.toString();
+            CharSequenceSource source = new CharSequenceSource(input);
+            Binder binder = new Binder("user([0-9]+)", "U", bindings, source);
+            BindingInserter inserter = new BindingInserter("host([0-9]+)", "H", bindings, binder);
+            BindingReplacer replacer = new BindingReplacer(bindings, inserter);
+            CharSequenceSink sink = new CharSequenceSink(replacer);
+            source.start();
+            binder.start();
+            inserter.start();
+            replacer.start();
+            sink.start();
+            source.join();
+            binder.join();
+            inserter.join();
+            replacer.join();
+            sink.join();
+            assertEquals(input, sink.toString());
+            assertTrue(bindings.getEvictionCount() > 0);
+            // the map may be a little over capacity if the replacer was lagging at the end
+            assertTrue(bindings.size() < 1000);
+        }
+    }
+}
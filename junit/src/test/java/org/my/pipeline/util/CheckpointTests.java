@@ -0,0 +1,83 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for saving and restoring a Checkpoint
+ */
+public class CheckpointTests
+{
+    /**
+     * save a checkpoint then restore it into a fresh map. the offsets and the bindings must be
+     * restored and numbering must resume after the highest identifier allocated before the save,
+     * even when the binding for that identifier was evicted and so is not in the snapshot
+     * @throws Exception
+     */
+    @Test
+    public void testSaveAndRestore() throws Exception
+    {
+        File file = File.createTempFile("checkpoint", ".properties");
+        file.delete();
+        try {
+            BindingMap bindings = new BindingMap(new LruEvictionPolicy(2));
+            Checkpoint checkpoint = new Checkpoint(file.getPath(), 10, bindings);
+            assertEquals(0, checkpoint.getLineCount());
+            assertEquals("X1", bindings.bind("X", "boy"));
+            assertEquals("X2", bindings.bind("X", "stick"));
+            assertEquals("X3", bindings.bind("X", "dog"));
+            assertEquals("Y1", bindings.bind("Y", "window"));
+            checkpoint.markInput(10, 100);
+            checkpoint.commit(10, 120);
+            assertTrue(file.exists());
+
+            BindingMap restored = new BindingMap();
+            Checkpoint restart = new Checkpoint(file.getPath(), 10, restored);
+            assertEquals(10, restart.getLineCount());
+            assertEquals(100, restart.getInputOffset());
+            assertEquals(120, restart.getOutputOffset());
+            assertEquals(bindings.snapshot(), restored.snapshot());
+            assertEquals(3, restored.getHighestIndex("X"));
+            assertEquals(1, restored.getHighestIndex("Y"));
+            // the evicted bindings must not be reallocated to new values
+            assertEquals("X4", restored.bind("X", "ball"));
+            assertEquals("Y2", restored.bind("Y", "door"));
+
+            restart.markInputComplete(12);
+            assertTrue(restart.complete(12));
+            assertFalse(file.exists());
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".tmp").delete();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * tests for ChunkPool reference counting and leak detection
+ */
+public class ChunkPoolTests
+{
+    private static final int HOLDERS = 4;
+    private static final int ROUNDS = 50000;
+    private static final int DEPTH = 8;
+    /**
+     * without leak detection a released chunk is reused by the next allocation
+     */
+    @Test
+    public void testReuse()
+    {
+        ChunkPool pool = ChunkPool.charPool(1001);
+        ChunkPool.Chunk first = pool.allocate();
+        first.release();
+        ChunkPool.Chunk second = pool.allocate();
+        assertSame(first, second);
+        second.release();
+        try {
+            second.release();
+            fail("double release not detected");
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        ChunkPool.releaseThreadCaches();
+    }
+
+    /**
+     * with leak detection a stale release must be caught even after another chunk has been
+     * allocated in its place
+     */
+    @Test
+    public void testStaleReleaseDetected()
+    {
+        ChunkPool pool = ChunkPool.charPool(1002);
+        pool.setLeakDetection(true);
+        try {
+            ChunkPool.Chunk first = pool.allocate();
+            first.release();
+            ChunkPool.Chunk second = pool.allocate();
+            assertNotSame(first, second);
+            assertEquals(1, pool.getOutstandingCount());
+            try {
+                first.release();
+                fail("stale release not detected");
+            } catch (IllegalStateException ise) {
+                // expected
+            }
+            try {
+                first.retain();
+                fail("stale retain not detected");
+            } catch (IllegalStateException ise) {
+                // expected
+            }
+            second.retain();
+            second.release();
+            assertEquals(1, pool.getOutstandingCount());
+            second.release();
+            assertEquals(0, pool.getOutstandingCount());
+        } finally {
+            pool.setLeakDetection(false);
+            ChunkPool.releaseThreadCaches();
+        }
+    }
+
+    /**
+     * several holders retaining and releasing one chunk at the same time must neither lose a
+     * reference nor spin forever when one of them loses a race to update the count. the chunk
+     * must only be recycled once the original reference is released
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentRetainRelease() throws Exception
+    {
+        ChunkPool pool = ChunkPool.charPool(1003);
+        pool.setLeakDetection(true);
+        try {
+            final ChunkPool.Chunk chunk = pool.allocate();
+            final RuntimeException[] failure = new RuntimeException[1];
+            Thread[] holders = new Thread[HOLDERS];
+            for (int i = 0; i < HOLDERS; i++) {
+                holders[i] = new Thread() {
+                    public void run()
+                    {
+                        try {
+                            // each holder takes several references at a time so that the
+                            // count seen by a holder which loses a race is not seen again
+                            for (int j = 0; j < ROUNDS; j++) {
+                                for (int k = 0; k < DEPTH; k++) {
+                                    chunk.retain();
+                                }
+                                for (int k = 0; k < DEPTH; k++) {
+                                    chunk.release();
+                                }
+                            }
+                        } catch (RuntimeException re) {
+                            failure[0] = re;
+                        }
+                    }
+                };
+                holders[i].setDaemon(true);
+                holders[i].start();
+            }
+            for (int i = 0; i < HOLDERS; i++) {
+                holders[i].join(30000);
+                assertFalse("holder " + i + " still running", holders[i].isAlive());
+            }
+            assertNull(failure[0]);
+            assertEquals(1, pool.getOutstandingCount());
+            chunk.release();
+            assertEquals(0, pool.getOutstandingCount());
+        } finally {
+            pool.setLeakDetection(false);
+            ChunkPool.releaseThreadCaches();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import org.junit.Test;
+import org.my.pipeline.impl.CharSequenceSink;
+import org.my.pipeline.impl.FileSink;
+import org.my.pipeline.impl.FileSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * tests for reading and writing compressed files through the pipelined compression streams
+ */
+public class CompressionTests
+{
+    /**
+     * enough lines to fill several of the 64K blocks passed to and from the helper threads
+     */
+    private static final int LINES = 50000;
+
+    /**
+     * a file written through a gzip FileSink must be a valid gzip file and must read back
+     * through a FileSource as the original text
+     * @throws Exception
+     */
+    @Test
+    public void testGzipRoundTrip() throws Exception
+    {
+        checkRoundTrip(".gz", Compression.GZIP);
+    }
+
+    /**
+     * a file written through a zlib FileSink must be a valid zlib stream and must read back
+     * through a FileSource as the original text
+     * @throws Exception
+     */
+    @Test
+    public void testDeflateRoundTrip() throws Exception
+    {
+        checkRoundTrip(".zz", Compression.DEFLATE);
+    }
+
+    /**
+     * a gzip file made up of several members, as produced by concatenating gzip files, must be
+     * read as the concatenation of their contents
+     * @throws Exception
+     */
+    @Test
+    public void testConcatenatedGzipMembers() throws Exception
+    {
+        File file = File.createTempFile("members", ".gz");
+        try {
+            StringBuilder expected = new StringBuilder();
+            OutputStream stream = new FileOutputStream(file);
+            try {
+                for (int i = 0; i < 3; i++) {
+                    String text = lines("member " + i, LINES / 10);
+                    expected.append(text);
+                    // each member is finished and written in turn to the same file
+                    ByteArrayOutputStream member = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(member);
+                    gzip.write(text.getBytes("UTF-8"));
+                    gzip.close();
+                    member.writeTo(stream);
+                }
+            } finally {
+                stream.close();
+            }
+            assertEquals(expected.toString(), read(file, Compression.AUTO));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void checkRoundTrip(String suffix, Compression codec) throws Exception
+    {
+        File plain = File.createTempFile("plain", ".txt");
+        File compressed = File.createTempFile("compressed", suffix);
+        try {
+            String text = lines("line", LINES);
+            OutputStream stream = new FileOutputStream(plain);
+            try {
+                stream.write(text.getBytes("UTF-8"));
+            } finally {
+                stream.close();
+            }
+            FileSource source = new FileSource(plain.getPath());
+            FileSink sink = new FileSink(compressed.getPath(), source);
+            sink.setCompression(Compression.AUTO);
+            source.start();
+            sink.start();
+            source.join();
+            sink.join();
+            // the file must be readable by the standard codec as well as by a FileSource
+            InputStream in = new FileInputStream(compressed);
+            if (codec == Compression.GZIP) {
+                in = new GZIPInputStream(in);
+            } else {
+                in = new InflaterInputStream(in);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[4096];
+                int count = in.read(buffer);
+                while (count >= 0) {
+                    bytes.write(buffer, 0, count);
+                    count = in.read(buffer);
+                }
+            } finally {
+                in.close();
+            }
+            assertEquals(text, bytes.toString("UTF-8"));
+            assertEquals(text, read(compressed, codec));
+            // AUTO spots gzip by its magic number and zlib by the file suffix
+            assertEquals(text, read(compressed, Compression.AUTO));
+        } finally {
+            plain.delete();
+            compressed.delete();
+        }
+    }
+
+    private static String read(File file, Compression codec) throws Exception
+    {
+        FileSource source = new FileSource(file.getPath());
+        source.setCompression(codec);
+        CharSequenceSink sink = new CharSequenceSink(source);
+        source.start();
+        sink.start();
+        source.join(10000);
+        sink.join(10000);
+        assertFalse(source.isAlive());
+        assertFalse(sink.isAlive());
+        return sink.toString();
+    }
+
+    private static String lines(String label, int count)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(label).append(' ').append(i).append('\n');
+        }
+        return builder.toString();
+    }
+}
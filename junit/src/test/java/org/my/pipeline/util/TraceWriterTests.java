@@ -0,0 +1,307 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat and individual contributors as identified
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.my.pipeline.util;
+
+import org.junit.Test;
+import org.my.pipeline.impl.CharSequenceSink;
+import org.my.pipeline.impl.CharSequenceSource;
+import org.my.pipeline.impl.TraceProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests for TraceWriter, its targets and sampling by TraceProcessor
+ */
+public class TraceWriterTests
+{
+    private static final int RECORDS = 1000;
+
+    /**
+     * records queued while the target is busy must be handed to it in batches, in the order
+     * they were queued, with no batch larger than the writer's batch size
+     * @throws Exception
+     */
+    @Test
+    public void testBatching() throws Exception
+    {
+        BlockingTarget target = new BlockingTarget();
+        TraceWriter writer = new TraceWriter(target);
+        assertTrue(writer.trace("stage", "> ", "first"));
+        target.awaitWrite();
+        for (int i = 0; i < RECORDS; i++) {
+            assertTrue(writer.trace("stage", "> ", "line " + i));
+        }
+        target.release();
+        writer.close();
+        assertEquals(RECORDS + 1, writer.getWritten());
+        assertEquals(0, writer.getDropped());
+        List<TraceWriter.Record> records = target.getRecords();
+        assertEquals(RECORDS + 1, records.size());
+        assertEquals("first", records.get(0).getLine());
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals("line " + i, records.get(i + 1).getLine());
+        }
+        // the records queued behind the blocked write are written in a few full batches
+        List<Integer> sizes = target.getBatchSizes();
+        assertTrue("too many batches " + sizes, sizes.size() <= 2 + RECORDS / 256);
+        for (int i = 0; i < sizes.size(); i++) {
+            assertTrue("batch too large " + sizes, sizes.get(i) <= 256);
+        }
+    }
+
+    /**
+     * records traced when the queue is full or after the writer has been closed must be
+     * dropped and counted rather than block the caller
+     * @throws Exception
+     */
+    @Test
+    public void testDropCounting() throws Exception
+    {
+        BlockingTarget target = new BlockingTarget();
+        TraceWriter writer = new TraceWriter(target, 10);
+        assertTrue(writer.trace("stage", "> ", "first"));
+        target.awaitWrite();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.trace("stage", "> ", "queued " + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertFalse(writer.trace("stage", "> ", "dropped " + i));
+        }
+        assertEquals(5, writer.getDropped());
+        target.release();
+        writer.close();
+        assertEquals(11, writer.getWritten());
+        assertFalse(writer.trace("stage", "> ", "after close"));
+        assertEquals(6, writer.getDropped());
+        assertEquals(11, target.getRecords().size());
+    }
+
+    /**
+     * a target which throws a RuntimeException must not stop the writer. the failed batch is
+     * counted as dropped and later records are still written
+     * @throws Exception
+     */
+    @Test
+    public void testFailingTarget() throws Exception
+    {
+        BlockingTarget target = new BlockingTarget();
+        target.failNext();
+        TraceWriter writer = new TraceWriter(target);
+        assertTrue(writer.trace("stage", "> ", "lost"));
+        target.awaitWrite();
+        target.release();
+        // wait for the failed batch to be accounted for before tracing more
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getDropped() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, writer.getDropped());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.trace("stage", "> ", "line " + i));
+        }
+        writer.close();
+        assertEquals(10, writer.getWritten());
+        assertEquals(1, writer.getDropped());
+        assertTrue(target.isClosed());
+    }
+
+    /**
+     * records traced concurrently with close must either be written or be counted as dropped.
+     * none may be lost
+     * @throws Exception
+     */
+    @Test
+    public void testTraceDuringClose() throws Exception
+    {
+        for (int round = 0; round < 20; round++) {
+            final TraceWriter writer = new TraceWriter(new TraceWriter.RingBuffer(16));
+            final long[] accepted = new long[1];
+            Thread tracer = new Thread() {
+                public void run()
+                {
+                    for (int i = 0; i < 100000; i++) {
+                        if (writer.trace("stage", "> ", "line")) {
+                            accepted[0]++;
+                        }
+                    }
+                }
+            };
+            tracer.start();
+            Thread.sleep(1);
+            writer.close();
+            tracer.join();
+            assertEquals(accepted[0], writer.getWritten());
+            assertEquals(100000, writer.getWritten() + writer.getDropped());
+        }
+    }
+
+    /**
+     * a ring buffer keeps only the most recently written records, oldest first
+     */
+    @Test
+    public void testRingBuffer()
+    {
+        TraceWriter.RingBuffer ring = new TraceWriter.RingBuffer(3);
+        TraceWriter writer = new TraceWriter(ring);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(writer.trace("stage", "> ", "line " + i));
+        }
+        writer.close();
+        List<TraceWriter.Record> records = ring.getRecords();
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("stage", records.get(i).getStage());
+            assertEquals("> line " + (i + 2), records.get(i).toString());
+        }
+    }
+
+    /**
+     * a stream target writes each record as a prefixed line and leaves a caller's stream open
+     * @throws Exception
+     */
+    @Test
+    public void testStreamTarget() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TraceWriter writer = new TraceWriter(new TraceWriter.StreamTarget(out));
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < RECORDS; i++) {
+            String prefix = (i % 2 == 0 ? "a> " : "b> ");
+            assertTrue(writer.trace("stage", prefix, "line " + i));
+            expected.append(prefix).append("line ").append(i).append('\n');
+        }
+        writer.close();
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    /**
+     * a sampling trace processor traces every Nth line, starting with line N, and passes all
+     * of its input through unchanged
+     * @throws Exception
+     */
+    @Test
+    public void testSampling() throws Exception
+    {
+        StringBuilder input = new StringBuilder();
+        for (int i = 1; i <= 10; i++) {
+            input.append("line ").append(i).append('\n');
+        }
+        TraceWriter.RingBuffer ring = new TraceWriter.RingBuffer(10);
+        TraceWriter writer = new TraceWriter(ring);
+        CharSequenceSource source = new CharSequenceSource(input);
+        TraceProcessor tracer = new TraceProcessor("t> ", writer, 3, source);
+        CharSequenceSink sink = new CharSequenceSink(tracer);
+        source.start();
+        tracer.start();
+        sink.start();
+        source.join();
+        tracer.join();
+        sink.join();
+        writer.close();
+        assertEquals(input.toString(), sink.toString());
+        List<TraceWriter.Record> records = ring.getRecords();
+        assertEquals(3, records.size());
+        assertEquals("t> line 3", records.get(0).toString());
+        assertEquals("t> line 6", records.get(1).toString());
+        assertEquals("t> line 9", records.get(2).toString());
+        assertEquals(tracer.getName(), records.get(0).getStage());
+    }
+
+    /**
+     * a target which records each batch and which can hold up a write until released. it can
+     * also be told to fail its next write with a RuntimeException
+     */
+    private static class BlockingTarget implements TraceWriter.Target
+    {
+        private CountDownLatch writing = new CountDownLatch(1);
+        private CountDownLatch released = new CountDownLatch(1);
+        private List<TraceWriter.Record> records = new ArrayList<TraceWriter.Record>();
+        private List<Integer> batchSizes = new ArrayList<Integer>();
+        private boolean failNext = false;
+        private volatile boolean closed = false;
+
+        public void write(List<TraceWriter.Record> batch) throws IOException
+        {
+            writing.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException ie) {
+                throw new IOException("interrupted");
+            }
+            synchronized (this) {
+                if (failNext) {
+                    failNext = false;
+                    throw new IllegalStateException("target failed");
+                }
+                records.addAll(batch);
+                batchSizes.add(batch.size());
+            }
+        }
+
+        public void close()
+        {
+            closed = true;
+        }
+
+        synchronized void failNext()
+        {
+            failNext = true;
+        }
+
+        void awaitWrite() throws InterruptedException
+        {
+            assertTrue("no write", writing.await(10, TimeUnit.SECONDS));
+        }
+
+        void release()
+        {
+            released.countDown();
+        }
+
+        boolean isClosed()
+        {
+            return closed;
+        }
+
+        synchronized List<TraceWriter.Record> getRecords()
+        {
+            return new ArrayList<TraceWriter.Record>(records);
+        }
+
+        synchronized List<Integer> getBatchSizes()
+        {
+            return new ArrayList<Integer>(batchSizes);
+        }
+    }
+}